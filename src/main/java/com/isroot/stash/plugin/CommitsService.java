@@ -3,6 +3,8 @@ package com.isroot.stash.plugin;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
 
+import javax.annotation.Nullable;
+import java.util.Collection;
 import java.util.Set;
 
 /**
@@ -19,4 +21,31 @@ public interface CommitsService {
      * @return A {@link Set} of {@link YaccCommit}s
      */
     public Set<YaccCommit> getNewCommits(Repository repository, RefChange refChange);
+
+    /**
+     * Stream new {@link YaccCommit}s not already present in the repository for the given {@link RefChange}.
+     * Commits are returned in topological order, children before parents, and are read from the repository
+     * as the stream is consumed. The caller must close the returned stream.
+     * @param repository {@link Repository} to look at
+     * @param refChange {@link RefChange} to start from
+     * @return A {@link YaccCommitStream} of new commits
+     */
+    public YaccCommitStream streamNewCommits(Repository repository, RefChange refChange);
+
+    /**
+     * Stream new {@link YaccCommit}s for all of the given {@link RefChange}s at once. A commit that is new
+     * to several of the ref changes is returned only once, and {@link YaccCommitStream#getRefChanges()}
+     * reports which ref changes it belongs to. The caller must close the returned stream.
+     * @param repository {@link Repository} to look at
+     * @param refChanges {@link RefChange}s pushed together
+     * @param skipMerges leave out merge commits, for callers that ignore them
+     * @param messageWindow bytes of each commit message to keep, or 0 to keep all of it. Past the window,
+     *                      only the issue keys and the length of the message are kept
+     * @param resumeFrom where an earlier stream of the same ref changes got to, to return only the rest of
+     *                   it, or null to start from the beginning
+     * @return A {@link YaccCommitStream} of new commits
+     */
+    public YaccCommitStream streamNewCommits(Repository repository, Collection<RefChange> refChanges,
+                                             boolean skipMerges, int messageWindow,
+                                             @Nullable ResumePoint resumeFrom);
 }
@@ -1,41 +1,105 @@
 package com.isroot.stash.plugin;
 
-import com.atlassian.bitbucket.commit.Commit;
-import com.atlassian.bitbucket.commit.CommitService;
-import com.atlassian.bitbucket.commit.CommitsBetweenRequest;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.RefChangeType;
 import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
 import com.atlassian.bitbucket.server.ApplicationPropertiesService;
-import com.atlassian.bitbucket.util.Page;
-import com.atlassian.bitbucket.util.PageProvider;
-import com.atlassian.bitbucket.util.PageRequest;
-import com.atlassian.bitbucket.util.PagedIterable;
 import com.atlassian.stash.scm.git.GitRefPattern;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.isroot.stash.plugin.git.NativeCommitStream;
+import com.isroot.stash.plugin.git.QuarantineDirectories;
+import com.isroot.stash.plugin.jgit.JGitCommitStream;
+import com.isroot.stash.plugin.jgit.JGitRepositoryPool;
+import com.isroot.stash.plugin.jgit.RefSnapshotCache;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevObject;
-import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Sean Ford
  * @since 2013-10-26
  */
 public class CommitsServiceImpl implements CommitsService {
-    private final CommitService commitService;
+    private static final Logger log = LoggerFactory.getLogger(CommitsServiceImpl.class);
+
+    /** Pushes with more new commits than this take the regular path. */
+    static final int FAST_FORWARD_MAX_COMMITS = 100;
+
+    /** How far a commit time may be behind its parent's, from committers with wrong clocks. */
+    static final int CLOCK_SKEW_SECONDS = (int) TimeUnit.DAYS.toSeconds(1);
+
+    /**
+     * Application property choosing how new commits are read: {@code jgit}, the default, or {@code native} to
+     * run git itself. JGit is still used if native git fails.
+     */
+    public static final String ENGINE_PROPERTY = "plugin.yacc.commits.engine";
+
+    private final JGitRepositoryPool jGitRepositoryPool;
+    private final RefSnapshotCache refSnapshotCache;
+    private final GitCommandBuilderFactory gitCommandBuilderFactory;
     private final ApplicationPropertiesService applicationPropertiesService;
+    private final boolean nativeEngine;
 
-    public CommitsServiceImpl(CommitService commitService, ApplicationPropertiesService applicationPropertiesService) {
-        this.commitService = commitService;
+    /** Workers for reading tag and commit objects in parallel on large pushes, one per core. */
+    private final int parallelism;
+    private final ExecutorService objectReadExecutor;
+
+    /** Runs native git rev-list while the new commits it lists are checked, one worker per stream. */
+    private final ExecutorService nativeGitExecutor;
+
+    public CommitsServiceImpl(JGitRepositoryPool jGitRepositoryPool, RefSnapshotCache refSnapshotCache,
+                              GitCommandBuilderFactory gitCommandBuilderFactory,
+                              ApplicationPropertiesService applicationPropertiesService) {
+        this.jGitRepositoryPool = jGitRepositoryPool;
+        this.refSnapshotCache = refSnapshotCache;
+        this.gitCommandBuilderFactory = gitCommandBuilderFactory;
         this.applicationPropertiesService = applicationPropertiesService;
+
+        nativeEngine = "native".equals(applicationPropertiesService.getPluginProperty(ENGINE_PROPERTY));
+        log.info("reading new commits with {}", nativeEngine ? "native git" : "JGit");
+
+        parallelism = Runtime.getRuntime().availableProcessors();
+        objectReadExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("yacc-object-reader-%d")
+                .build());
+        nativeGitExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("yacc-native-git-%d")
+                .build());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        objectReadExecutor.shutdownNow();
+        nativeGitExecutor.shutdownNow();
     }
 
     /**
@@ -43,11 +107,42 @@ public class CommitsServiceImpl implements CommitsService {
      */
     @Override
     public Set<YaccCommit> getNewCommits(Repository repository, RefChange refChange) {
-        try {
-            org.eclipse.jgit.lib.Repository jGitRepo = getJGitRepo(repository);
+        Set<YaccCommit> yaccCommits = Sets.newLinkedHashSet();
+
+        try (YaccCommitStream commits = streamNewCommits(repository, refChange)) {
+            while (commits.hasNext()) {
+                yaccCommits.add(commits.next());
+            }
+        }
 
-            RevWalk walk = new RevWalk(jGitRepo);
+        return yaccCommits;
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public YaccCommitStream streamNewCommits(Repository repository, RefChange refChange) {
+        return streamNewCommits(repository, Collections.singletonList(refChange), false, 0, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public YaccCommitStream streamNewCommits(Repository repository, Collection<RefChange> refChanges,
+                                             boolean skipMerges, int messageWindow,
+                                             @Nullable ResumePoint resumeFrom) {
+        return streamNewCommits(repository, refChanges, skipMerges, messageWindow, resumeFrom, nativeEngine);
+    }
+
+    private YaccCommitStream streamNewCommits(Repository repository, Collection<RefChange> refChanges,
+                                              boolean skipMerges, int messageWindow,
+                                              @Nullable ResumePoint resumeFrom, boolean useNative) {
+        List<RefChange> branchChanges = new ArrayList<>();
+        List<RefChange> tagChanges = new ArrayList<>();
+
+        for (RefChange refChange : refChanges) {
             /* Tags are different to regular commits - they're just pointers.
              * The only relevent commitId is the destination one (and even then only for
              * ADD and UPDATE).
@@ -59,87 +154,399 @@ public class CommitsServiceImpl implements CommitsService {
              * Stash's API to work out the tag type doesn't work (see STASH-4993)
              * and since we're using JGit anyway, just use it for the whole lot.
              */
-            Set<YaccCommit> yaccCommits = Sets.newHashSet();
+            if (refChange.getType() == RefChangeType.DELETE) {
+                // Deletes don't leave anything to check
+                continue;
+            }
 
             if (refChange.getRefId().startsWith(GitRefPattern.TAGS.getPath())) {
-                if (refChange.getType() == RefChangeType.DELETE) {
-                    // Deletes don't leave anything to check
-                    return yaccCommits;
-                }
+                tagChanges.add(refChange);
+            } else {
+                branchChanges.add(refChange);
+            }
+        }
 
-                RevObject obj = walk.parseAny(ObjectId.fromString(refChange.getToHash()));
-                if (!(obj instanceof RevTag)) {
-                    // Just a lightweight tag - nothing to check
-                    return yaccCommits;
+        Map<ObjectId, BitSet> starts = getStarts(branchChanges, resumeFrom);
+        if (resumeFrom != null) {
+            Iterator<RefChange> tags = tagChanges.iterator();
+            while (tags.hasNext()) {
+                if (!resumeFrom.getTags().contains(tags.next().getToHash())) {
+                    tags.remove();
                 }
+            }
+        }
 
-                RevTag tag = (RevTag) obj;
+        if (starts.isEmpty() && tagChanges.isEmpty()) {
+            return new EmptyCommitStream();
+        }
 
-                PersonIdent ident = tag.getTaggerIdent();
-                final String message = tag.getFullMessage();
-                final YaccPerson committer = new YaccPerson(ident.getName(), ident.getEmailAddress());
-                final YaccCommit yaccCommit = new YaccCommit(refChange.getToHash(), committer, message, 1);
+        if (useNative) {
+            try {
+                return new NativeFallbackStream(repository, refChanges, skipMerges, messageWindow,
+                        streamNativeCommits(repository, branchChanges, starts, tagChanges, skipMerges,
+                                messageWindow));
+            } catch (RuntimeException e) {
+                log.warn("native git failed to list new commits in {}, using JGit instead: {}", repository,
+                        e.getMessage());
+                log.debug("native git failure", e);
+            }
+        }
 
-                yaccCommits.add(yaccCommit);
-            } else {
-                final CommitsBetweenRequest request = new CommitsBetweenRequest.Builder(repository)
-                        .exclude(getBranches(repository))
-                        .include(refChange.getToHash())
-                        .build();
-                // Make sure to get all of the changes
-                Iterable<Commit> commits = new PagedIterable<>(new PageProvider<Commit>() {
-                    @Override
-                    public Page<Commit> get(PageRequest pr) {
-                        return commitService.getCommitsBetween(request, pr);
-                    }
-                }, 100);
-
-                for (Commit commit : commits) {
-                    final RevCommit revCommit = walk.parseCommit(ObjectId.fromString(commit.getId()));
-
-                    /* Note that we use committer, instead of author -- for most commits, these will be identical. Where
-                     * this differs is if a patch *author* submits a patch (eg, consider an external contribution), and
-                     * the *committer* actually applies the patch.
-                     *
-                     * By validating the committer here, we can allow surrogate commits on behalf of patch submitters,
-                     * while still ensuring that the authenticated user is either the author *or* the committer.
-                     */
-                    final PersonIdent ident = revCommit.getCommitterIdent();
-                    final String message = revCommit.getFullMessage();
-                    final YaccPerson committer = new YaccPerson(ident.getName(), ident.getEmailAddress());
-                    final YaccCommit yaccCommit = new YaccCommit(commit.getId(), committer, message, revCommit.getParentCount());
-
-                    yaccCommits.add(yaccCommit);
+        JGitCommitStream stream;
+        try {
+            stream = new JGitCommitStream(acquireRepository(repository), objectReadExecutor, parallelism);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        boolean started = false;
+        try {
+            stream.setMessageWindow(messageWindow);
+            stream.addTags(tagChanges);
+
+            if (!starts.isEmpty()) {
+                Collection<ObjectId> existingTips = getFastForwardTips(repository, stream.getRepository(),
+                        branchChanges);
+                if (existingTips == null) {
+                    existingTips = getBranches(repository, stream.getRepository(), refChanges);
                 }
+
+                stream.addNewCommits(branchChanges, starts, existingTips, skipMerges);
             }
 
-            return yaccCommits;
+            started = true;
+            return stream;
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (!started) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Read new commits with native git. The walk stops at every existing branch, so there is no fast path.
+     */
+    private YaccCommitStream streamNativeCommits(Repository repository, List<RefChange> branchChanges,
+                                                 Map<ObjectId, BitSet> starts, List<RefChange> tagChanges,
+                                                 boolean skipMerges, int messageWindow) {
+        NativeCommitStream stream = new NativeCommitStream(gitCommandBuilderFactory, repository,
+                applicationPropertiesService.getRepositoryDir(repository), nativeGitExecutor);
+        stream.setMessageWindow(messageWindow);
+        stream.addTags(tagChanges);
+
+        if (!starts.isEmpty()) {
+            stream.addNewCommits(branchChanges, starts, skipMerges);
+        }
+
+        return stream;
+    }
+
+    /**
+     * Get the JGit repository to read new commits from. With the native engine, JGit only carries on where
+     * native git failed, and native git sees the objects of a push still in quarantine, so JGit has to see
+     * them as well.
+     */
+    private JGitRepositoryPool.PooledRepository acquireRepository(Repository repository) throws IOException {
+        if (nativeEngine) {
+            List<File> quarantine = QuarantineDirectories.getDirectories(
+                    applicationPropertiesService.getRepositoryDir(repository));
+            if (!quarantine.isEmpty()) {
+                log.debug("reading quarantined objects for {} from {}", repository, quarantine);
+                return jGitRepositoryPool.acquireWithAlternates(repository, quarantine);
+            }
+        }
+
+        return jGitRepositoryPool.acquire(repository);
+    }
+
+    /**
+     * Work out the commits to walk from, each with the indexes of the branch changes it is new to: the pushed
+     * tips, or the frontier an earlier stream got to.
+     */
+    private Map<ObjectId, BitSet> getStarts(List<RefChange> branchChanges, @Nullable ResumePoint resumeFrom) {
+        Map<ObjectId, BitSet> starts = new LinkedHashMap<>();
+
+        if (resumeFrom == null) {
+            for (int i = 0; i < branchChanges.size(); i++) {
+                getStartSet(starts, ObjectId.fromString(branchChanges.get(i).getToHash())).set(i);
+            }
+
+            return starts;
+        }
+
+        for (Map.Entry<String, Set<String>> start : resumeFrom.getStarts().entrySet()) {
+            BitSet startSet = new BitSet();
+            for (int i = 0; i < branchChanges.size(); i++) {
+                if (start.getValue().contains(branchChanges.get(i).getRefId())) {
+                    startSet.set(i);
+                }
+            }
+
+            // Commits new only to refs that aren't in this push are nothing to do with it
+            if (!startSet.isEmpty()) {
+                getStartSet(starts, ObjectId.fromString(start.getKey())).or(startSet);
+            }
+        }
+
+        return starts;
+    }
+
+    private static BitSet getStartSet(Map<ObjectId, BitSet> starts, ObjectId id) {
+        BitSet startSet = starts.get(id);
+        if (startSet == null) {
+            startSet = new BitSet();
+            starts.put(id, startSet);
         }
+
+        return startSet;
     }
 
-    private Set<String> getBranches(Repository repository) {
+    /**
+     * Work out which branch tips matter for a push that only moves existing branches forward.
+     *
+     * The commits between each old and new tip are found first, which is cheap because the walk stops at the
+     * old tip. Each old tip must be reached as the parent of one of those commits, so every update is a
+     * fast forward and the new-commit walk is bounded by the old tips. History behind an old tip is already
+     * on the branch, so it can never be taken for new whatever other branches are left out. A forced update
+     * has no such bound, the commits it brings in can be old history from anywhere, so every branch is used.
+     *
+     * Other branches only matter for the commits in the pushed range, the ones that were on another branch
+     * before the push. Branches pointing at one of those commits are used, and so are branches committed to
+     * since the oldest of them, allowing for {@link #CLOCK_SKEW_SECONDS} of clock skew. Every branch is used
+     * if one of the pushed commits is older than its parent by more than that, or if too many branch tips
+     * would have to be read to find their commit times.
+     *
+     * @return the branch tips to exclude, or null if the fast path doesn't apply and every branch tip
+     *         should be used
+     */
+    private Collection<ObjectId> getFastForwardTips(Repository repository, org.eclipse.jgit.lib.Repository jGitRepo,
+                                                    List<RefChange> branchChanges) throws IOException {
+        Set<ObjectId> fromTips = Sets.newHashSet();
+        for (RefChange refChange : branchChanges) {
+            if (refChange.getType() != RefChangeType.UPDATE) {
+                return null;
+            }
+
+            fromTips.add(ObjectId.fromString(refChange.getFromHash()));
+        }
+
+        Set<ObjectId> candidates = Sets.newHashSet();
+        int oldestCommitTime = Integer.MAX_VALUE;
+
+        RevWalk walk = new RevWalk(jGitRepo);
+        walk.setRetainBody(false);
         try {
-            org.eclipse.jgit.lib.Repository jGitRepo = getJGitRepo(repository);
+            for (ObjectId fromTip : fromTips) {
+                walk.markUninteresting(walk.parseCommit(fromTip));
+            }
+            for (RefChange refChange : branchChanges) {
+                walk.markStart(walk.parseCommit(ObjectId.fromString(refChange.getToHash())));
+            }
 
-            Set<String> refHeads = Sets.newHashSet();
+            RevCommit commit;
+            while ((commit = walk.next()) != null) {
+                if (candidates.size() == FAST_FORWARD_MAX_COMMITS) {
+                    log.debug("more than {} commits pushed, not using fast forward path", FAST_FORWARD_MAX_COMMITS);
+                    return null;
+                }
 
-            for (String ref : jGitRepo.getAllRefs().keySet()) {
-                if (ref.startsWith("refs/heads/")) {
-                    refHeads.add(ref);
+                for (RevCommit parent : commit.getParents()) {
+                    if (commit.getCommitTime() < parent.getCommitTime() - CLOCK_SKEW_SECONDS) {
+                        log.debug("{} is older than its parent {}, not using fast forward path", commit.name(),
+                                parent.name());
+                        return null;
+                    }
                 }
+
+                candidates.add(commit.copy());
+                oldestCommitTime = Math.min(oldestCommitTime, commit.getCommitTime());
             }
 
-            return refHeads;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            for (RefChange refChange : branchChanges) {
+                if (!isFastForward(walk, refChange, candidates)) {
+                    log.debug("{} is not a fast forward, not using fast forward path", refChange.getRefId());
+                    return null;
+                }
+            }
+        } catch (MissingObjectException | IncorrectObjectTypeException e) {
+            log.debug("unable to walk pushed range, not using fast forward path: {}", e.getMessage());
+            return null;
+        } finally {
+            walk.release();
+        }
+
+        Set<ObjectId> existingTips = Sets.newHashSet(fromTips);
+        if (candidates.isEmpty()) {
+            return existingTips;
+        }
+
+        for (ObjectId tip : refSnapshotCache.getBranchTips(repository, jGitRepo)) {
+            if (candidates.contains(tip)) {
+                existingTips.add(tip);
+            }
+        }
+
+        Collection<ObjectId> recentTips = refSnapshotCache.getBranchTipsCommittedSince(repository, jGitRepo,
+                oldestCommitTime - CLOCK_SKEW_SECONDS);
+        if (recentTips == null) {
+            return null;
+        }
+        existingTips.addAll(recentTips);
+
+        log.debug("fast forward of {} commits needs {} branch tips", candidates.size(), existingTips.size());
+
+        return existingTips;
+    }
+
+    /**
+     * Whether the old tip of {@code refChange} is behind its new tip. The pushed commits are {@code candidates},
+     * already parsed by {@code walk}, so only those are followed back from the new tip looking for the old one.
+     */
+    private static boolean isFastForward(RevWalk walk, RefChange refChange, Set<ObjectId> candidates) {
+        ObjectId fromTip = ObjectId.fromString(refChange.getFromHash());
+        RevCommit toTip = walk.lookupCommit(ObjectId.fromString(refChange.getToHash()));
+        if (!candidates.contains(toTip)) {
+            // Moved back onto history that is already there, nothing on it is new
+            return true;
+        }
+
+        Set<ObjectId> seen = Sets.newHashSet();
+        Deque<RevCommit> pending = new ArrayDeque<>();
+        pending.add(toTip);
+        while (!pending.isEmpty()) {
+            for (RevCommit parent : pending.removeFirst().getParents()) {
+                if (parent.equals(fromTip)) {
+                    return true;
+                }
+
+                if (candidates.contains(parent) && seen.add(parent)) {
+                    pending.add(parent);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private Set<ObjectId> getBranches(Repository repository, org.eclipse.jgit.lib.Repository jGitRepo,
+                                      Collection<RefChange> refChanges) throws IOException {
+        Set<ObjectId> refHeads = Sets.newHashSet(refSnapshotCache.getBranchTips(repository, jGitRepo));
+
+        // Branches being updated still point at their old commits, include them even if the snapshot is stale
+        for (RefChange refChange : refChanges) {
+            if (refChange.getType() == RefChangeType.UPDATE && refChange.getRefId().startsWith(Constants.R_HEADS)) {
+                refHeads.add(ObjectId.fromString(refChange.getFromHash()));
+            }
         }
+
+        return refHeads;
     }
 
-    private org.eclipse.jgit.lib.Repository getJGitRepo (Repository repository) throws IOException {
-        FileRepositoryBuilder builder = new FileRepositoryBuilder();
-        File repoDir = applicationPropertiesService.getRepositoryDir(repository);
-        return builder.setGitDir(repoDir).build();
+    /**
+     * Native git stream that carries on with JGit if listing or reading commits fails part way through, such
+     * as when rev-list or cat-file dies or can't find an object. The JGit stream resumes just after the last
+     * commit returned, so nothing is returned twice or missed.
+     */
+    private class NativeFallbackStream implements YaccCommitStream {
+        private final Repository repository;
+        private final Collection<RefChange> refChanges;
+        private final boolean skipMerges;
+        private final int messageWindow;
+
+        private YaccCommitStream stream;
+        private boolean fellBack;
+
+        private NativeFallbackStream(Repository repository, Collection<RefChange> refChanges, boolean skipMerges,
+                                     int messageWindow, YaccCommitStream nativeStream) {
+            this.repository = repository;
+            this.refChanges = refChanges;
+            this.skipMerges = skipMerges;
+            this.messageWindow = messageWindow;
+            this.stream = nativeStream;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return stream.hasNext();
+            } catch (RuntimeException e) {
+                if (fellBack) {
+                    throw e;
+                }
+
+                log.warn("native git failed reading new commits in {}, carrying on with JGit: {}", repository,
+                        e.getMessage());
+                log.debug("native git failure", e);
+
+                ResumePoint resumePoint = stream.getResumePoint();
+                stream.close();
+
+                fellBack = true;
+                stream = streamNewCommits(repository, refChanges, skipMerges, messageWindow, resumePoint, false);
+                return stream.hasNext();
+            }
+        }
+
+        @Override
+        public YaccCommit next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return stream.next();
+        }
+
+        @Override
+        public Collection<RefChange> getRefChanges() {
+            return stream.getRefChanges();
+        }
+
+        @Override
+        public ResumePoint getResumePoint() {
+            return stream.getResumePoint();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+    }
+
+    private static class EmptyCommitStream implements YaccCommitStream {
+        @Override
+        public boolean hasNext() {
+            return false;
+        }
+
+        @Override
+        public YaccCommit next() {
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public Collection<RefChange> getRefChanges() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public ResumePoint getResumePoint() {
+            return null;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
     }
 }
@@ -6,6 +6,10 @@ import com.atlassian.bitbucket.setting.RepositorySettingsValidator;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
 import com.atlassian.sal.api.net.ResponseException;
+import com.google.common.primitives.Ints;
+import com.isroot.stash.plugin.regex.RegexEngine;
+import com.isroot.stash.plugin.regex.StepBudgetPolicy;
+import com.isroot.stash.plugin.regex.YaccPattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,9 +35,46 @@ public class ConfigValidator implements RepositorySettingsValidator {
     @Override
     public void validate(@Nonnull Settings settings, @Nonnull SettingsValidationErrors errors,
                          @Nonnull Repository repository) {
-        validationRegex(settings, errors, "commitMessageRegex");
-        validationRegex(settings, errors, "excludeByRegex");
-        validationRegex(settings, errors, "branchNameRegex");
+        String regexEngineName = settings.getString("regexEngine");
+        RegexEngine regexEngine = RegexEngine.parse(regexEngineName);
+        if (!isNullOrEmpty(regexEngineName) && regexEngine == null) {
+            errors.addFieldError("regexEngine", "Unknown regex engine: " + regexEngineName);
+        }
+
+        validationRegex(settings, errors, "commitMessageRegex", regexEngine);
+        validationRegex(settings, errors, "excludeByRegex", regexEngine);
+        validationRegex(settings, errors, "branchNameRegex", regexEngine);
+
+        validatePositiveInt(settings, errors, "regexStepBudget");
+
+        String stepBudgetPolicy = settings.getString("regexStepBudgetPolicy");
+        if (!isNullOrEmpty(stepBudgetPolicy) && StepBudgetPolicy.parse(stepBudgetPolicy) == null) {
+            errors.addFieldError("regexStepBudgetPolicy", "Unknown step budget policy: " + stepBudgetPolicy);
+        }
+
+        validatePositiveInt(settings, errors, "commitMessageWindow");
+        validatePositiveInt(settings, errors, "largePushCommitLimit");
+        validatePositiveInt(settings, errors, "largePushTimeLimit");
+        validatePositiveInt(settings, errors, "largePushSampleInterval");
+        validatePositiveInt(settings, errors, "largePushEdgeCount");
+
+        validatePositiveInt(settings, errors, "jgitPackedGitLimit");
+        validatePositiveInt(settings, errors, "jgitPackedGitOpenFiles");
+        validatePositiveInt(settings, errors, "jgitDeltaBaseCacheLimit");
+
+        // JGit only accepts window sizes that are a power of 2
+        String windowSize = settings.getString("jgitPackedGitWindowSize");
+        if (!isNullOrEmpty(windowSize)) {
+            Integer i = Ints.tryParse(windowSize.trim());
+            if (i == null || i < 4 || Integer.bitCount(i) != 1 || i > 1024 * 1024) {
+                errors.addFieldError("jgitPackedGitWindowSize", "Must be a power of 2 between 4 and 1048576.");
+            }
+        }
+
+        String largePushMode = settings.getString("largePushMode");
+        if (!isNullOrEmpty(largePushMode) && LargePushPolicy.parseMode(largePushMode) == null) {
+            errors.addFieldError("largePushMode", "Unknown large push mode: " + largePushMode);
+        }
 
         if (settings.getBoolean("requireJiraIssue", false)) {
             if (!jiraService.doesJiraApplicationLinkExist()) {
@@ -41,6 +82,16 @@ public class ConfigValidator implements RepositorySettingsValidator {
             }
         }
 
+        String projectKeys = settings.getString("issueProjectKeys");
+        if (!isNullOrEmpty(projectKeys)) {
+            for (String projectKey : RulePlan.parseProjectKeys(projectKeys)) {
+                if (!IssueKeyScanner.isProjectKey(projectKey)) {
+                    errors.addFieldError("issueProjectKeys", "Invalid JIRA project key: " + projectKey);
+                    break;
+                }
+            }
+        }
+
         String jqlMatcher = settings.getString("issueJqlMatcher");
         if (!isNullOrEmpty(jqlMatcher)) {
             try {
@@ -62,15 +113,39 @@ public class ConfigValidator implements RepositorySettingsValidator {
 
     private void validationRegex(Settings settings,
                                  SettingsValidationErrors errors,
-                                 String setting) {
+                                 String setting,
+                                 RegexEngine regexEngine) {
         String regex = settings.getString(setting);
         if (regex != null && !regex.isEmpty()) {
             try {
                 Pattern.compile(regex);
             } catch (PatternSyntaxException ex) {
                 errors.addFieldError(setting, "Invalid Regex: " + ex.getMessage());
+                return;
+            }
+
+            // A valid Java regex can still use features the linear engine can't match without backtracking
+            if (regexEngine == RegexEngine.LINEAR) {
+                try {
+                    YaccPattern.compile(regex, RegexEngine.LINEAR);
+                } catch (PatternSyntaxException ex) {
+                    errors.addFieldError(setting, "Not supported by the linear time regex engine, "
+                            + "only by the backtracking engine: " + ex.getDescription());
+                }
             }
         }
 
     }
+
+    private void validatePositiveInt(Settings settings,
+                                     SettingsValidationErrors errors,
+                                     String setting) {
+        String value = settings.getString(setting);
+        if (!isNullOrEmpty(value)) {
+            Integer i = Ints.tryParse(value.trim());
+            if (i == null || i <= 0) {
+                errors.addFieldError(setting, "Must be a positive whole number.");
+            }
+        }
+    }
 }
@@ -2,9 +2,8 @@ package com.isroot.stash.plugin;
 
 import com.google.common.collect.Lists;
 
+import javax.annotation.Nullable;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A JIRA issue key.
@@ -13,14 +12,26 @@ public class IssueKey {
     /**
      * Parse any issue keys (i.e., strings that match the standard issue key format) found within the given input.
      *
-     * @param input The input string to be parsed for issue keys.
+     * @param input The input to be parsed for issue keys.
      */
-    static public List<IssueKey> parseIssueKeys(String input) {
-        List<IssueKey> issueKeys = Lists.newArrayList();
-        Matcher matcher = ISSUE_PATTERN.matcher(input);
-        while (matcher.find()) {
-            issueKeys.add(new IssueKey(getMatchedProjectKey(matcher), getMatchedIssueId(matcher)));
-        }
+    static public List<IssueKey> parseIssueKeys(CharSequence input) {
+        return parseIssueKeys(input, null);
+    }
+
+    /**
+     * Parse any issue keys found within the given input whose project key is one of {@code projectKeys}.
+     *
+     * @param input The input to be parsed for issue keys.
+     * @param projectKeys Known project keys, or null to accept any project key.
+     */
+    static public List<IssueKey> parseIssueKeys(CharSequence input, @Nullable ProjectKeyTrie projectKeys) {
+        final List<IssueKey> issueKeys = Lists.newArrayList();
+        IssueKeyScanner.scan(input, projectKeys, new IssueKeyScanner.Visitor() {
+            @Override
+            public void issueKey(CharSequence input, int projectStart, int projectEnd, int idEnd) {
+                issueKeys.add(fromSpan(input, projectStart, projectEnd, idEnd));
+            }
+        });
 
         return issueKeys;
     }
@@ -32,13 +43,13 @@ public class IssueKey {
      * @throws InvalidIssueKeyException if issueKey is not a correctly formatted JIRA issue key.
      */
     public IssueKey(String issueKey) throws InvalidIssueKeyException {
-        Matcher matcher = ISSUE_PATTERN.matcher(issueKey);
-        if (!matcher.find()) {
+        List<IssueKey> issueKeys = parseIssueKeys(issueKey);
+        if (issueKeys.isEmpty()) {
             throw new InvalidIssueKeyException(issueKey);
         }
 
-        this.projectKey = getMatchedProjectKey(matcher);
-        this.issueId = getMatchedIssueId(matcher);
+        this.projectKey = issueKeys.get(0).projectKey;
+        this.issueId = issueKeys.get(0).issueId;
     }
 
     /**
@@ -117,29 +128,10 @@ public class IssueKey {
     private final String issueId;
 
     /**
-     * A regex pattern that matches on JIRA issue keys. The individual components of a valid match
-     * should be extracted using the {@link #getMatchedProjectKey(java.util.regex.Matcher)} and {@link #getMatchedProjectKey(java.util.regex.Matcher)}
-     * methods.
-     */
-    private static Pattern ISSUE_PATTERN = Pattern.compile("([A-Z][A-Z_0-9]+)-([0-9]+)");
-
-    /**
-     * Return the project key matched by {@link #ISSUE_PATTERN}.
-     *
-     * @param matcher A successfully matching {@link #ISSUE_PATTERN} matcher.
-     * @return The matched project key.
-     */
-    private static String getMatchedProjectKey(Matcher matcher) {
-        return matcher.group(1);
-    }
-
-    /**
-     * Return the issue identifier matched by {@link #ISSUE_PATTERN}.
-     *
-     * @param matcher A successfully matching {@link #ISSUE_PATTERN} matcher.
-     * @return The matched issue identifier.
+     * Create the issue key reported by {@link IssueKeyScanner} for a span of {@code input}.
      */
-    private static String getMatchedIssueId(Matcher matcher) {
-        return matcher.group(2);
+    private static IssueKey fromSpan(CharSequence input, int projectStart, int projectEnd, int idEnd) {
+        return new IssueKey(input.subSequence(projectStart, projectEnd).toString(),
+                input.subSequence(projectEnd + 1, idEnd).toString());
     }
 }
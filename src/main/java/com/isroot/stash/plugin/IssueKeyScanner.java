@@ -0,0 +1,105 @@
+package com.isroot.stash.plugin;
+
+import javax.annotation.Nullable;
+
+/**
+ * Finds JIRA issue keys in text in one pass, without a regex and without allocating anything for the text
+ * it passes over. Keys are reported as spans of the input, so nothing is copied until a caller decides it
+ * needs a key.
+ *
+ * Finds the same keys, in the same order, as finding {@code ([A-Z][A-Z_0-9]+)-([0-9]+)} repeatedly with
+ * {@link java.util.regex.Matcher#find()}. Only ASCII characters can be part of a key, so the input can be
+ * a view of raw message bytes that haven't been decoded.
+ */
+public final class IssueKeyScanner {
+    /**
+     * Receives the issue keys found by {@link #scan}.
+     */
+    public interface Visitor {
+        /**
+         * Called for each issue key found. The project key is {@code input[projectStart, projectEnd)}, and the
+         * issue identifier is {@code input[projectEnd + 1, idEnd)}, after the {@code '-'}.
+         */
+        void issueKey(CharSequence input, int projectStart, int projectEnd, int idEnd);
+    }
+
+    private IssueKeyScanner() {
+    }
+
+    /**
+     * Report every issue key in {@code input} to {@code visitor}.
+     *
+     * @param input Text to scan.
+     * @param projectKeys If not null, keys whose project key isn't one of these are skipped.
+     * @param visitor Receives the keys found.
+     */
+    public static void scan(CharSequence input, @Nullable ProjectKeyTrie projectKeys, Visitor visitor) {
+        int length = input.length();
+
+        // Start of the project key being read, or -1 if not in one
+        int projectStart = -1;
+        // Node in projectKeys for the project key read so far, or -1 once it can't be a known key
+        int node = -1;
+
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+
+            if (isUpperCase(c)) {
+                if (projectStart < 0) {
+                    projectStart = i;
+                    node = projectKeys == null ? -1 : projectKeys.root();
+                }
+                node = advance(projectKeys, node, c);
+            } else if (isDigit(c) || c == '_') {
+                // A key can't start with these, they only continue one
+                node = advance(projectKeys, node, c);
+            } else if (c == '-' && projectStart >= 0 && i - projectStart >= 2 && i + 1 < length
+                    && isDigit(input.charAt(i + 1))) {
+                int idEnd = i + 2;
+                while (idEnd < length && isDigit(input.charAt(idEnd))) {
+                    idEnd++;
+                }
+
+                if (projectKeys == null || (node >= 0 && projectKeys.isKey(node))) {
+                    visitor.issueKey(input, projectStart, i, idEnd);
+                }
+
+                // Like the regex, carry on after the key even if it was skipped
+                projectStart = -1;
+                i = idEnd - 1;
+            } else {
+                projectStart = -1;
+            }
+        }
+    }
+
+    /**
+     * Return true if {@code projectKey} is a project key this scanner can find.
+     */
+    public static boolean isProjectKey(CharSequence projectKey) {
+        if (projectKey.length() < 2 || !isUpperCase(projectKey.charAt(0))) {
+            return false;
+        }
+
+        for (int i = 1; i < projectKey.length(); i++) {
+            char c = projectKey.charAt(i);
+            if (!isUpperCase(c) && !isDigit(c) && c != '_') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int advance(@Nullable ProjectKeyTrie projectKeys, int node, char c) {
+        return projectKeys == null || node < 0 ? -1 : projectKeys.next(node, c);
+    }
+
+    private static boolean isUpperCase(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
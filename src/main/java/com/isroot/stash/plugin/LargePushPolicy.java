@@ -0,0 +1,133 @@
+package com.isroot.stash.plugin;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.primitives.Ints;
+
+import javax.annotation.Nullable;
+
+/**
+ * Limits on how much of a very large push is checked in full, such as the first push of an imported
+ * repository.
+ *
+ * Once a push has more new commits than the commit limit, the remaining commits are handled according to
+ * the {@link Mode}. The time limit applies whatever the mode: once a push has been checked for longer than
+ * it, checking stops and the push is rejected, and pushing again carries on from where it stopped. Either
+ * limit may be left blank.
+ */
+public class LargePushPolicy {
+    public enum Mode {
+        /** Check every Nth remaining commit. */
+        SAMPLE,
+        /** Keep checking, but stop at the first commit that fails. */
+        FIRST_VIOLATION,
+        /** Check only the last N commits, the first ones having been checked before the limit was reached. */
+        FIRST_LAST
+    }
+
+    static final int DEFAULT_SAMPLE_INTERVAL = 100;
+    static final int DEFAULT_EDGE_COUNT = 100;
+
+    private final int commitLimit;
+    private final long timeLimitMillis;
+    private final Mode mode;
+    private final int sampleInterval;
+    private final int edgeCount;
+
+    LargePushPolicy(int commitLimit, long timeLimitMillis, Mode mode, int sampleInterval, int edgeCount) {
+        this.commitLimit = commitLimit;
+        this.timeLimitMillis = timeLimitMillis;
+        this.mode = mode;
+        this.sampleInterval = sampleInterval;
+        this.edgeCount = edgeCount;
+    }
+
+    /**
+     * Return the large push policy configured in {@code settings}, or null if neither limit is set.
+     */
+    @Nullable
+    public static LargePushPolicy fromSettings(Settings settings) {
+        Integer commitLimit = getPositiveInt(settings, "largePushCommitLimit");
+        Integer timeLimit = getPositiveInt(settings, "largePushTimeLimit");
+        if (commitLimit == null && timeLimit == null) {
+            return null;
+        }
+
+        Mode mode = parseMode(settings.getString("largePushMode"));
+        if (mode == null) {
+            mode = Mode.FIRST_VIOLATION;
+        }
+
+        Integer sampleInterval = getPositiveInt(settings, "largePushSampleInterval");
+        Integer edgeCount = getPositiveInt(settings, "largePushEdgeCount");
+
+        return new LargePushPolicy(commitLimit != null ? commitLimit : Integer.MAX_VALUE,
+                timeLimit != null ? timeLimit * 1000L : Long.MAX_VALUE, mode,
+                sampleInterval != null ? sampleInterval : DEFAULT_SAMPLE_INTERVAL,
+                edgeCount != null ? edgeCount : DEFAULT_EDGE_COUNT);
+    }
+
+    /**
+     * Return the mode named by {@code value}, or null if it isn't one.
+     */
+    @Nullable
+    public static Mode parseMode(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return Mode.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return true once {@code commits} new commits have gone past the commit limit, so the rest of the push
+     * is handled according to the {@link Mode}.
+     */
+    public boolean isCommitLimitReached(int commits) {
+        return commits >= commitLimit;
+    }
+
+    /**
+     * Return true once a push has been checked for {@code elapsedMillis} and should stop.
+     */
+    public boolean isTimeLimitReached(long elapsedMillis) {
+        return elapsedMillis >= timeLimitMillis;
+    }
+
+    /**
+     * Return true if the commit at {@code position} in the push is one of the commits {@link Mode#SAMPLE}
+     * checks. Counted from the commit limit, so it is the same commits however many attempts the push takes.
+     */
+    public boolean isSampled(int position) {
+        return (position - commitLimit) % sampleInterval == 0;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getTimeLimitSeconds() {
+        return timeLimitMillis / 1000;
+    }
+
+    /**
+     * Number of trailing commits checked by {@link Mode#FIRST_LAST}.
+     */
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    @Nullable
+    private static Integer getPositiveInt(Settings settings, String key) {
+        String value = settings.getString(key);
+        if (value == null) {
+            return null;
+        }
+
+        Integer i = Ints.tryParse(value.trim());
+        return i != null && i > 0 ? i : null;
+    }
+}
@@ -0,0 +1,113 @@
+package com.isroot.stash.plugin;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A fixed set of JIRA project keys that {@link IssueKeyScanner} can check a key against one character at a
+ * time as it reads it, so issue-like tokens such as {@code UTF-8} or {@code SHA-256} are dropped during the
+ * scan without being copied out or looked up in JIRA.
+ *
+ * Nodes are numbered from {@link #root()}, with each node's children held in one flat table indexed by
+ * character.
+ */
+public final class ProjectKeyTrie {
+    /** Children per node: A-Z, 0-9 and '_'. */
+    private static final int WIDTH = 26 + 10 + 1;
+
+    /** Child of each node for each character, 0 if there is none; the root is never a child. */
+    private int[] children = new int[WIDTH * 16];
+    private int nodeCount = 1;
+    private final BitSet keys = new BitSet();
+    private final int keyCount;
+
+    /**
+     * @param projectKeys Project keys to accept.
+     * @throws IllegalArgumentException if one of {@code projectKeys} isn't a valid project key.
+     */
+    public ProjectKeyTrie(Iterable<String> projectKeys) {
+        int count = 0;
+        for (String projectKey : projectKeys) {
+            if (!IssueKeyScanner.isProjectKey(projectKey)) {
+                throw new IllegalArgumentException("invalid project key: " + projectKey);
+            }
+
+            int node = root();
+            for (int i = 0; i < projectKey.length(); i++) {
+                int slot = node * WIDTH + index(projectKey.charAt(i));
+                if (children[slot] == 0) {
+                    children[slot] = addNode();
+                }
+                node = children[slot];
+            }
+
+            if (!keys.get(node)) {
+                keys.set(node);
+                count++;
+            }
+        }
+
+        children = Arrays.copyOf(children, nodeCount * WIDTH);
+        keyCount = count;
+    }
+
+    public int root() {
+        return 0;
+    }
+
+    /**
+     * Return the node reached from {@code node} by {@code c}, or -1 if no project key continues that way.
+     */
+    public int next(int node, char c) {
+        int index = index(c);
+        if (index < 0) {
+            return -1;
+        }
+
+        int child = children[node * WIDTH + index];
+        return child == 0 ? -1 : child;
+    }
+
+    /**
+     * Return true if the characters leading to {@code node} are a whole project key.
+     */
+    public boolean isKey(int node) {
+        return keys.get(node);
+    }
+
+    /**
+     * Return true if {@code projectKey} is one of the keys.
+     */
+    public boolean contains(CharSequence projectKey) {
+        int node = root();
+        for (int i = 0; i < projectKey.length() && node >= 0; i++) {
+            node = next(node, projectKey.charAt(i));
+        }
+
+        return node >= 0 && isKey(node);
+    }
+
+    public int size() {
+        return keyCount;
+    }
+
+    private int addNode() {
+        if ((nodeCount + 1) * WIDTH > children.length) {
+            children = Arrays.copyOf(children, children.length * 2);
+        }
+
+        return nodeCount++;
+    }
+
+    private static int index(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= '0' && c <= '9') {
+            return 26 + c - '0';
+        } else if (c == '_') {
+            return 36;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,43 @@
+package com.isroot.stash.plugin;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where a {@link YaccCommitStream} got to, so a later stream for the same push can carry on from there
+ * instead of starting again.
+ *
+ * Commits are streamed children first, so the commits not yet returned are everything reachable from the
+ * walk's frontier: the commits reached from ones already returned, and any pushed tips not reached yet. The
+ * frontier is recorded with the refs each of its commits is new to, which is all a walk needs to carry on
+ * and still attribute every remaining commit to the right refs. Marking the last returned commit
+ * uninteresting instead would skip exactly the history that is still to be checked.
+ */
+public class ResumePoint {
+    private final Set<String> tags;
+    private final Map<String, Set<String>> starts;
+
+    /**
+     * @param tags ids of the tag objects still to be returned
+     * @param starts frontier of the commit walk, commit id to the ids of the refs it is new to
+     */
+    public ResumePoint(Set<String> tags, Map<String, Set<String>> starts) {
+        this.tags = Collections.unmodifiableSet(tags);
+        this.starts = Collections.unmodifiableMap(starts);
+    }
+
+    /**
+     * Ids of the tag objects still to be returned.
+     */
+    public Set<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * Commits to carry on walking from, each with the ids of the refs it is new to.
+     */
+    public Map<String, Set<String>> getStarts() {
+        return starts;
+    }
+}
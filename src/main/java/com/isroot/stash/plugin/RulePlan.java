@@ -0,0 +1,269 @@
+package com.isroot.stash.plugin;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.isroot.stash.plugin.regex.RegexEngine;
+import com.isroot.stash.plugin.regex.StepBudgetPolicy;
+import com.isroot.stash.plugin.regex.YaccPattern;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Strings.emptyToNull;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.base.Strings.nullToEmpty;
+
+/**
+ * The hook settings compiled into the form the checks use: regexes compiled, switches parsed and limits
+ * converted to their units. Settings are strings keyed by name, so reading them for every commit costs a
+ * lookup and a parse each time, and a regex compile for every regex setting.
+ *
+ * A plan is immutable, so one plan is shared by every push checked under the same settings, see
+ * {@link com.isroot.stash.plugin.cache.RulePlanCache}.
+ */
+public class RulePlan {
+    private final Settings settings;
+
+    private final boolean requireMatchingAuthorEmail;
+    private final boolean requireMatchingAuthorName;
+    private final boolean excludeMergeCommits;
+    private final boolean excludeServiceUserCommits;
+    private final boolean requireJiraIssue;
+    private final boolean ignoreUnknownIssueProjectKeys;
+    private final boolean rejectOversizedMessages;
+
+    private final RegexEngine regexEngine;
+    private final int regexStepBudget;
+    private final StepBudgetPolicy stepBudgetPolicy;
+    private final String commitMessageRegex;
+    private final YaccPattern commitMessagePattern;
+    private final YaccPattern commitMessageIssuePattern;
+    private final YaccPattern excludePattern;
+    private final String branchNameRegex;
+    private final YaccPattern branchNamePattern;
+
+    private final int messageWindow;
+    private final String jiraApplicationLinkName;
+    private final String issueJqlMatcher;
+    private final ProjectKeyTrie issueProjectKeys;
+    private final LargePushPolicy largePushPolicy;
+
+    private RulePlan(Settings settings) {
+        // Plans outlive the push that compiled them, don't hold on to its settings object
+        this.settings = new SettingsSnapshot(settings);
+
+        requireMatchingAuthorEmail = settings.getBoolean("requireMatchingAuthorEmail", false);
+        requireMatchingAuthorName = settings.getBoolean("requireMatchingAuthorName", false);
+        excludeMergeCommits = settings.getBoolean("excludeMergeCommits", false);
+        excludeServiceUserCommits = settings.getBoolean("excludeServiceUserCommits", false);
+        requireJiraIssue = settings.getBoolean("requireJiraIssue", false);
+        ignoreUnknownIssueProjectKeys = settings.getBoolean("ignoreUnknownIssueProjectKeys", false);
+        rejectOversizedMessages = settings.getBoolean("rejectOversizedMessages", false);
+
+        regexEngine = RegexEngine.fromSettings(settings);
+        // Off unless set, a long message would otherwise run any regex out of steps, even a linear time one
+        Integer steps = Ints.tryParse(nullToEmpty(settings.getString("regexStepBudget")).trim());
+        regexStepBudget = steps != null && steps > 0 ? steps : 0;
+        stepBudgetPolicy = StepBudgetPolicy.fromSettings(settings);
+
+        commitMessageRegex = emptyToNull(settings.getString("commitMessageRegex"));
+        commitMessagePattern = commitMessageRegex == null ? null : compileRegex(commitMessageRegex,
+                YaccPattern.MULTILINE);
+        // Issue keys are taken from group 1, matched without MULTILINE as they always have been
+        commitMessageIssuePattern = commitMessageRegex == null ? null : compileRegex(commitMessageRegex, 0);
+
+        String excludeRegex = settings.getString("excludeByRegex");
+        excludePattern = isNullOrEmpty(excludeRegex) ? null : compileRegex(excludeRegex, 0);
+
+        branchNameRegex = emptyToNull(settings.getString("branchNameRegex"));
+        branchNamePattern = branchNameRegex == null ? null : compileRegex(branchNameRegex, 0);
+
+        Integer kib = Ints.tryParse(nullToEmpty(settings.getString("commitMessageWindow")).trim());
+        messageWindow = kib != null && kib > 0 ? (int) Math.min(kib * 1024L, Integer.MAX_VALUE) : 0;
+
+        jiraApplicationLinkName = emptyToNull(settings.getString("jiraApplicationLinkName"));
+        issueJqlMatcher = emptyToNull(settings.getString("issueJqlMatcher"));
+        String projectKeys = settings.getString("issueProjectKeys");
+        issueProjectKeys = isNullOrEmpty(projectKeys) ? null : new ProjectKeyTrie(parseProjectKeys(projectKeys));
+        largePushPolicy = LargePushPolicy.fromSettings(settings);
+    }
+
+    /**
+     * Compile {@code settings} into a plan. Throws {@link java.util.regex.PatternSyntaxException} if a regex
+     * setting is invalid or not supported by the chosen regex engine, or {@link IllegalArgumentException} if
+     * a project key is invalid, which the {@link ConfigValidator} doesn't allow to be saved.
+     */
+    public static RulePlan compile(Settings settings) {
+        return new RulePlan(settings);
+    }
+
+    /**
+     * Split the known project keys setting, which are separated by commas or whitespace.
+     */
+    public static Iterable<String> parseProjectKeys(String projectKeys) {
+        return Splitter.on(CharMatcher.anyOf(", \t\r\n"))
+                .omitEmptyStrings()
+                .split(projectKeys);
+    }
+
+    private YaccPattern compileRegex(String regex, int flags) {
+        return YaccPattern.compile(regex, flags, regexEngine, regexStepBudget);
+    }
+
+    /**
+     * Hash of the content of {@code settings}. Settings with the same values hash the same, whichever
+     * repository or the global configuration they come from.
+     */
+    public static String contentHash(Settings settings) {
+        Hasher hasher = Hashing.sha1().newHasher();
+
+        Map<String, Object> values = settings.asMap();
+        if (values != null) {
+            for (Map.Entry<String, Object> entry : new TreeMap<>(values).entrySet()) {
+                hasher.putString(entry.getKey(), Charsets.UTF_8);
+                hasher.putByte((byte) 0);
+                hasher.putString(String.valueOf(entry.getValue()), Charsets.UTF_8);
+                hasher.putByte((byte) 0);
+            }
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * An immutable copy of the settings this plan was compiled from, for
+     * {@link com.isroot.stash.plugin.checks.CommitCheck}s and {@link com.isroot.stash.plugin.checks.RefCheck}s
+     * added by other plugins that read their own settings.
+     */
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Return the part of the commit message that the message checks run against.
+     */
+    public CharSequence getCheckedMessage(YaccCommit commit) {
+        return messageWindow > 0 ? commit.getMessageChars(messageWindow) : commit.getMessageChars();
+    }
+
+    public boolean isRequireMatchingAuthorEmail() {
+        return requireMatchingAuthorEmail;
+    }
+
+    public boolean isRequireMatchingAuthorName() {
+        return requireMatchingAuthorName;
+    }
+
+    public boolean isExcludeMergeCommits() {
+        return excludeMergeCommits;
+    }
+
+    public boolean isExcludeServiceUserCommits() {
+        return excludeServiceUserCommits;
+    }
+
+    public boolean isRequireJiraIssue() {
+        return requireJiraIssue;
+    }
+
+    public boolean isIgnoreUnknownIssueProjectKeys() {
+        return ignoreUnknownIssueProjectKeys;
+    }
+
+    public boolean isRejectOversizedMessages() {
+        return rejectOversizedMessages;
+    }
+
+    public RegexEngine getRegexEngine() {
+        return regexEngine;
+    }
+
+    /**
+     * Characters of input each regex may read in one match before giving up, or 0 for no limit.
+     */
+    public int getRegexStepBudget() {
+        return regexStepBudget;
+    }
+
+    /**
+     * Whether a check whose regex gives up fails or passes.
+     */
+    public StepBudgetPolicy getStepBudgetPolicy() {
+        return stepBudgetPolicy;
+    }
+
+    @Nullable
+    public String getCommitMessageRegex() {
+        return commitMessageRegex;
+    }
+
+    /**
+     * Compiled commit message regex, with {@link YaccPattern#MULTILINE}, or null if not set.
+     */
+    @Nullable
+    public YaccPattern getCommitMessagePattern() {
+        return commitMessagePattern;
+    }
+
+    /**
+     * Compiled commit message regex used to find the group containing JIRA issues, or null if not set.
+     */
+    @Nullable
+    public YaccPattern getCommitMessageIssuePattern() {
+        return commitMessageIssuePattern;
+    }
+
+    @Nullable
+    public YaccPattern getExcludePattern() {
+        return excludePattern;
+    }
+
+    @Nullable
+    public String getBranchNameRegex() {
+        return branchNameRegex;
+    }
+
+    @Nullable
+    public YaccPattern getBranchNamePattern() {
+        return branchNamePattern;
+    }
+
+    /**
+     * Size in bytes of the start of each commit message that is checked, or 0 to check all of it.
+     */
+    public int getMessageWindow() {
+        return messageWindow;
+    }
+
+    @Nullable
+    public String getJiraApplicationLinkName() {
+        return jiraApplicationLinkName;
+    }
+
+    @Nullable
+    public String getIssueJqlMatcher() {
+        return issueJqlMatcher;
+    }
+
+    /**
+     * The only project keys that issue keys in commit messages are taken from, or null to take any.
+     */
+    @Nullable
+    public ProjectKeyTrie getIssueProjectKeys() {
+        return issueProjectKeys;
+    }
+
+    /**
+     * Large push limits, or null if there are none.
+     */
+    @Nullable
+    public LargePushPolicy getLargePushPolicy() {
+        return largePushPolicy;
+    }
+}
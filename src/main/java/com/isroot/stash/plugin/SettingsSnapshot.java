@@ -0,0 +1,123 @@
+package com.isroot.stash.plugin;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * Immutable copy of a {@link Settings}. A {@link RulePlan} is shared by every push under the same settings
+ * and outlives the push that compiled it, so it keeps a copy of the values rather than the settings object
+ * it was given.
+ */
+class SettingsSnapshot implements Settings {
+    private final Map<String, Object> values;
+
+    SettingsSnapshot(Settings settings) {
+        ImmutableMap.Builder<String, Object> builder = ImmutableMap.builder();
+
+        Map<String, Object> settingsValues = settings.asMap();
+        if (settingsValues != null) {
+            for (Map.Entry<String, Object> entry : settingsValues.entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    builder.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        values = builder.build();
+    }
+
+    @Nullable
+    @Override
+    public String getString(@Nonnull String key) {
+        Object value = values.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    @Nonnull
+    @Override
+    public String getString(@Nonnull String key, @Nonnull String defaultValue) {
+        String value = getString(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Nullable
+    @Override
+    public Boolean getBoolean(@Nonnull String key) {
+        Object value = values.get(key);
+        if (value == null || value instanceof Boolean) {
+            return (Boolean) value;
+        }
+
+        return Boolean.valueOf(value.toString());
+    }
+
+    @Override
+    public boolean getBoolean(@Nonnull String key, boolean defaultValue) {
+        Boolean value = getBoolean(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Nullable
+    @Override
+    public Integer getInt(@Nonnull String key) {
+        Object value = values.get(key);
+        if (value == null || value instanceof Number) {
+            return value == null ? null : ((Number) value).intValue();
+        }
+
+        return Ints.tryParse(value.toString().trim());
+    }
+
+    @Override
+    public int getInt(@Nonnull String key, int defaultValue) {
+        Integer value = getInt(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Nullable
+    @Override
+    public Long getLong(@Nonnull String key) {
+        Object value = values.get(key);
+        if (value == null || value instanceof Number) {
+            return value == null ? null : ((Number) value).longValue();
+        }
+
+        return Longs.tryParse(value.toString().trim());
+    }
+
+    @Override
+    public long getLong(@Nonnull String key, long defaultValue) {
+        Long value = getLong(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Nullable
+    @Override
+    public Double getDouble(@Nonnull String key) {
+        Object value = values.get(key);
+        if (value == null || value instanceof Number) {
+            return value == null ? null : ((Number) value).doubleValue();
+        }
+
+        return Doubles.tryParse(value.toString().trim());
+    }
+
+    @Override
+    public double getDouble(@Nonnull String key, double defaultValue) {
+        Double value = getDouble(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, Object> asMap() {
+        return values;
+    }
+}
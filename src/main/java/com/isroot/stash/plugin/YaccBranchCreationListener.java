@@ -11,11 +11,17 @@ import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.util.UncheckedOperation;
 import com.atlassian.event.api.EventListener;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.isroot.stash.plugin.cache.RulePlanCache;
 import com.isroot.stash.plugin.checks.BranchNameCheck;
+import com.isroot.stash.plugin.checks.CheckEvaluator;
+import com.isroot.stash.plugin.checks.CommitCheck;
+import com.isroot.stash.plugin.checks.RefCheck;
 import com.isroot.stash.plugin.errors.YaccError;
+import com.isroot.stash.plugin.regex.StepBudgetMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -29,13 +35,19 @@ public class YaccBranchCreationListener {
     private final SecurityService securityService;
     private final RepositoryHookService repositoryHookService;
     private final I18nService i18nService;
+    private final RulePlanCache rulePlanCache;
+    private final CheckEvaluator checkEvaluator;
 
     public YaccBranchCreationListener(PluginSettingsFactory pluginSettingsFactory, SecurityService securityService,
-            RepositoryHookService repositoryHookService, I18nService i18nService) {
+            RepositoryHookService repositoryHookService, I18nService i18nService, RulePlanCache rulePlanCache,
+            StepBudgetMetrics stepBudgetMetrics) {
         this.pluginSettingsFactory = pluginSettingsFactory;
         this.securityService = securityService;
         this.repositoryHookService = repositoryHookService;
         this.i18nService = i18nService;
+        this.rulePlanCache = rulePlanCache;
+        this.checkEvaluator = new CheckEvaluator(Collections.<CommitCheck>emptyList(),
+                Collections.<RefCheck>singletonList(new BranchNameCheck()), stepBudgetMetrics);
     }
 
     @EventListener
@@ -70,7 +82,7 @@ public class YaccBranchCreationListener {
         }
 
 
-        List<YaccError> errors = new BranchNameCheck(settings, event.getBranch().getId()).check();
+        List<YaccError> errors = checkEvaluator.checkRef(rulePlanCache.get(settings), event.getBranch().getId());
 
         if (!errors.isEmpty()) {
             event.cancel(i18nService.getKeyedText("invalidBranchName", errors.get(0).getMessage()));
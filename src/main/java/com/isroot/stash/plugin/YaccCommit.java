@@ -4,6 +4,12 @@ package com.isroot.stash.plugin;
  * Minimal metadata required to verify a commit.
  */
 public class YaccCommit {
+    /**
+     * Longest run of token characters that the end of a message window is moved back over, so an issue key
+     * isn't split between the window and the rest of the message.
+     */
+    protected static final int MAX_TOKEN_LENGTH = 256;
+
     /**
      * Construct a new commit instance.
      *
@@ -19,6 +25,29 @@ public class YaccCommit {
         this.parentCount = parentCount;
     }
 
+    /**
+     * Construct a commit whose message is only read, using {@link #loadMessage()}, the first time it is
+     * needed. Decoding a message is wasted work when no message check is enabled.
+     *
+     * @param id Commit ID (eg, Git hash).
+     * @param committer The committer.
+     * @param parentCount The number of parent commits listed in this commit.
+     */
+    protected YaccCommit(String id, YaccPerson committer, int parentCount) {
+        this.id = id;
+        this.committer = committer;
+        this.parentCount = parentCount;
+    }
+
+    /**
+     * Load the commit message for commits constructed without one.
+     *
+     * @return Git commit message.
+     */
+    protected String loadMessage() {
+        throw new IllegalStateException("commit " + id + " has no message");
+    }
+
     /**
      * sford: Removing the trailing newline is necessary after changing to JGit to get commit information to fix the
      * stash author name linking bug (see commit 3b5e8e0). The commit message returned by JGit has a trailing newline
@@ -58,9 +87,77 @@ public class YaccCommit {
      * @return Commit message.
      */
     public String getMessage() {
+        if (message == null) {
+            message = removeTrailingNewLine(loadMessage());
+        }
+
         return message;
     }
 
+    /**
+     * Return the commit message without copying it where possible. Implementations may return a view over
+     * the raw commit object, so callers that need to keep the message should use {@link #getMessage()}.
+     *
+     * @return Commit message.
+     */
+    public CharSequence getMessageChars() {
+        return getMessage();
+    }
+
+    /**
+     * Return true if the commit message is longer than {@code maxLength}. Implementations reading raw commit
+     * objects may count encoded bytes rather than characters.
+     *
+     * @param maxLength Size of the message window.
+     * @return True if part of the message is outside the window.
+     */
+    public boolean isMessageLongerThan(int maxLength) {
+        return getMessage().length() > maxLength;
+    }
+
+    /**
+     * Return the start of the commit message, at most {@code maxLength} long, like {@link #getMessageChars()}.
+     * Implementations reading raw commit objects only decode the part of the message that is returned.
+     *
+     * @param maxLength Size of the message window.
+     * @return Start of the commit message.
+     */
+    public CharSequence getMessageChars(int maxLength) {
+        CharSequence message = getMessageChars();
+        return message.length() > maxLength ? message.subSequence(0, getWindowEnd(message, maxLength)) : message;
+    }
+
+    /**
+     * Return the part of the commit message after the first {@code maxLength}, for scanning for ASCII tokens
+     * such as issue keys. Implementations reading raw commit objects return the raw bytes undecoded, where
+     * anything outside ASCII reads as some other non-ASCII character.
+     *
+     * @param maxLength Size of the message window.
+     * @return Rest of the commit message, empty if it fits in the window.
+     */
+    public CharSequence getMessageOverflow(int maxLength) {
+        CharSequence message = getMessageChars();
+        return message.length() > maxLength
+                ? message.subSequence(getWindowEnd(message, maxLength), message.length()) : "";
+    }
+
+    /**
+     * Return true for characters that can be part of an issue key or similar token.
+     */
+    protected static boolean isTokenChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
+    }
+
+    private static int getWindowEnd(CharSequence message, int maxLength) {
+        int windowEnd = maxLength;
+        while (windowEnd > maxLength - MAX_TOKEN_LENGTH && windowEnd > 0
+                && isTokenChar(message.charAt(windowEnd - 1)) && isTokenChar(message.charAt(windowEnd))) {
+            windowEnd--;
+        }
+
+        return windowEnd > maxLength - MAX_TOKEN_LENGTH && windowEnd > 0 ? windowEnd : maxLength;
+    }
+
     /**
      * Return the number of parent commits listed in this commit.
      *
@@ -72,6 +169,6 @@ public class YaccCommit {
 
     private final String id;
     private final YaccPerson committer;
-    private final String message;
+    private String message;
     private final int parentCount;
 }
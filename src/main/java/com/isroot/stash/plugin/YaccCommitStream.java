@@ -0,0 +1,31 @@
+package com.isroot.stash.plugin;
+
+import com.atlassian.bitbucket.repository.RefChange;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Lazily produced sequence of {@link YaccCommit}s. Commits are read from the repository as they are
+ * requested, so only the commit currently being checked needs to be held in memory.
+ *
+ * The stream must be closed once the caller is done with it, even if it was not read to the end.
+ */
+public interface YaccCommitStream extends Iterator<YaccCommit>, Closeable {
+    /**
+     * Return the {@link RefChange}s that the commit last returned by {@link #next()} is new to.
+     */
+    Collection<RefChange> getRefChanges();
+
+    /**
+     * Return where the stream has got to, just after the commit last returned by {@link #next()}, so a later
+     * stream can return the rest of it. Null if the stream can't be resumed.
+     */
+    @Nullable
+    ResumePoint getResumePoint();
+
+    @Override
+    void close();
+}
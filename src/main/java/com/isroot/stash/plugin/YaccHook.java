@@ -32,8 +32,8 @@ public final class YaccHook implements PreReceiveRepositoryHook {
     @Override
     public boolean onReceive(@Nonnull RepositoryHookContext repositoryHookContext,
                              @Nonnull Collection<RefChange> refChanges, @Nonnull HookResponse hookResponse) {
-        List<YaccError> errors = Lists.newArrayList();
         Settings settings = repositoryHookContext.getSettings();
+        List<RefChange> refChangesToCheck = Lists.newArrayList();
 
         for (RefChange rf : refChanges) {
             log.debug("checking ref change refId={} fromHash={} toHash={} type={}", rf.getRefId(), rf.getFromHash(),
@@ -67,10 +67,14 @@ public final class YaccHook implements PreReceiveRepositoryHook {
                 continue;
             }
 
-            for (YaccError e : yaccService.checkRefChange(repositoryHookContext.getRepository(),
-                    settings, rf)) {
-                errors.add(e.prependText(rf.getRefId()));
-            }
+            refChangesToCheck.add(rf);
+        }
+
+        // Check all ref changes together so commits shared between them are only checked once
+        List<YaccError> errors = Lists.newArrayList();
+        if (!refChangesToCheck.isEmpty()) {
+            errors.addAll(yaccService.checkRefChanges(repositoryHookContext.getRepository(), settings,
+                    refChangesToCheck));
         }
 
         if (errors.isEmpty()) {
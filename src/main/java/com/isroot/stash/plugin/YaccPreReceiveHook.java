@@ -89,6 +89,14 @@ public class YaccPreReceiveHook implements PreReceiveHook {
                 continue;
             }
 
+            // Large push, message window, regex, known project key and JGit storage settings only limit
+            // or tune the other checks, they don't check anything themselves
+            if(setting.getKey().startsWith("largePush") || setting.getKey().equals("commitMessageWindow")
+                    || setting.getKey().startsWith("regex") || setting.getKey().equals("issueProjectKeys")
+                    || setting.getKey().startsWith("jgit")) {
+                continue;
+            }
+
             if(setting.getValue() == null) {
                 continue;
             }
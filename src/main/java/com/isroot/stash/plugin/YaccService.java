@@ -5,6 +5,7 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.isroot.stash.plugin.errors.YaccError;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -14,4 +15,11 @@ import java.util.List;
 public interface YaccService {
     List<YaccError> checkRefChange(Repository repository, Settings settings,
             RefChange refChange);
+
+    /**
+     * Check all ref changes of a push together. Commits that are new to several ref changes are only checked
+     * once. Returned errors are prefixed with the ref id they apply to.
+     */
+    List<YaccError> checkRefChanges(Repository repository, Settings settings,
+            Collection<RefChange> refChanges);
 }
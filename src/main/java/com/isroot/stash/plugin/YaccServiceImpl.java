@@ -1,27 +1,40 @@
 package com.isroot.stash.plugin;
 
-import com.atlassian.applinks.api.CredentialsRequiredException;
 import com.atlassian.bitbucket.auth.AuthenticationContext;
 import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.user.ApplicationUser;
 import com.atlassian.bitbucket.user.UserType;
-import com.atlassian.sal.api.net.ResponseException;
+import com.atlassian.plugin.PluginAccessor;
 import com.atlassian.stash.scm.git.GitRefPattern;
 import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.cache.PushCheckpointCache;
+import com.isroot.stash.plugin.cache.RulePlanCache;
+import com.isroot.stash.plugin.cache.VerifiedCommitCache;
 import com.isroot.stash.plugin.checks.BranchNameCheck;
+import com.isroot.stash.plugin.checks.CheckEvaluator;
+import com.isroot.stash.plugin.checks.CommitCheck;
+import com.isroot.stash.plugin.checks.CommitMessageRegexCheck;
+import com.isroot.stash.plugin.checks.CommitterEmailCheck;
+import com.isroot.stash.plugin.checks.CommitterNameCheck;
+import com.isroot.stash.plugin.checks.JiraIssueCheck;
+import com.isroot.stash.plugin.checks.MessageSizeCheck;
+import com.isroot.stash.plugin.checks.RefCheck;
 import com.isroot.stash.plugin.errors.YaccError;
+import com.isroot.stash.plugin.regex.StepBudgetExceededException;
+import com.isroot.stash.plugin.regex.StepBudgetMetrics;
+import com.isroot.stash.plugin.regex.YaccPattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static com.google.common.base.Strings.isNullOrEmpty;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * @author Sean Ford
@@ -33,284 +46,340 @@ public class YaccServiceImpl implements YaccService {
 
     private final AuthenticationContext stashAuthenticationContext;
     private final CommitsService commitsService;
-    private final JiraService jiraService;
+    private final VerifiedCommitCache verifiedCommitCache;
+    private final PushCheckpointCache pushCheckpointCache;
+    private final RulePlanCache rulePlanCache;
+    private final PluginAccessor pluginAccessor;
+    private final StepBudgetMetrics stepBudgetMetrics;
+
+    private final List<CommitCheck> commitChecks;
+    private final List<RefCheck> refChecks;
 
     public YaccServiceImpl(AuthenticationContext stashAuthenticationContext, CommitsService commitsService,
-                           JiraService jiraService) {
+                           JiraService jiraService, VerifiedCommitCache verifiedCommitCache,
+                           PushCheckpointCache pushCheckpointCache, RulePlanCache rulePlanCache,
+                           PluginAccessor pluginAccessor, StepBudgetMetrics stepBudgetMetrics) {
         this.stashAuthenticationContext = stashAuthenticationContext;
         this.commitsService = commitsService;
-        this.jiraService = jiraService;
+        this.verifiedCommitCache = verifiedCommitCache;
+        this.pushCheckpointCache = pushCheckpointCache;
+        this.rulePlanCache = rulePlanCache;
+        this.pluginAccessor = pluginAccessor;
+        this.stepBudgetMetrics = stepBudgetMetrics;
+
+        commitChecks = Lists.newArrayList(new CommitterEmailCheck(), new CommitterNameCheck(),
+                new MessageSizeCheck(), new CommitMessageRegexCheck(), new JiraIssueCheck(jiraService));
+        refChecks = Lists.<RefCheck>newArrayList(new BranchNameCheck());
     }
 
     @Override
     public List<YaccError> checkRefChange(Repository repository, Settings settings, RefChange refChange) {
-        boolean isTag = refChange.getRefId().startsWith(GitRefPattern.TAGS.getPath());
-
         List<YaccError> errors = Lists.newArrayList();
+        RulePlan plan = rulePlanCache.get(settings);
+        List<CommitCheck> pluginCommitChecks = pluginAccessor.getEnabledModulesByClass(CommitCheck.class);
+        CheckEvaluator evaluator = getCheckEvaluator(pluginCommitChecks);
+
+        errors.addAll(evaluator.checkRef(plan, refChange.getRefId()));
 
-        errors.addAll(new BranchNameCheck(settings, refChange.getRefId()).check());
+        String fingerprint = getFingerprint(settings, pluginCommitChecks);
 
-        Set<YaccCommit> commits = commitsService.getNewCommits(repository, refChange);
+        try (YaccCommitStream commits = commitsService.streamNewCommits(repository, refChange)) {
+            while (commits.hasNext()) {
+                YaccCommit commit = commits.next();
 
-        for (YaccCommit commit : commits) {
-            for(YaccError e : checkCommit(settings, commit, !isTag)) {
-                errors.add(e.prependText(commit.getId()));
+                for(YaccError e : checkCommit(evaluator, plan, commit, !isTag(refChange), fingerprint)) {
+                    errors.add(e.prependText(commit.getId()));
+                }
             }
         }
 
         return errors;
     }
 
-    private List<YaccError> checkCommit(Settings settings, YaccCommit commit, boolean checkMessages) {
-        log.debug("checking commit id={} name={} email={} message={}", commit.getId(),
-                commit.getCommitter().getName(), commit.getCommitter().getEmailAddress(),
-                commit.getMessage());
+    @Override
+    public List<YaccError> checkRefChanges(Repository repository, Settings settings,
+                                           Collection<RefChange> refChanges) {
+        Map<RefChange, List<YaccError>> errorsByRef = new LinkedHashMap<>();
+        RulePlan plan = rulePlanCache.get(settings);
+        List<CommitCheck> pluginCommitChecks = pluginAccessor.getEnabledModulesByClass(CommitCheck.class);
+        CheckEvaluator evaluator = getCheckEvaluator(pluginCommitChecks);
+
+        for (RefChange refChange : refChanges) {
+            errorsByRef.put(refChange, evaluator.checkRef(plan, refChange.getRefId()));
+        }
 
-        List<YaccError> errors = Lists.newArrayList();
+        String fingerprint = getFingerprint(settings, pluginCommitChecks);
+
+        LargePushPolicy largePushPolicy = plan.getLargePushPolicy();
+        String checkpointKey = largePushPolicy != null && fingerprint != null
+                ? PushCheckpointCache.key(repository, fingerprint, refChanges) : null;
+        PushCheckpointCache.Checkpoint checkpoint = checkpointKey != null ? pushCheckpointCache.get(checkpointKey)
+                : null;
+
+        // Commits before the checkpoint were dealt with by an earlier attempt at this push, the stream carries
+        // on after them and the large push limits carry on counting from them
+        int index = checkpoint != null ? checkpoint.getCommits() : 0;
+        int checked = checkpoint != null ? checkpoint.getChecked() : 0;
+        int attemptStart = index;
+        long timeLimitStart = System.currentTimeMillis();
+
+        boolean bounded = false;
+        boolean failed = false;
+        boolean stopped = false;
+        boolean timedOut = false;
+        ResumePoint resumePoint = null;
+        Deque<StreamedCommit> lastCommits = new ArrayDeque<>();
+
+        try (YaccCommitStream commits = commitsService.streamNewCommits(repository, refChanges,
+                areMergeCommitsIgnored(plan, pluginCommitChecks), plan.getMessageWindow(),
+                checkpoint != null ? checkpoint.getResumePoint() : null)) {
+            while (true) {
+                // Every attempt gets through at least one commit, so pushing again always makes progress
+                if (largePushPolicy != null && index > attemptStart
+                        && largePushPolicy.isTimeLimitReached(System.currentTimeMillis() - timeLimitStart)) {
+                    log.info("large push to {}: {} commits streamed, stopping after {} seconds", repository,
+                            index, largePushPolicy.getTimeLimitSeconds());
+                    timedOut = true;
+                    break;
+                }
 
-        ApplicationUser stashUser = stashAuthenticationContext.getCurrentUser();
+                if (!commits.hasNext()) {
+                    break;
+                }
 
-        if (stashUser == null) {
-            // This should never happen
-            log.warn("Unauthenticated user is committing - skipping committer validate checks");
-        } else {
-            // Only validate 'normal' users - service users like
-            // the ssh access keys use the key comment as the 'name' and don't have emails
-            // Neither of these are useful to validate, so just skip them
-            if (stashUser.getType() == UserType.NORMAL) {
-                errors.addAll(checkCommitterEmail(settings, commit, stashUser));
-                errors.addAll(checkCommitterName(settings, commit, stashUser));
-            }
-        }
+                StreamedCommit commit = new StreamedCommit(commits.next(), commits.getRefChanges());
+                int position = index++;
 
-        if(checkMessages && !isCommitExcluded(settings, commit)) {
-            errors.addAll(checkCommitMessageRegex(settings, commit));
+                if (largePushPolicy != null && !bounded && largePushPolicy.isCommitLimitReached(position)) {
+                    log.info("large push to {}: {} commits checked, switching to {} mode", repository,
+                            position, largePushPolicy.getMode());
+                    bounded = true;
+                }
 
-            // Checking JIRA issues might be dependent on the commit message regex, so only proceed if there are no errors.
-            if (errors.isEmpty()) {
-                errors.addAll(checkJiraIssues(settings, commit));
-            }
-        }
+                if (bounded && largePushPolicy.getMode() == LargePushPolicy.Mode.SAMPLE
+                        && !largePushPolicy.isSampled(position)) {
+                    continue;
+                }
 
-        return errors;
-    }
+                if (bounded && largePushPolicy.getMode() == LargePushPolicy.Mode.FIRST_LAST) {
+                    // Only the last commits are checked, so only they are kept
+                    lastCommits.addLast(commit);
+                    if (lastCommits.size() > largePushPolicy.getEdgeCount()) {
+                        lastCommits.removeFirst();
+                    }
+                    continue;
+                }
 
-    private boolean isCommitExcluded(Settings settings, YaccCommit commit) {
-        // Exclude Merge Commit setting
-        if(settings.getBoolean("excludeMergeCommits", false) && commit.getParentCount() > 1) {
-            log.debug("skipping commit {} because it is a merge commit", commit.getId());
+                failed |= !checkStreamedCommit(evaluator, plan, commit, fingerprint, errorsByRef);
+                checked++;
 
-            return true;
-        }
-
-        // Exclude by Service User setting
-        ApplicationUser stashUser = stashAuthenticationContext.getCurrentUser();
-        if (settings.getBoolean("excludeServiceUserCommits", false) && stashUser.getType() == UserType.SERVICE) {
-            return true;
-        }
+                if (failed && bounded && largePushPolicy.getMode() == LargePushPolicy.Mode.FIRST_VIOLATION) {
+                    stopped = true;
+                    break;
+                }
+            }
 
-        // Exclude by Regex setting
-        String excludeRegex = settings.getString("excludeByRegex");
+            // Commits kept back for the end of the push are checked before stopping, so a checkpoint can pass
+            // over them
+            for (StreamedCommit commit : lastCommits) {
+                failed |= !checkStreamedCommit(evaluator, plan, commit, fingerprint, errorsByRef);
+                checked++;
+            }
 
-        if(excludeRegex != null && !excludeRegex.isEmpty()) {
-            Pattern pattern = Pattern.compile(excludeRegex);
-            Matcher matcher = pattern.matcher(commit.getMessage());
-            if(matcher.find()) {
-                return true;
+            if (timedOut && !failed) {
+                resumePoint = commits.getResumePoint();
             }
         }
 
-        return false;
-    }
+        if (checkpointKey != null) {
+            if (resumePoint != null) {
+                pushCheckpointCache.put(checkpointKey, index, checked, resumePoint);
+            } else {
+                pushCheckpointCache.remove(checkpointKey);
+            }
+        }
 
-    private List<YaccError> checkCommitMessageRegex(Settings settings, YaccCommit commit) {
         List<YaccError> errors = Lists.newArrayList();
-
-        String regex = settings.getString("commitMessageRegex");
-        if(isNullOrEmpty(regex) == false) {
-            Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE);
-            Matcher matcher = pattern.matcher(commit.getMessage());
-            if(matcher.matches() == false) {
-                errors.add(new YaccError(YaccError.Type.COMMIT_REGEX,
-                        "commit message doesn't match regex: " + regex));
+        for (Map.Entry<RefChange, List<YaccError>> entry : errorsByRef.entrySet()) {
+            for (YaccError e : entry.getValue()) {
+                errors.add(e.prependText(entry.getKey().getRefId()));
             }
         }
 
+        if (timedOut && !failed) {
+            errors.add(new YaccError(String.format("large push: checking stopped after %d seconds, "
+                    + "push again to check the remaining commits", largePushPolicy.getTimeLimitSeconds())));
+        } else if (timedOut) {
+            errors.add(new YaccError(String.format("large push: checking stopped after %d seconds, "
+                    + "later commits were not checked", largePushPolicy.getTimeLimitSeconds())));
+        } else if (!errors.isEmpty() && stopped) {
+            errors.add(new YaccError("large push: checking stopped at the first rejected commit, "
+                    + "later commits were not checked"));
+        } else if (!errors.isEmpty() && bounded) {
+            errors.add(new YaccError(String.format("large push: only %d of %d new commits were checked",
+                    checked, index)));
+        }
+
         return errors;
     }
 
-    private List<IssueKey> extractJiraIssuesFromCommitMessage(Settings settings, YaccCommit commit) {
-        String message = commit.getMessage();
-
-        // If a commit message regex is present, see if it contains a group 1 that can be used to located JIRA issues.
-        // If not, just ignore it.
-        String regex = settings.getString("commitMessageRegex");
-        if(isNullOrEmpty(regex) == false) {
-            Pattern pattern = Pattern.compile(regex);
-            Matcher matcher = pattern.matcher(message);
-            if(matcher.matches() && matcher.groupCount() > 0) {
-                message = matcher.group(1);
+    /**
+     * Check a commit from the stream, adding its errors to every ref it is new to. Return true if it passed.
+     */
+    private boolean checkStreamedCommit(CheckEvaluator evaluator, RulePlan plan, StreamedCommit streamedCommit,
+                                        String fingerprint, Map<RefChange, List<YaccError>> errorsByRef) {
+        YaccCommit commit = streamedCommit.commit;
+
+        // Messages are checked if any branch brings the commit in, tags alone don't
+        boolean checkMessages = false;
+        for (RefChange refChange : streamedCommit.refChanges) {
+            checkMessages |= !isTag(refChange);
+        }
+
+        List<YaccError> commitErrors = checkCommit(evaluator, plan, commit, checkMessages, fingerprint);
+
+        for (RefChange refChange : streamedCommit.refChanges) {
+            for (YaccError e : commitErrors) {
+                errorsByRef.get(refChange).add(e.prependText(commit.getId()));
             }
         }
 
-        final List<IssueKey> issueKeys = IssueKey.parseIssueKeys(message);
-        log.debug("found jira issues {} from commit message: {}", issueKeys, message);
+        return commitErrors.isEmpty();
+    }
 
-        return issueKeys;
+    private boolean isTag(RefChange refChange) {
+        return refChange.getRefId().startsWith(GitRefPattern.TAGS.getPath());
     }
 
-    private List<YaccError> checkJiraIssues(Settings settings, YaccCommit commit) {
-        if (!settings.getBoolean("requireJiraIssue", false)) {
-            return Lists.newArrayList();
-        }
+    /**
+     * Checks added by other plugins run alongside the built in checks, cheapest first.
+     */
+    private CheckEvaluator getCheckEvaluator(List<CommitCheck> pluginCommitChecks) {
+        List<CommitCheck> allCommitChecks = Lists.newArrayList(commitChecks);
+        allCommitChecks.addAll(pluginCommitChecks);
 
-        List<YaccError> errors = Lists.newArrayList();
+        List<RefCheck> allRefChecks = Lists.newArrayList(refChecks);
+        allRefChecks.addAll(pluginAccessor.getEnabledModulesByClass(RefCheck.class));
 
-        String jiraApplicationLinkName = settings.getString("jiraApplicationLinkName");
+        return new CheckEvaluator(allCommitChecks, allRefChecks, stepBudgetMetrics);
+    }
 
-        if (jiraApplicationLinkName != null && !jiraApplicationLinkName.isEmpty()){
-            jiraService.doesJiraApplicationLinkExist(jiraApplicationLinkName);
-        }
-        else if (!jiraService.doesJiraApplicationLinkExist()) {
-            errors.add(new YaccError(String.format("Unable to verify JIRA issue because JIRA Application Link does not exist")));
-            return errors;
+    /**
+     * Merge commits are ignored entirely when they are excluded from message checks and no committer
+     * check or other plugin's commit check would run, so they don't need to be read at all.
+     */
+    private boolean areMergeCommitsIgnored(RulePlan plan, List<CommitCheck> pluginCommitChecks) {
+        if (!plan.isExcludeMergeCommits()) {
+            return false;
         }
 
-        final List<IssueKey> issues;
-        try {
-            final List<IssueKey> extractedKeys = extractJiraIssuesFromCommitMessage(settings, commit);
-            if (settings.getBoolean("ignoreUnknownIssueProjectKeys", false)) {
-                /* Remove issues that contain non-existent project keys */
-                issues = Lists.newArrayList();
-                for (IssueKey issueKey : extractedKeys) {
-                    if (jiraService.doesProjectExist(issueKey.getProjectKey())) {
-                        issues.add(issueKey);
-                    }
-                }
-            } else {
-                issues = extractedKeys;
+        for (CommitCheck check : pluginCommitChecks) {
+            if (!check.isMessageCheck()) {
+                return false;
             }
-        } catch(CredentialsRequiredException e) {
-            log.error("communication error while validating issues", e);
-            errors.add(new YaccError(String.format("Unable to validate JIRA issue because there was an authentication failure when communicating with JIRA.")));
-            errors.add(new YaccError(String.format("To authenticate, visit %s in a web browser.", e.getAuthorisationURI().toASCIIString())));
-            return errors;
-        } catch(ResponseException e) {
-            log.error("unexpected exception while trying to validate JIRA issues", e);
-            errors.add(new YaccError(String.format("Unable to validate JIRA issues due to an unexpected exception. Please see stack trace in logs.")));
-            return errors;
         }
 
-        if(issues.isEmpty() == false) {
-            for(IssueKey issueKey : issues) {
-                errors.addAll(checkJiraIssue(settings, issueKey));
-            }
-        } else {
-            errors.add(new YaccError(String.format("No JIRA Issue found in commit message.")));
+        ApplicationUser stashUser = stashAuthenticationContext.getCurrentUser();
+        if (stashUser == null || stashUser.getType() != UserType.NORMAL) {
+            return true;
         }
 
-        return errors;
+        return !plan.isRequireMatchingAuthorEmail() && !plan.isRequireMatchingAuthorName();
     }
 
-    private List<YaccError> checkJiraIssue(Settings settings, IssueKey issueKey) {
-        List<YaccError> errors = Lists.newArrayList();
+    /**
+     * Fingerprint of the rules the current user's commits are checked against, or null if verdicts can't be
+     * cached. Enabling or disabling another plugin's commit check changes the rules, so their classes are
+     * part of it.
+     */
+    private String getFingerprint(Settings settings, List<CommitCheck> pluginCommitChecks) {
+        ApplicationUser stashUser = stashAuthenticationContext.getCurrentUser();
+        if (stashUser == null) {
+            return null;
+        }
 
-        try {
-            if (!jiraService.doesIssueExist(issueKey)) {
-                errors.add(new YaccError(String.format("%s: JIRA Issue does not exist", issueKey.getFullyQualifiedIssueKey())));
-            } else {
-                String jqlQuery = settings.getString("issueJqlMatcher");
-                if (jqlQuery != null && !jqlQuery.isEmpty()) {
-                    if (!jiraService.doesIssueMatchJqlQuery(jqlQuery, issueKey)) {
-                        errors.add(new YaccError(YaccError.Type.ISSUE_JQL,
-                                String.format("%s: JIRA Issue does not match JQL Query: %s", issueKey, jqlQuery)));
-                    }
-                }
-            }
-        } catch(CredentialsRequiredException e) {
-            errors.add(new YaccError(String.format("%s: Unable to validate JIRA issue because there was an authentication failure when communicating with JIRA.", issueKey.getFullyQualifiedIssueKey())));
-            errors.add(new YaccError(String.format("To authenticate, visit %s in a web browser.", e.getAuthorisationURI().toASCIIString())));
-        } catch(ResponseException e) {
-            if (e.getCause() instanceof CredentialsRequiredException) {
-                CredentialsRequiredException cred = (CredentialsRequiredException)e.getCause();
-                errors.add(new YaccError(String.format("%s: Unable to validate JIRA issue because there was an authentication failure when communicating with JIRA.", issueKey.getFullyQualifiedIssueKey())));
-                errors.add(new YaccError(String.format("To authenticate, visit %s in a web browser.", cred.getAuthorisationURI().toASCIIString())));
-            } else {
-                log.error("unexpected exception while trying to validate JIRA issue", e);
-                errors.add(new YaccError(String.format("%s: Unable to validate JIRA issue due to an unexpected exception. Please see stack trace in logs.", issueKey.getFullyQualifiedIssueKey())));
-            }
+        String fingerprint = VerifiedCommitCache.fingerprint(settings, stashUser);
+        if (pluginCommitChecks.isEmpty()) {
+            return fingerprint;
         }
 
-        return errors;
+        return fingerprint + pluginCommitChecks.stream()
+                .map(check -> check.getClass().getName())
+                .sorted()
+                .collect(Collectors.joining(",", "+", ""));
     }
 
-    private List<YaccError> checkCommitterEmail(@Nonnull Settings settings, @Nonnull YaccCommit commit, @Nonnull ApplicationUser stashUser) {
-        final boolean requireMatchingAuthorEmail = settings.getBoolean("requireMatchingAuthorEmail", false);
+    private List<YaccError> checkCommit(CheckEvaluator evaluator, RulePlan plan, YaccCommit commit,
+                                        boolean checkMessages, String fingerprint) {
+        if (fingerprint != null && verifiedCommitCache.isVerified(commit.getId(), fingerprint, checkMessages)) {
+            log.debug("skipping commit {} because it has already been verified", commit.getId());
 
-        List<YaccError> errors = Lists.newArrayList();
+            return Lists.newArrayList();
+        }
 
-        // while the email address is not marked as @Nullable, its not @Notnull either
-        // For service users it can be null, and while those have already been
-        // excluded, add a sanity check anyway
+        List<YaccError> errors = checkCommit(evaluator, plan, commit, checkMessages);
 
-        if (stashUser.getEmailAddress() == null) {
-            log.warn("stash user has null email address - skipping email validation");
-            return errors;
+        if (fingerprint != null && errors.isEmpty()) {
+            verifiedCommitCache.markVerified(commit.getId(), fingerprint, checkMessages);
         }
 
-        log.debug("requireMatchingAuthorEmail={} authorEmail={} stashEmail={}", requireMatchingAuthorEmail, commit.getCommitter().getEmailAddress(),
-                stashUser.getEmailAddress());
+        return errors;
+    }
 
-        if (requireMatchingAuthorEmail && !commit.getCommitter().getEmailAddress().toLowerCase().equals(stashUser.getEmailAddress().toLowerCase())) {
-            errors.add(new YaccError(YaccError.Type.COMMITTER_EMAIL,
-                    String.format("expected committer email '%s' but found '%s'", stashUser.getEmailAddress(),
-                    commit.getCommitter().getEmailAddress())));
+    private List<YaccError> checkCommit(CheckEvaluator evaluator, RulePlan plan, YaccCommit commit,
+                                        boolean checkMessages) {
+        // The message isn't logged here, reading it would decode it even when no message check is enabled
+        log.debug("checking commit id={} name={} email={}", commit.getId(),
+                commit.getCommitter().getName(), commit.getCommitter().getEmailAddress());
+
+        ApplicationUser stashUser = stashAuthenticationContext.getCurrentUser();
+
+        if (stashUser == null) {
+            // This should never happen
+            log.warn("Unauthenticated user is committing - skipping committer validate checks");
         }
 
-        return errors;
+        return evaluator.checkCommit(plan, commit, stashUser, checkMessages && !isCommitExcluded(plan, commit));
     }
 
-    private List<YaccError> checkCommitterName(@Nonnull Settings settings, @Nonnull YaccCommit commit, @Nonnull ApplicationUser stashUser) {
-        final boolean requireMatchingAuthorName = settings.getBoolean("requireMatchingAuthorName", false);
+    private boolean isCommitExcluded(RulePlan plan, YaccCommit commit) {
+        // Exclude Merge Commit setting
+        if(plan.isExcludeMergeCommits() && commit.getParentCount() > 1) {
+            log.debug("skipping commit {} because it is a merge commit", commit.getId());
 
-        List<YaccError> errors = Lists.newArrayList();
+            return true;
+        }
 
-        log.debug("requireMatchingAuthorName={} authorName={} stashName={}", requireMatchingAuthorName, commit.getCommitter().getName(),
-                stashUser.getDisplayName());
+        // Exclude by Service User setting
+        ApplicationUser stashUser = stashAuthenticationContext.getCurrentUser();
+        if (plan.isExcludeServiceUserCommits() && stashUser.getType() == UserType.SERVICE) {
+            return true;
+        }
 
-        String name = removeGitCrud(stashUser.getDisplayName());
+        // Exclude by Regex setting
+        YaccPattern pattern = plan.getExcludePattern();
 
-        if (requireMatchingAuthorName && !commit.getCommitter().getName().equalsIgnoreCase(name)) {
-            errors.add(new YaccError(YaccError.Type.COMMITTER_NAME,
-                    String.format("expected committer name '%s' but found '%s'", name,
-                    commit.getCommitter().getName())));
+        if(pattern != null) {
+            try {
+                if(pattern.find(plan.getCheckedMessage(commit))) {
+                    return true;
+                }
+            } catch (StepBudgetExceededException e) {
+                // Whatever the policy, a commit the regex gave up on still has to pass the message checks
+                stepBudgetMetrics.recordExceeded(e);
+            }
         }
 
-        return errors;
+        return false;
     }
 
-    /**
-     * Remove special characters and "crud" from name. This works around a git issue where it
-     * allows these characters in user.name but will strip them out when doing a commit. Leaving
-     * these characters breaks YACC name matching because Stash will provide the Stash user's name
-     * with these characters, however, they will never appear in the commit so author name will
-     * never match.
-     *
-     * See strbuf_addstr_without_crud() in git's ident.c.
-     * Link: https://github.com/git/git/blob/master/ident.c#L155 (current as of 2014-10-06).
-     */
-    private String removeGitCrud(String name) {
-        if(name != null) {
-            // remove special characters
-            name = name.replaceAll("[<>\n]", "");
-
-            // remove leading crud
-            name = name.replaceAll("^[\\\\.,:;\"']*", "");
+    private static class StreamedCommit {
+        private final YaccCommit commit;
+        private final Collection<RefChange> refChanges;
 
-            // remove trailing crud
-            name = name.replaceAll("[\\\\.,:;\"']*$", "");
+        private StreamedCommit(YaccCommit commit, Collection<RefChange> refChanges) {
+            this.commit = commit;
+            this.refChanges = refChanges;
         }
-
-        return name;
     }
 }
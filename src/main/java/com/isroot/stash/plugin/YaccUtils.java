@@ -23,8 +23,11 @@ public class YaccUtils {
         return repositoryHookService.createSettingsBuilder().addAll(config).build();
     }
 
+    /**
+     * Return the global YACC settings as saved by {@link YaccConfigServlet}, or an empty map if there are none.
+     */
     @SuppressWarnings("unchecked")
-    private static Map<String, Object> getSettingsMap(PluginSettingsFactory pluginSettingsFactory) {
+    public static Map<String, Object> getSettingsMap(PluginSettingsFactory pluginSettingsFactory) {
         PluginSettings pluginSettings = pluginSettingsFactory.createGlobalSettings();
 
         Map<String, Object> settingsMap = (HashMap<String, Object>) pluginSettings.get(YaccConfigServlet.SETTINGS_MAP);
@@ -0,0 +1,102 @@
+package com.isroot.stash.plugin.cache;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.isroot.stash.plugin.ResumePoint;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers how far a large push got before its checks were cut short, so that retrying the same push
+ * resumes where the last attempt stopped instead of spending its whole budget on the same commits again.
+ *
+ * A checkpoint is where the push's commit stream had got to, with every commit before it checked and
+ * passed. Pushing again streams only the commits after it, and the large push limits carry on counting
+ * from the commits already streamed.
+ */
+public class PushCheckpointCache {
+    private static final int MAX_CHECKPOINTS = 1000;
+
+    private final Cache<String, Checkpoint> checkpoints = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CHECKPOINTS)
+            .expireAfterWrite(1, TimeUnit.DAYS)
+            .build();
+
+    /**
+     * Key identifying a push: the same ref changes to the same repository, checked under the same
+     * fingerprint (see {@link VerifiedCommitCache#fingerprint}).
+     */
+    public static String key(Repository repository, String fingerprint, Collection<RefChange> refChanges) {
+        List<String> changes = new ArrayList<>();
+        for (RefChange refChange : refChanges) {
+            changes.add(refChange.getRefId() + " " + refChange.getFromHash() + " " + refChange.getToHash());
+        }
+        Collections.sort(changes);
+
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putInt(repository.getId());
+        hasher.putString(fingerprint, Charsets.UTF_8);
+        for (String change : changes) {
+            hasher.putByte((byte) 0);
+            hasher.putString(change, Charsets.UTF_8);
+        }
+
+        return hasher.hash().toString();
+    }
+
+    @Nullable
+    public Checkpoint get(String key) {
+        return checkpoints.getIfPresent(key);
+    }
+
+    public void put(String key, int commits, int checked, ResumePoint resumePoint) {
+        checkpoints.put(key, new Checkpoint(commits, checked, resumePoint));
+    }
+
+    public void remove(String key) {
+        checkpoints.invalidate(key);
+    }
+
+    public static class Checkpoint {
+        private final int commits;
+        private final int checked;
+        private final ResumePoint resumePoint;
+
+        private Checkpoint(int commits, int checked, ResumePoint resumePoint) {
+            this.commits = commits;
+            this.checked = checked;
+            this.resumePoint = resumePoint;
+        }
+
+        /**
+         * Number of commits streamed before the checkpoint.
+         */
+        public int getCommits() {
+            return commits;
+        }
+
+        /**
+         * Number of those commits that were checked, the rest having been left out by the large push mode.
+         */
+        public int getChecked() {
+            return checked;
+        }
+
+        /**
+         * Where the commit stream carries on from.
+         */
+        public ResumePoint getResumePoint() {
+            return resumePoint;
+        }
+    }
+}
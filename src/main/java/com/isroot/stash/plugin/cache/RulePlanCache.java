@@ -0,0 +1,35 @@
+package com.isroot.stash.plugin.cache;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.isroot.stash.plugin.RulePlan;
+
+/**
+ * Compiled {@link RulePlan}s keyed by the content of the settings they were compiled from, so repositories
+ * with the same hook settings, and every push under the global settings, share one plan. Settings that
+ * change simply hash to a new key; plans for settings no longer in use are evicted.
+ */
+public class RulePlanCache {
+    private static final int MAX_PLANS = 100;
+
+    private final Cache<String, RulePlan> plans = CacheBuilder.newBuilder()
+            .maximumSize(MAX_PLANS)
+            .build();
+
+    /**
+     * Return the plan for {@code settings}, compiling it if these settings haven't been seen before.
+     */
+    public RulePlan get(Settings settings) {
+        String key = RulePlan.contentHash(settings);
+
+        RulePlan plan = plans.getIfPresent(key);
+        if (plan == null) {
+            // Two pushes may both compile a new plan, they are identical so either can win
+            plan = RulePlan.compile(settings);
+            plans.put(key, plan);
+        }
+
+        return plan;
+    }
+}
@@ -0,0 +1,342 @@
+package com.isroot.stash.plugin.cache;
+
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.bitbucket.setting.Settings;
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Disk backed set of commits that have already passed every check.
+ *
+ * Entries are keyed by a SHA-1 of the commit id and a fingerprint of the effective hook settings, plus the
+ * pushing user when the settings check the committer, so a commit is only skipped when it was verified under
+ * identical rules. Changing the hook settings changes the fingerprint, which makes every earlier entry
+ * unreachable without having to clear anything. Commit verdicts don't depend on the repository, so they are
+ * shared by every repository on the server, including the other repositories of a fork network.
+ *
+ * Only commits that were themselves checked are recorded. A pushed branch tip says nothing about the history
+ * behind it that was already in the repository, which may predate the hook or have been pushed under other
+ * settings, so tips are never recorded as covering their history.
+ *
+ * Keys are stored in an open addressing hash table in a memory-mapped file. An in-memory Bloom filter built
+ * from the table answers most lookups for unknown commits without touching the file. The table is cleared
+ * once it is three quarters full, which keeps the file at a fixed size.
+ *
+ * Every hook on the server goes through the one table, so lookups don't exclude each other. The Bloom filter
+ * is checked without any lock, and only a lookup it can't rule out takes the table's read lock. Adding an
+ * entry takes the write lock.
+ *
+ * Only passing verdicts are stored. Rejected commits are always checked again so their errors can be
+ * reported.
+ */
+public class VerifiedCommitCache {
+    private static final Logger log = LoggerFactory.getLogger(VerifiedCommitCache.class);
+
+    static final int DEFAULT_CAPACITY = 1 << 18;
+
+    private static final int MAGIC = 0x59414343;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int KEY_SIZE = 20;
+    private static final int BLOOM_HASHES = 4;
+
+    private final int capacity;
+    private final AtomicLongArray bloom;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The table and its entry count, guarded by {@link #lock}. */
+    private MappedByteBuffer table;
+    private int count;
+
+    public VerifiedCommitCache(ApplicationPropertiesService applicationPropertiesService) {
+        this(new File(applicationPropertiesService.getHomeDir(), "caches/yacc/verified-commits.bin"),
+                DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param file file to store the table in, created if it doesn't exist
+     * @param capacity number of slots in the table, must be a power of two
+     */
+    public VerifiedCommitCache(File file, int capacity) {
+        this.capacity = capacity;
+        this.bloom = new AtomicLongArray(capacity / 8);
+
+        try {
+            open(file);
+        } catch (IOException e) {
+            // The cache is an optimisation only, run every check if it is unavailable
+            log.warn("unable to open verified commit cache {}, commits will always be checked", file, e);
+            table = null;
+        }
+    }
+
+    /**
+     * Fingerprint the settings and user that a verdict depends on. The result is passed to
+     * {@link #isVerified} and {@link #markVerified}, so it only needs computing once per push.
+     *
+     * Unset, empty and disabled settings are left out, so a repository's hook settings and the global
+     * settings fingerprint the same when they enable the same checks. So are settings that don't decide
+     * whether a commit passes. The user is only included when a setting makes the checks depend on who is
+     * pushing.
+     */
+    public static String fingerprint(Settings settings, ApplicationUser user) {
+        Hasher hasher = Hashing.sha1().newHasher();
+
+        Map<String, Object> values = settings.asMap();
+        if (values != null) {
+            for (Map.Entry<String, Object> entry : new TreeMap<>(values).entrySet()) {
+                String value = entry.getValue() == null ? "" : String.valueOf(entry.getValue());
+                if (value.isEmpty() || value.equalsIgnoreCase("false")
+                        || entry.getKey().startsWith("errorMessage") || entry.getKey().startsWith("largePush")
+                        || entry.getKey().startsWith("jgit")) {
+                    continue;
+                }
+
+                putString(hasher, entry.getKey());
+                putString(hasher, value);
+            }
+        }
+
+        boolean committerChecks = settings.getBoolean("requireMatchingAuthorEmail", false)
+                || settings.getBoolean("requireMatchingAuthorName", false);
+
+        if (committerChecks || settings.getBoolean("excludeServiceUserCommits", false)) {
+            putString(hasher, String.valueOf(user.getType()));
+        }
+
+        if (committerChecks) {
+            putString(hasher, user.getName());
+            putString(hasher, user.getEmailAddress());
+            putString(hasher, user.getDisplayName());
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Return true if the commit has already passed every check under the given fingerprint.
+     */
+    public boolean isVerified(String commitId, String fingerprint, boolean checkMessages) {
+        return contains(key(commitId, fingerprint, checkMessages));
+    }
+
+    /**
+     * Record that the commit passed every check under the given fingerprint.
+     */
+    public void markVerified(String commitId, String fingerprint, boolean checkMessages) {
+        add(key(commitId, fingerprint, checkMessages));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        lock.writeLock().lock();
+        try {
+            if (table != null) {
+                table.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean contains(byte[] key) {
+        if (!bloomContains(key)) {
+            return false;
+        }
+
+        lock.readLock().lock();
+        try {
+            return table != null && findSlot(key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(byte[] key) {
+        if (contains(key)) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            // Another hook may have added it since
+            if (table == null || findSlot(key) >= 0) {
+                return;
+            }
+
+            if (count >= capacity / 4 * 3) {
+                log.debug("verified commit cache is full, clearing {} entries", count);
+                clear();
+            }
+
+            int slot = slotFor(key);
+            while (!isEmpty(slot)) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+
+            table.position(offset(slot));
+            table.put(key);
+            count++;
+            table.putInt(12, count);
+
+            bloomAdd(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void open(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create " + dir);
+        }
+
+        long size = HEADER_SIZE + (long) capacity * KEY_SIZE;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean existing = raf.length() == size;
+            raf.setLength(size);
+
+            // The mapping stays valid after the channel is closed
+            table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            if (!existing || table.getInt(0) != MAGIC || table.getInt(4) != VERSION
+                    || table.getInt(8) != capacity) {
+                clear();
+                return;
+            }
+        }
+
+        for (int slot = 0; slot < capacity; slot++) {
+            if (!isEmpty(slot)) {
+                byte[] key = new byte[KEY_SIZE];
+                table.position(offset(slot));
+                table.get(key);
+
+                bloomAdd(key);
+                count++;
+            }
+        }
+
+        log.debug("loaded {} verified commits from {}", count, file);
+    }
+
+    private void clear() {
+        table.clear();
+        while (table.hasRemaining()) {
+            table.put((byte) 0);
+        }
+
+        table.putInt(0, MAGIC);
+        table.putInt(4, VERSION);
+        table.putInt(8, capacity);
+        table.putInt(12, 0);
+
+        count = 0;
+        for (int i = 0; i < bloom.length(); i++) {
+            bloom.set(i, 0);
+        }
+    }
+
+    private int findSlot(byte[] key) {
+        for (int slot = slotFor(key), probes = 0; probes < capacity; slot = (slot + 1) & (capacity - 1), probes++) {
+            if (isEmpty(slot)) {
+                return -1;
+            }
+
+            if (keyEquals(slot, key)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private int slotFor(byte[] key) {
+        return readInt(key, 0) & (capacity - 1);
+    }
+
+    private boolean isEmpty(int slot) {
+        int offset = offset(slot);
+        return table.getLong(offset) == 0 && table.getLong(offset + 8) == 0 && table.getInt(offset + 16) == 0;
+    }
+
+    private boolean keyEquals(int slot, byte[] key) {
+        int offset = offset(slot);
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (table.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * KEY_SIZE;
+    }
+
+    /**
+     * The key is already a SHA-1, so successive ints of it serve as independent Bloom filter hashes. Read
+     * without the lock: a key added concurrently may be missed, which only means it is checked again.
+     */
+    private boolean bloomContains(byte[] key) {
+        int bits = bloom.length() * 64;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (readInt(key, 4 * (i + 1)) & Integer.MAX_VALUE) % bits;
+            if ((bloom.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Must hold the write lock, so only one thread sets bits at a time.
+     */
+    private void bloomAdd(byte[] key) {
+        int bits = bloom.length() * 64;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (readInt(key, 4 * (i + 1)) & Integer.MAX_VALUE) % bits;
+            int word = bit >>> 6;
+            bloom.set(word, bloom.get(word) | 1L << bit);
+        }
+    }
+
+    private static byte[] key(String commitId, String fingerprint, boolean checkMessages) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        putString(hasher, commitId);
+        putString(hasher, fingerprint);
+        hasher.putBoolean(checkMessages);
+
+        return hasher.hash().asBytes();
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        hasher.putString(Strings.nullToEmpty(value), Charsets.UTF_8);
+        hasher.putByte((byte) 0);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+}
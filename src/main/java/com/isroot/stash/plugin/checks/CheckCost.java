@@ -0,0 +1,14 @@
+package com.isroot.stash.plugin.checks;
+
+/**
+ * How expensive a check is to run, cheapest first. Checks run in this order, and {@link #REMOTE} checks
+ * are skipped once a cheaper check has rejected the commit or ref, since the push is rejected either way.
+ */
+public enum CheckCost {
+    /** Only looks at what has already been read, such as matching a regex against the commit message. */
+    LOCAL_CPU,
+    /** Reads more from the repository or local disk. */
+    LOCAL_IO,
+    /** Calls another server, such as JIRA. */
+    REMOTE
+}
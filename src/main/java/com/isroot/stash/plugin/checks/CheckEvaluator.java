@@ -0,0 +1,92 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.errors.YaccError;
+import com.isroot.stash.plugin.regex.StepBudgetExceededException;
+import com.isroot.stash.plugin.regex.StepBudgetMetrics;
+import com.isroot.stash.plugin.regex.StepBudgetPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Runs a set of checks cheapest first. Once any check has found an error, {@link CheckCost#REMOTE} checks
+ * are skipped: the commit or ref is rejected anyway, and a remote check's errors may only repeat the
+ * problem, such as a JIRA lookup failing because the message didn't match the commit message regex.
+ *
+ * Checks of the same cost run in the order they were given.
+ *
+ * A check whose regex runs out of steps is counted in the {@link StepBudgetMetrics}, and then fails or
+ * passes as the plan's {@link StepBudgetPolicy} says.
+ */
+public class CheckEvaluator {
+    private static final Logger log = LoggerFactory.getLogger(CheckEvaluator.class);
+
+    private final List<CommitCheck> commitChecks;
+    private final List<RefCheck> refChecks;
+    private final StepBudgetMetrics stepBudgetMetrics;
+
+    public CheckEvaluator(List<? extends CommitCheck> commitChecks, List<? extends RefCheck> refChecks,
+                          StepBudgetMetrics stepBudgetMetrics) {
+        this.commitChecks = inCostOrder(commitChecks);
+        this.refChecks = inCostOrder(refChecks);
+        this.stepBudgetMetrics = stepBudgetMetrics;
+    }
+
+    public List<YaccError> checkRef(RulePlan plan, String refId) {
+        return evaluate(plan, refChecks, check -> check.check(plan, refId));
+    }
+
+    /**
+     * Check a commit.
+     *
+     * @param user the user pushing, or null if there is none
+     * @param checkMessages false to skip checks that look at the commit message
+     */
+    public List<YaccError> checkCommit(RulePlan plan, YaccCommit commit, @Nullable ApplicationUser user,
+                                       boolean checkMessages) {
+        return evaluate(plan, commitChecks, check -> !checkMessages && check.isMessageCheck()
+                ? Lists.newArrayList() : check.check(plan, commit, user));
+    }
+
+    private <T extends YaccCheck> List<YaccError> evaluate(RulePlan plan, List<T> checks,
+                                                           Function<T, List<YaccError>> runCheck) {
+        List<YaccError> errors = Lists.newArrayList();
+
+        for (T check : checks) {
+            if (check.getCost() == CheckCost.REMOTE && !errors.isEmpty()) {
+                // Remote checks are last, so none of the rest would run either
+                log.debug("skipping remote checks after {} errors", errors.size());
+                break;
+            }
+
+            try {
+                errors.addAll(runCheck.apply(check));
+            } catch (StepBudgetExceededException e) {
+                stepBudgetMetrics.recordExceeded(e);
+
+                if (plan.getStepBudgetPolicy() == StepBudgetPolicy.REJECT) {
+                    errors.add(new YaccError(YaccError.Type.REGEX_STEP_BUDGET,
+                            String.format("regex '%s' took too long to match, gave up after %d steps",
+                                    e.getPattern(), e.getStepBudget())));
+                }
+            }
+        }
+
+        return errors;
+    }
+
+    private static <T extends YaccCheck> List<T> inCostOrder(List<? extends T> checks) {
+        List<T> sorted = Lists.newArrayList(checks);
+        // List.sort is stable, so checks of the same cost keep their order
+        sorted.sort(Comparator.comparing(YaccCheck::getCost));
+        return sorted;
+    }
+}
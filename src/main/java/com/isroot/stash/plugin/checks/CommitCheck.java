@@ -0,0 +1,33 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.errors.YaccError;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * A check run against every new commit in a push.
+ *
+ * Other plugins can add their own commit checks with a {@code yacc-commit-check} module, see
+ * {@link CommitCheckModuleDescriptor}. Checks are shared by every push, so they must be thread safe.
+ */
+public interface CommitCheck extends YaccCheck {
+    /**
+     * Return true if this check looks at the commit message. Message checks are skipped for commits that
+     * only tags bring in, and for commits excluded from message checks by the settings.
+     */
+    boolean isMessageCheck();
+
+    /**
+     * Check {@code commit} against {@code plan}, returning an error for each problem found, or an empty list
+     * if it passes.
+     *
+     * @param user the user pushing, or null if there is none
+     */
+    @Nonnull
+    List<YaccError> check(@Nonnull RulePlan plan, @Nonnull YaccCommit commit, @Nullable ApplicationUser user);
+}
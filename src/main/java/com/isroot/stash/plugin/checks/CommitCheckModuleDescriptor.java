@@ -0,0 +1,39 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.plugin.descriptors.AbstractModuleDescriptor;
+import com.atlassian.plugin.module.ModuleFactory;
+
+/**
+ * The {@code yacc-commit-check} module type, which lets other plugins add a {@link CommitCheck}:
+ *
+ * <pre>
+ * &lt;yacc-commit-check key="signed-off-check" class="com.example.SignedOffCheck"/&gt;
+ * </pre>
+ *
+ * Enabled checks run alongside YACC's own checks, in order of their {@link CheckCost}.
+ */
+public class CommitCheckModuleDescriptor extends AbstractModuleDescriptor<CommitCheck> {
+    private volatile CommitCheck module;
+
+    public CommitCheckModuleDescriptor(ModuleFactory moduleFactory) {
+        super(moduleFactory);
+    }
+
+    @Override
+    public CommitCheck getModule() {
+        // Checks are stateless, so one instance serves every push until the module is disabled
+        CommitCheck check = module;
+        if (check == null) {
+            check = moduleFactory.createModule(moduleClassName, this);
+            module = check;
+        }
+
+        return check;
+    }
+
+    @Override
+    public void disabled() {
+        module = null;
+        super.disabled();
+    }
+}
@@ -0,0 +1,44 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.errors.YaccError;
+import com.isroot.stash.plugin.regex.YaccPattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Requires the commit message to match the commit message regex.
+ */
+public class CommitMessageRegexCheck implements CommitCheck {
+    @Override
+    public CheckCost getCost() {
+        return CheckCost.LOCAL_CPU;
+    }
+
+    @Override
+    public boolean isMessageCheck() {
+        return true;
+    }
+
+    @Nonnull
+    @Override
+    public List<YaccError> check(@Nonnull RulePlan plan, @Nonnull YaccCommit commit,
+                                 @Nullable ApplicationUser user) {
+        List<YaccError> errors = Lists.newArrayList();
+
+        YaccPattern pattern = plan.getCommitMessagePattern();
+        if(pattern != null) {
+            if(pattern.matches(plan.getCheckedMessage(commit)) == false) {
+                errors.add(new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "commit message doesn't match regex: " + plan.getCommitMessageRegex()));
+            }
+        }
+
+        return errors;
+    }
+}
@@ -0,0 +1,65 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.atlassian.bitbucket.user.UserType;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.errors.YaccError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Requires the committer email to match the email of the user pushing.
+ */
+public class CommitterEmailCheck implements CommitCheck {
+    private static final Logger log = LoggerFactory.getLogger(CommitterEmailCheck.class);
+
+    @Override
+    public CheckCost getCost() {
+        return CheckCost.LOCAL_CPU;
+    }
+
+    @Override
+    public boolean isMessageCheck() {
+        return false;
+    }
+
+    @Nonnull
+    @Override
+    public List<YaccError> check(@Nonnull RulePlan plan, @Nonnull YaccCommit commit,
+                                 @Nullable ApplicationUser stashUser) {
+        List<YaccError> errors = Lists.newArrayList();
+
+        // Only validate 'normal' users - service users like
+        // the ssh access keys use the key comment as the 'name' and don't have emails
+        // Neither of these are useful to validate, so just skip them
+        if (!plan.isRequireMatchingAuthorEmail() || stashUser == null || stashUser.getType() != UserType.NORMAL) {
+            return errors;
+        }
+
+        // while the email address is not marked as @Nullable, its not @Notnull either
+        // For service users it can be null, and while those have already been
+        // excluded, add a sanity check anyway
+
+        if (stashUser.getEmailAddress() == null) {
+            log.warn("stash user has null email address - skipping email validation");
+            return errors;
+        }
+
+        log.debug("authorEmail={} stashEmail={}", commit.getCommitter().getEmailAddress(),
+                stashUser.getEmailAddress());
+
+        if (!commit.getCommitter().getEmailAddress().toLowerCase().equals(stashUser.getEmailAddress().toLowerCase())) {
+            errors.add(new YaccError(YaccError.Type.COMMITTER_EMAIL,
+                    String.format("expected committer email '%s' but found '%s'", stashUser.getEmailAddress(),
+                    commit.getCommitter().getEmailAddress())));
+        }
+
+        return errors;
+    }
+}
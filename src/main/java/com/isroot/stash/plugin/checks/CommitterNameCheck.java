@@ -0,0 +1,80 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.atlassian.bitbucket.user.UserType;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.errors.YaccError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Requires the committer name to match the display name of the user pushing.
+ */
+public class CommitterNameCheck implements CommitCheck {
+    private static final Logger log = LoggerFactory.getLogger(CommitterNameCheck.class);
+
+    @Override
+    public CheckCost getCost() {
+        return CheckCost.LOCAL_CPU;
+    }
+
+    @Override
+    public boolean isMessageCheck() {
+        return false;
+    }
+
+    @Nonnull
+    @Override
+    public List<YaccError> check(@Nonnull RulePlan plan, @Nonnull YaccCommit commit,
+                                 @Nullable ApplicationUser stashUser) {
+        List<YaccError> errors = Lists.newArrayList();
+
+        // Service users are skipped for the same reason as in CommitterEmailCheck
+        if (!plan.isRequireMatchingAuthorName() || stashUser == null || stashUser.getType() != UserType.NORMAL) {
+            return errors;
+        }
+
+        log.debug("authorName={} stashName={}", commit.getCommitter().getName(), stashUser.getDisplayName());
+
+        String name = removeGitCrud(stashUser.getDisplayName());
+
+        if (!commit.getCommitter().getName().equalsIgnoreCase(name)) {
+            errors.add(new YaccError(YaccError.Type.COMMITTER_NAME,
+                    String.format("expected committer name '%s' but found '%s'", name,
+                    commit.getCommitter().getName())));
+        }
+
+        return errors;
+    }
+
+    /**
+     * Remove special characters and "crud" from name. This works around a git issue where it
+     * allows these characters in user.name but will strip them out when doing a commit. Leaving
+     * these characters breaks YACC name matching because Stash will provide the Stash user's name
+     * with these characters, however, they will never appear in the commit so author name will
+     * never match.
+     *
+     * See strbuf_addstr_without_crud() in git's ident.c.
+     * Link: https://github.com/git/git/blob/master/ident.c#L155 (current as of 2014-10-06).
+     */
+    private String removeGitCrud(String name) {
+        if(name != null) {
+            // remove special characters
+            name = name.replaceAll("[<>\n]", "");
+
+            // remove leading crud
+            name = name.replaceAll("^[\\\\.,:;\"']*", "");
+
+            // remove trailing crud
+            name = name.replaceAll("[\\\\.,:;\"']*$", "");
+        }
+
+        return name;
+    }
+}
@@ -0,0 +1,164 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.applinks.api.CredentialsRequiredException;
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.atlassian.sal.api.net.ResponseException;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.IssueKey;
+import com.isroot.stash.plugin.JiraService;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.errors.YaccError;
+import com.isroot.stash.plugin.regex.YaccPattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Requires the commit message to mention JIRA issues that exist, and that match the issue JQL query if one
+ * is set.
+ *
+ * Issues are looked up in JIRA, so this check only runs once every local check has passed. It can also
+ * depend on the commit message regex, which picks out the part of the message issues are taken from.
+ */
+public class JiraIssueCheck implements CommitCheck {
+    private static final Logger log = LoggerFactory.getLogger(JiraIssueCheck.class);
+
+    private final JiraService jiraService;
+
+    public JiraIssueCheck(JiraService jiraService) {
+        this.jiraService = jiraService;
+    }
+
+    @Override
+    public CheckCost getCost() {
+        return CheckCost.REMOTE;
+    }
+
+    @Override
+    public boolean isMessageCheck() {
+        return true;
+    }
+
+    @Nonnull
+    @Override
+    public List<YaccError> check(@Nonnull RulePlan plan, @Nonnull YaccCommit commit,
+                                 @Nullable ApplicationUser user) {
+        if (!plan.isRequireJiraIssue()) {
+            return Lists.newArrayList();
+        }
+
+        List<YaccError> errors = Lists.newArrayList();
+
+        String jiraApplicationLinkName = plan.getJiraApplicationLinkName();
+
+        if (jiraApplicationLinkName != null){
+            jiraService.doesJiraApplicationLinkExist(jiraApplicationLinkName);
+        }
+        else if (!jiraService.doesJiraApplicationLinkExist()) {
+            errors.add(new YaccError(String.format("Unable to verify JIRA issue because JIRA Application Link does not exist")));
+            return errors;
+        }
+
+        final List<IssueKey> issues;
+        try {
+            final List<IssueKey> extractedKeys = extractJiraIssuesFromCommitMessage(plan, commit);
+            if (plan.isIgnoreUnknownIssueProjectKeys()) {
+                /* Remove issues that contain non-existent project keys */
+                issues = Lists.newArrayList();
+                for (IssueKey issueKey : extractedKeys) {
+                    if (jiraService.doesProjectExist(issueKey.getProjectKey())) {
+                        issues.add(issueKey);
+                    }
+                }
+            } else {
+                issues = extractedKeys;
+            }
+        } catch(CredentialsRequiredException e) {
+            log.error("communication error while validating issues", e);
+            errors.add(new YaccError(String.format("Unable to validate JIRA issue because there was an authentication failure when communicating with JIRA.")));
+            errors.add(new YaccError(String.format("To authenticate, visit %s in a web browser.", e.getAuthorisationURI().toASCIIString())));
+            return errors;
+        } catch(ResponseException e) {
+            log.error("unexpected exception while trying to validate JIRA issues", e);
+            errors.add(new YaccError(String.format("Unable to validate JIRA issues due to an unexpected exception. Please see stack trace in logs.")));
+            return errors;
+        }
+
+        if(issues.isEmpty() == false) {
+            for(IssueKey issueKey : issues) {
+                errors.addAll(checkJiraIssue(plan, issueKey));
+            }
+        } else {
+            errors.add(new YaccError(String.format("No JIRA Issue found in commit message.")));
+        }
+
+        return errors;
+    }
+
+    private List<IssueKey> extractJiraIssuesFromCommitMessage(RulePlan plan, YaccCommit commit) {
+        CharSequence message = plan.getCheckedMessage(commit);
+        boolean wholeMessage = true;
+
+        // If a commit message regex is present, see if it contains a group 1 that can be used to located JIRA issues.
+        // If not, just ignore it.
+        YaccPattern pattern = plan.getCommitMessageIssuePattern();
+        if(pattern != null) {
+            String group = pattern.matchGroup(message, 1);
+            if(group != null) {
+                message = group;
+                wholeMessage = false;
+            }
+        }
+
+        final List<IssueKey> issueKeys = IssueKey.parseIssueKeys(message, plan.getIssueProjectKeys());
+        log.debug("found jira issues {} from commit message: {}", issueKeys, message);
+
+        // Keys past the message window still count, they are found without decoding the rest of the message
+        int window = plan.getMessageWindow();
+        if (wholeMessage && window > 0) {
+            List<IssueKey> overflowKeys = IssueKey.parseIssueKeys(commit.getMessageOverflow(window),
+                    plan.getIssueProjectKeys());
+            log.debug("found jira issues {} past the message window", overflowKeys);
+
+            issueKeys.addAll(overflowKeys);
+        }
+
+        return issueKeys;
+    }
+
+    private List<YaccError> checkJiraIssue(RulePlan plan, IssueKey issueKey) {
+        List<YaccError> errors = Lists.newArrayList();
+
+        try {
+            if (!jiraService.doesIssueExist(issueKey)) {
+                errors.add(new YaccError(String.format("%s: JIRA Issue does not exist", issueKey.getFullyQualifiedIssueKey())));
+            } else {
+                String jqlQuery = plan.getIssueJqlMatcher();
+                if (jqlQuery != null) {
+                    if (!jiraService.doesIssueMatchJqlQuery(jqlQuery, issueKey)) {
+                        errors.add(new YaccError(YaccError.Type.ISSUE_JQL,
+                                String.format("%s: JIRA Issue does not match JQL Query: %s", issueKey, jqlQuery)));
+                    }
+                }
+            }
+        } catch(CredentialsRequiredException e) {
+            errors.add(new YaccError(String.format("%s: Unable to validate JIRA issue because there was an authentication failure when communicating with JIRA.", issueKey.getFullyQualifiedIssueKey())));
+            errors.add(new YaccError(String.format("To authenticate, visit %s in a web browser.", e.getAuthorisationURI().toASCIIString())));
+        } catch(ResponseException e) {
+            if (e.getCause() instanceof CredentialsRequiredException) {
+                CredentialsRequiredException cred = (CredentialsRequiredException)e.getCause();
+                errors.add(new YaccError(String.format("%s: Unable to validate JIRA issue because there was an authentication failure when communicating with JIRA.", issueKey.getFullyQualifiedIssueKey())));
+                errors.add(new YaccError(String.format("To authenticate, visit %s in a web browser.", cred.getAuthorisationURI().toASCIIString())));
+            } else {
+                log.error("unexpected exception while trying to validate JIRA issue", e);
+                errors.add(new YaccError(String.format("%s: Unable to validate JIRA issue due to an unexpected exception. Please see stack trace in logs.", issueKey.getFullyQualifiedIssueKey())));
+            }
+        }
+
+        return errors;
+    }
+}
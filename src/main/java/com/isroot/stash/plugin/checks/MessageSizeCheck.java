@@ -0,0 +1,41 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.errors.YaccError;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Rejects commit messages longer than the message window, if the settings ask for it.
+ */
+public class MessageSizeCheck implements CommitCheck {
+    @Override
+    public CheckCost getCost() {
+        return CheckCost.LOCAL_CPU;
+    }
+
+    @Override
+    public boolean isMessageCheck() {
+        return true;
+    }
+
+    @Nonnull
+    @Override
+    public List<YaccError> check(@Nonnull RulePlan plan, @Nonnull YaccCommit commit,
+                                 @Nullable ApplicationUser user) {
+        List<YaccError> errors = Lists.newArrayList();
+
+        int window = plan.getMessageWindow();
+        if (window > 0 && plan.isRejectOversizedMessages()
+                && commit.isMessageLongerThan(window)) {
+            errors.add(new YaccError(String.format("commit message is longer than %d KiB", window / 1024)));
+        }
+
+        return errors;
+    }
+}
@@ -0,0 +1,22 @@
+package com.isroot.stash.plugin.checks;
+
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.errors.YaccError;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * A check run against every ref a push updates, before any of its commits are checked.
+ *
+ * Other plugins can add their own ref checks with a {@code yacc-ref-check} module, see
+ * {@link RefCheckModuleDescriptor}. Checks are shared by every push, so they must be thread safe.
+ */
+public interface RefCheck extends YaccCheck {
+    /**
+     * Check the ref {@code refId}, such as {@code refs/heads/master}, against {@code plan}, returning an error
+     * for each problem found, or an empty list if it passes.
+     */
+    @Nonnull
+    List<YaccError> check(@Nonnull RulePlan plan, @Nonnull String refId);
+}
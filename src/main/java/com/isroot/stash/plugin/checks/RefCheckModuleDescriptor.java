@@ -0,0 +1,39 @@
+package com.isroot.stash.plugin.checks;
+
+import com.atlassian.plugin.descriptors.AbstractModuleDescriptor;
+import com.atlassian.plugin.module.ModuleFactory;
+
+/**
+ * The {@code yacc-ref-check} module type, which lets other plugins add a {@link RefCheck}:
+ *
+ * <pre>
+ * &lt;yacc-ref-check key="tag-name-check" class="com.example.TagNameCheck"/&gt;
+ * </pre>
+ *
+ * Enabled checks run alongside YACC's own checks, in order of their {@link CheckCost}.
+ */
+public class RefCheckModuleDescriptor extends AbstractModuleDescriptor<RefCheck> {
+    private volatile RefCheck module;
+
+    public RefCheckModuleDescriptor(ModuleFactory moduleFactory) {
+        super(moduleFactory);
+    }
+
+    @Override
+    public RefCheck getModule() {
+        // Checks are stateless, so one instance serves every push until the module is disabled
+        RefCheck check = module;
+        if (check == null) {
+            check = moduleFactory.createModule(moduleClassName, this);
+            module = check;
+        }
+
+        return check;
+    }
+
+    @Override
+    public void disabled() {
+        module = null;
+        super.disabled();
+    }
+}
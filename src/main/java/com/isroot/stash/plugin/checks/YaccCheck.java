@@ -0,0 +1,11 @@
+package com.isroot.stash.plugin.checks;
+
+/**
+ * A check run against each push. See {@link CommitCheck} and {@link RefCheck}.
+ */
+public interface YaccCheck {
+    /**
+     * How expensive this check is, which decides when it runs.
+     */
+    CheckCost getCost();
+}
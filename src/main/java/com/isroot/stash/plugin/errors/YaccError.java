@@ -11,6 +11,7 @@ public class YaccError {
         COMMIT_REGEX,
         ISSUE_JQL,
         BRANCH_NAME,
+        REGEX_STEP_BUDGET,
         OTHER
     }
 
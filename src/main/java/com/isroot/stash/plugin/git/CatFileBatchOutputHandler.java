@@ -0,0 +1,152 @@
+package com.isroot.stash.plugin.git;
+
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.utils.process.ProcessException;
+import com.atlassian.utils.process.Watchdog;
+import com.isroot.stash.plugin.jgit.IdentityTable;
+import com.isroot.stash.plugin.jgit.RawYaccCommit;
+import org.eclipse.jgit.util.IO;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the output of {@code git cat-file --batch}: for each requested object a {@code <id> <type> <size>}
+ * header line, the raw object and a newline, or a {@code <id> missing} line for an object that doesn't exist.
+ * Objects are returned in the order they were requested.
+ *
+ * Commits and tags are parsed as they are read, so with a message window only that much of each message
+ * is kept, see {@link RawYaccCommit}. Objects that aren't wanted are skipped without being kept at all.
+ */
+class CatFileBatchOutputHandler implements CommandOutputHandler<List<CatFileBatchOutputHandler.RawObject>> {
+    private final List<RawObject> objects = new ArrayList<>();
+    private final int[] parentCounts;
+    private final int messageWindow;
+    private final IdentityTable identities;
+
+    /**
+     * @param parentCounts for each requested object, the parent count of a commit, or -1 for the object a tag
+     *                     ref points at, which is only wanted if it is an annotated tag
+     * @param messageWindow bytes of each message to keep, or 0 for all of it
+     */
+    CatFileBatchOutputHandler(int[] parentCounts, int messageWindow, IdentityTable identities) {
+        this.parentCounts = parentCounts;
+        this.messageWindow = messageWindow;
+        this.identities = identities;
+    }
+
+    @Override
+    public List<RawObject> getOutput() {
+        return objects;
+    }
+
+    @Override
+    public void process(InputStream output) throws ProcessException {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(output));
+
+            String header;
+            while ((header = readLine(in)) != null) {
+                String[] fields = header.split(" ");
+                if (fields.length == 2 && fields[1].equals("missing")) {
+                    objects.add(new RawObject(fields[0], null, null));
+                    continue;
+                }
+                if (fields.length != 3) {
+                    throw new ProcessException("unexpected cat-file output: " + header);
+                }
+
+                if (objects.size() == parentCounts.length) {
+                    throw new ProcessException("cat-file returned more objects than were requested");
+                }
+
+                String id = fields[0];
+                String type = fields[1];
+                long size = Long.parseLong(fields[2]);
+                int parentCount = parentCounts[objects.size()];
+
+                RawYaccCommit commit = null;
+                if (parentCount >= 0 && type.equals("commit")) {
+                    commit = RawYaccCommit.readCommit(id, parentCount, in, size, messageWindow, identities);
+                } else if (parentCount < 0 && type.equals("tag")) {
+                    commit = RawYaccCommit.readTag(id, in, size, messageWindow, identities);
+                } else {
+                    IO.skipFully(in, size);
+                }
+
+                if (in.read() != '\n') {
+                    throw new ProcessException("object " + id + " is not followed by a newline");
+                }
+
+                objects.add(new RawObject(id, type, commit));
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new ProcessException(e);
+        }
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public void setWatchdog(Watchdog watchdog) {
+    }
+
+    /**
+     * Read a header line, or return null at the end of the output.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("cat-file output ended in a header line");
+            }
+            line.write(b);
+        }
+
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    static class RawObject {
+        private final String id;
+        private final String type;
+        private final RawYaccCommit commit;
+
+        private RawObject(String id, String type, RawYaccCommit commit) {
+            this.id = id;
+            this.type = type;
+            this.commit = commit;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        /**
+         * Object type, such as {@code commit} or {@code tag}, or null if the object doesn't exist.
+         */
+        String getType() {
+            return type;
+        }
+
+        /**
+         * The parsed commit or annotated tag, or null if the object wasn't one that was wanted.
+         */
+        RawYaccCommit getCommit() {
+            return commit;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.isroot.stash.plugin.git;
+
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.utils.process.ProcessException;
+import com.atlassian.utils.process.Watchdog;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes one line per entry to a git command's standard input, then closes it so the command sees the end
+ * of its input.
+ */
+class LinesInputHandler implements CommandInputHandler {
+    private final List<String> lines;
+
+    LinesInputHandler(List<String> lines) {
+        this.lines = lines;
+    }
+
+    @Override
+    public void process(OutputStream input) throws ProcessException {
+        try (OutputStream out = new BufferedOutputStream(input)) {
+            for (String line : lines) {
+                out.write(line.getBytes(StandardCharsets.US_ASCII));
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            throw new ProcessException(e);
+        }
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public void setWatchdog(Watchdog watchdog) {
+    }
+}
@@ -0,0 +1,563 @@
+package com.isroot.stash.plugin.git;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import com.atlassian.utils.process.ProcessException;
+import com.atlassian.utils.process.Watchdog;
+import com.isroot.stash.plugin.ResumePoint;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.YaccCommitStream;
+import com.isroot.stash.plugin.jgit.IdentityTable;
+import com.isroot.stash.plugin.jgit.RawYaccCommit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link YaccCommitStream} read by native git through Bitbucket's git process support, instead of JGit.
+ *
+ * New commits are listed with {@code git rev-list --stdin}, children before parents, stopping at every
+ * existing branch. rev-list runs in the background, and every {@link #BATCH_SIZE} commits it lists are read
+ * with {@code git cat-file --batch} straight away. Only a couple of batches are kept ahead of the one being
+ * returned; rev-list waits while they are full. Messages are decoded lazily, and cut to the message window as
+ * they are read, as with {@link com.isroot.stash.plugin.jgit.JGitCommitStream}.
+ *
+ * Unlike the JGit stream, the walk can't stop at commits the caller already knows about. Those commits are
+ * still listed, and are answered by the verified commit cache instead.
+ */
+public class NativeCommitStream implements YaccCommitStream {
+    private static final Logger log = LoggerFactory.getLogger(NativeCommitStream.class);
+
+    static final int BATCH_SIZE = 256;
+
+    /** Batches of new commits read ahead of the one being returned. */
+    static final int BATCHES_AHEAD = 2;
+
+    /** Put on {@link #listed} once rev-list has finished, or failed. */
+    private static final List<PendingObject> END = Collections.unmodifiableList(new ArrayList<PendingObject>());
+
+    private final GitCommandBuilderFactory gitCommandBuilderFactory;
+    private final Repository repository;
+    private final ExecutorService executor;
+    private final String alternates;
+    private int messageWindow;
+
+    /** Tag objects still to be read, they come before any new commits. */
+    private final List<PendingObject> pendingTags = new ArrayList<>();
+    private int nextTag;
+    private final IdentityTable tagIdentities = new IdentityTable();
+
+    /** Batches of new commits already read, children first, filled by {@link #lister}. */
+    private final BlockingQueue<List<PendingObject>> listed = new ArrayBlockingQueue<>(BATCHES_AHEAD);
+    private Future<?> lister;
+    private volatile RuntimeException listFailure;
+
+    private final Deque<PendingObject> batch = new ArrayDeque<>();
+    private Collection<RefChange> currentRefChanges = Collections.emptyList();
+
+    /** Ref changes the walk started from, and the commits the rest of it is reachable from. */
+    private List<RefChange> walkRefChanges = Collections.emptyList();
+    private final Map<ObjectId, BitSet> pendingStarts = new HashMap<>();
+
+    /**
+     * @param executor pool to run rev-list on, it holds a worker for as long as new commits are being listed
+     */
+    public NativeCommitStream(GitCommandBuilderFactory gitCommandBuilderFactory, Repository repository,
+                              File repositoryDir, ExecutorService executor) {
+        this.gitCommandBuilderFactory = gitCommandBuilderFactory;
+        this.repository = repository;
+        this.executor = executor;
+
+        // Listed once, the push being checked is received before the hook runs and stays put until it ends
+        alternates = QuarantineDirectories.getAlternates(repositoryDir);
+        if (alternates != null) {
+            log.debug("reading quarantined objects for {} from {}", repository, alternates);
+        }
+    }
+
+    /**
+     * Only keep the first {@code messageWindow} bytes of each message. The default of 0 keeps whole messages.
+     */
+    public void setMessageWindow(int messageWindow) {
+        this.messageWindow = messageWindow;
+    }
+
+    /**
+     * Add the tag objects pointed to by tag refs. Refs pointing at the same tag object share one check, and
+     * lightweight tags are skipped once the stream finds they point straight at a commit.
+     */
+    public void addTags(List<RefChange> refChanges) {
+        Map<ObjectId, List<RefChange>> tags = new LinkedHashMap<>();
+        for (RefChange refChange : refChanges) {
+            ObjectId tagId = ObjectId.fromString(refChange.getToHash());
+
+            List<RefChange> tagRefChanges = tags.get(tagId);
+            if (tagRefChanges == null) {
+                tagRefChanges = new ArrayList<>();
+                tags.put(tagId, tagRefChanges);
+            }
+            tagRefChanges.add(refChange);
+        }
+
+        for (Map.Entry<ObjectId, List<RefChange>> tag : tags.entrySet()) {
+            pendingTags.add(new PendingObject(tag.getKey(), tag.getValue()));
+        }
+    }
+
+    /**
+     * List the commits reachable from any of {@code starts} that are not on any existing branch. Each start
+     * is new to the ref changes whose indexes in {@code refChanges} are in its set: the pushed tips, or the
+     * frontier of an earlier stream's {@link ResumePoint}. Merge commits are left out if {@code skipMerges}
+     * is set.
+     *
+     * rev-list is only started here. If it or cat-file fails, the stream throws when it gets to that point,
+     * and can be carried on from its {@link #getResumePoint() resume point}.
+     */
+    public void addNewCommits(List<RefChange> refChanges, final Map<ObjectId, BitSet> starts,
+                              final boolean skipMerges) {
+        walkRefChanges = refChanges;
+        for (Map.Entry<ObjectId, BitSet> start : starts.entrySet()) {
+            pendingStarts.put(start.getKey(), (BitSet) start.getValue().clone());
+        }
+
+        final List<String> ids = new ArrayList<>();
+        for (ObjectId start : starts.keySet()) {
+            ids.add(start.name());
+        }
+
+        final RevListOutputHandler outputHandler = new RevListOutputHandler(refChanges, starts, skipMerges);
+        lister = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Refs aren't updated until the hook accepts the push, so --branches is every branch as
+                    // it was before
+                    builder()
+                            .command("rev-list")
+                            .argument("--topo-order")
+                            .argument("--parents")
+                            .argument("--stdin")
+                            .argument("--not")
+                            .argument("--branches")
+                            .inputHandler(new LinesInputHandler(ids))
+                            .build(outputHandler)
+                            .call();
+
+                    log.debug("rev-list found {} commits to check in {}", outputHandler.listedCount,
+                            repository);
+                } catch (RuntimeException e) {
+                    listFailure = e;
+                } finally {
+                    try {
+                        listed.put(END);
+                    } catch (InterruptedException e) {
+                        // Closed, nothing is waiting for the end any more
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (true) {
+            if (batch.isEmpty()) {
+                readBatch();
+            }
+
+            // Skipped merges are only passed over, to keep track of where the walk has got to
+            PendingObject object = batch.peekFirst();
+            if (object == null || !object.skipped) {
+                return object != null;
+            }
+
+            passed(batch.removeFirst());
+        }
+    }
+
+    @Override
+    public YaccCommit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        PendingObject object = batch.removeFirst();
+        passed(object);
+        currentRefChanges = object.refChanges;
+        return object.commit;
+    }
+
+    /**
+     * Objects are read ahead in batches, so where the stream has got to is kept up to date as each object is
+     * returned rather than worked out from what has been read.
+     */
+    @Override
+    public ResumePoint getResumePoint() {
+        Set<String> remainingTags = new HashSet<>();
+        for (PendingObject object : batch) {
+            if (object.parentCount < 0) {
+                remainingTags.add(object.id.name());
+            }
+        }
+        for (int i = nextTag; i < pendingTags.size(); i++) {
+            remainingTags.add(pendingTags.get(i).id.name());
+        }
+
+        Map<String, Set<String>> starts = new HashMap<>();
+        for (Map.Entry<ObjectId, BitSet> start : pendingStarts.entrySet()) {
+            BitSet startSet = start.getValue();
+
+            Set<String> refIds = new HashSet<>();
+            for (int i = startSet.nextSetBit(0); i >= 0; i = startSet.nextSetBit(i + 1)) {
+                refIds.add(walkRefChanges.get(i).getRefId());
+            }
+            starts.put(start.getKey().name(), refIds);
+        }
+
+        return new ResumePoint(remainingTags, starts);
+    }
+
+    @Override
+    public Collection<RefChange> getRefChanges() {
+        return currentRefChanges;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if (lister != null) {
+            lister.cancel(true);
+            lister = null;
+        }
+
+        pendingTags.clear();
+        listed.clear();
+        batch.clear();
+    }
+
+    /**
+     * Start a git command that can see the objects of pushes still in quarantine.
+     */
+    private GitScmCommandBuilder builder() {
+        GitScmCommandBuilder builder = gitCommandBuilderFactory.builder(repository);
+        if (alternates != null) {
+            builder.withEnvironment("GIT_ALTERNATE_OBJECT_DIRECTORIES", alternates);
+        }
+
+        return builder;
+    }
+
+    /**
+     * A commit has been returned or passed over: it is no longer pending, and its parents are reachable from
+     * everything it is.
+     */
+    private void passed(PendingObject object) {
+        if (object.parentCount < 0) {
+            return;
+        }
+
+        pendingStarts.remove(object.id);
+        for (ObjectId parent : object.parents) {
+            BitSet parentStarts = pendingStarts.get(parent);
+            if (parentStarts == null) {
+                parentStarts = new BitSet();
+                pendingStarts.put(parent, parentStarts);
+            }
+            parentStarts.or(object.starts);
+        }
+    }
+
+    /**
+     * Fill the batch: tags first, {@link #BATCH_SIZE} at a time, then the next batch of new commits rev-list
+     * has listed and cat-file has read. Lightweight tags leave nothing in the batch, so keep reading until
+     * something is found or nothing is left.
+     */
+    private void readBatch() {
+        while (batch.isEmpty() && nextTag < pendingTags.size()) {
+            int end = Math.min(nextTag + BATCH_SIZE, pendingTags.size());
+            batch.addAll(readObjects(pendingTags.subList(nextTag, end), tagIdentities));
+
+            // The batch holds what's left of these, don't keep them in the list for the rest of the stream
+            for (int i = nextTag; i < end; i++) {
+                pendingTags.set(i, null);
+            }
+            nextTag = end;
+        }
+
+        while (batch.isEmpty() && lister != null) {
+            List<PendingObject> objects;
+            try {
+                objects = listed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while listing new commits", e);
+            }
+
+            if (objects == END) {
+                lister = null;
+                if (listFailure != null) {
+                    throw new IllegalStateException("native git failed to list new commits: "
+                            + listFailure.getMessage(), listFailure);
+                }
+                return;
+            }
+
+            batch.addAll(objects);
+        }
+    }
+
+    /**
+     * Read {@code objects} with {@code git cat-file --batch}, returning the commits and annotated tags found, in
+     * order. Skipped merges aren't read, they are returned as they are to be passed over in order.
+     */
+    private List<PendingObject> readObjects(List<PendingObject> objects, IdentityTable identities) {
+        List<String> ids = new ArrayList<>(objects.size());
+        int[] parentCounts = new int[objects.size()];
+        for (PendingObject object : objects) {
+            if (!object.skipped) {
+                parentCounts[ids.size()] = object.parentCount;
+                ids.add(object.id.name());
+            }
+        }
+
+        List<CatFileBatchOutputHandler.RawObject> rawObjects = ids.isEmpty()
+                ? Collections.<CatFileBatchOutputHandler.RawObject>emptyList()
+                : builder()
+                        .command("cat-file")
+                        .argument("--batch")
+                        .inputHandler(new LinesInputHandler(ids))
+                        .build(new CatFileBatchOutputHandler(Arrays.copyOf(parentCounts, ids.size()),
+                                messageWindow, identities))
+                        .call();
+        if (rawObjects == null || rawObjects.size() != ids.size()) {
+            throw new IllegalStateException("cat-file returned " + (rawObjects == null ? 0 : rawObjects.size())
+                    + " objects, expected " + ids.size());
+        }
+
+        List<PendingObject> read = new ArrayList<>(objects.size());
+        int index = 0;
+        for (PendingObject object : objects) {
+            if (object.skipped) {
+                read.add(object);
+                continue;
+            }
+
+            CatFileBatchOutputHandler.RawObject rawObject = rawObjects.get(index++);
+
+            if (rawObject.getType() == null) {
+                throw new IllegalStateException("object " + rawObject.getId() + " is missing");
+            }
+
+            if (rawObject.getCommit() != null) {
+                object.commit = rawObject.getCommit();
+                read.add(object);
+            } else if (object.parentCount >= 0) {
+                throw new IllegalStateException("object " + rawObject.getId() + " is a "
+                        + rawObject.getType() + ", not a commit");
+            }
+        }
+
+        return read;
+    }
+
+    /**
+     * Reads {@code git rev-list --parents} output, one {@code <id> <parent>...} line per commit, and works out
+     * which of the pushed refs each commit is new to. As with {@link com.isroot.stash.plugin.jgit.NewCommitWalker},
+     * children come before parents, so a commit's set of starts is complete by the time it is listed and can
+     * be handed down to its parents.
+     *
+     * Each {@link #BATCH_SIZE} commits are read with cat-file as soon as they are listed and handed to the
+     * stream, waiting while it has enough read ahead. rev-list is held up meanwhile, as its output isn't read.
+     */
+    private class RevListOutputHandler implements CommandOutputHandler<Void> {
+        private final List<RefChange> refChanges;
+        private final boolean skipMerges;
+        private final Map<ObjectId, BitSet> reachableFrom = new HashMap<>();
+        private final IdentityTable identities = new IdentityTable();
+
+        private List<PendingObject> objects = new ArrayList<>(BATCH_SIZE);
+        private int listedCount;
+        private Watchdog watchdog;
+
+        private BitSet lastStarts;
+        private List<RefChange> lastStartRefChanges;
+
+        private RevListOutputHandler(List<RefChange> refChanges, Map<ObjectId, BitSet> starts,
+                                     boolean skipMerges) {
+            this.refChanges = refChanges;
+            this.skipMerges = skipMerges;
+
+            for (Map.Entry<ObjectId, BitSet> start : starts.entrySet()) {
+                getReachableFrom(start.getKey()).or(start.getValue());
+            }
+        }
+
+        @Override
+        public Void getOutput() {
+            return null;
+        }
+
+        @Override
+        public void process(InputStream output) throws ProcessException {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(output, StandardCharsets.US_ASCII));
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] ids = line.split(" ");
+                    ObjectId id = ObjectId.fromString(ids[0]);
+
+                    BitSet starts = reachableFrom.remove(id);
+                    if (starts == null) {
+                        starts = new BitSet();
+                    }
+
+                    // Skipped merges must still hand their starts down
+                    ObjectId[] parents = new ObjectId[ids.length - 1];
+                    for (int i = 1; i < ids.length; i++) {
+                        parents[i - 1] = ObjectId.fromString(ids[i]);
+                        getReachableFrom(parents[i - 1]).or(starts);
+                    }
+
+                    PendingObject object = new PendingObject(id, parents, starts, getRefChanges(starts));
+                    if (skipMerges && parents.length > 1) {
+                        log.debug("skipping merge commit {}", ids[0]);
+                        object.skipped = true;
+                    }
+
+                    objects.add(object);
+                    listedCount++;
+                    if (objects.size() == BATCH_SIZE) {
+                        handOver();
+                    }
+                }
+
+                if (!objects.isEmpty()) {
+                    handOver();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                throw new ProcessException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessException(e);
+            }
+        }
+
+        @Override
+        public void complete() {
+            // Whatever is left belongs to existing commits the walk stopped at
+            reachableFrom.clear();
+        }
+
+        @Override
+        public void setWatchdog(Watchdog watchdog) {
+            this.watchdog = watchdog;
+        }
+
+        /**
+         * Read the commits listed so far and wait for the stream to have room for them. Checking the commits
+         * ahead may take a while, so rev-list isn't left to look idle meanwhile.
+         */
+        private void handOver() throws InterruptedException {
+            List<PendingObject> read = readObjects(objects, identities);
+            while (!listed.offer(read, 1, TimeUnit.SECONDS)) {
+                if (watchdog != null) {
+                    watchdog.resetWatchdog();
+                }
+            }
+
+            objects = new ArrayList<>(BATCH_SIZE);
+        }
+
+        private BitSet getReachableFrom(ObjectId id) {
+            BitSet starts = reachableFrom.get(id);
+            if (starts == null) {
+                starts = new BitSet();
+                reachableFrom.put(id, starts);
+            }
+
+            return starts;
+        }
+
+        /**
+         * Runs of commits nearly always come from the same starts, so they share one list.
+         */
+        private List<RefChange> getRefChanges(BitSet starts) {
+            if (starts.equals(lastStarts)) {
+                return lastStartRefChanges;
+            }
+
+            List<RefChange> startRefChanges = new ArrayList<>(starts.cardinality());
+            for (int i = starts.nextSetBit(0); i >= 0; i = starts.nextSetBit(i + 1)) {
+                startRefChanges.add(refChanges.get(i));
+            }
+
+            lastStarts = starts;
+            lastStartRefChanges = Collections.unmodifiableList(startRefChanges);
+            return lastStartRefChanges;
+        }
+    }
+
+    private static class PendingObject {
+        private final ObjectId id;
+        /** Parent count of a commit, or -1 for a tag ref's object. */
+        private final int parentCount;
+        private final ObjectId[] parents;
+        /** Indexes of the walk's ref changes this commit is new to. */
+        private final BitSet starts;
+        private final List<RefChange> refChanges;
+        /** A merge commit that is passed over rather than returned. */
+        private boolean skipped;
+        private RawYaccCommit commit;
+
+        private PendingObject(ObjectId id, List<RefChange> refChanges) {
+            this.id = id;
+            this.parentCount = -1;
+            this.parents = null;
+            this.starts = null;
+            this.refChanges = refChanges;
+        }
+
+        private PendingObject(ObjectId id, ObjectId[] parents, BitSet starts, List<RefChange> refChanges) {
+            this.id = id;
+            this.parentCount = parents.length;
+            this.parents = parents;
+            this.starts = starts;
+            this.refChanges = refChanges;
+        }
+    }
+}
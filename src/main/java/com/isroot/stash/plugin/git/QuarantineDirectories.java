@@ -0,0 +1,59 @@
+package com.isroot.stash.plugin.git;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the object directories of pushes still being received.
+ *
+ * Since git 2.11, receive-pack writes the objects of a push to a quarantine directory inside the object
+ * store and only moves them into place once every pre-receive hook has accepted the push. git sets up the
+ * hook's own environment to see them, but git commands the plugin runs from Bitbucket don't inherit that
+ * environment, so they have to be pointed at the quarantine directories as alternates.
+ */
+public class QuarantineDirectories {
+    /** Name git gives each quarantine directory, followed by a random suffix. */
+    static final String PREFIX = "tmp_objdir-incoming-";
+
+    private QuarantineDirectories() {
+    }
+
+    /**
+     * Return the quarantine directories of {@code repositoryDir}, in name order. Other pushes being received
+     * at the same time may have their own, their objects are harmless to see.
+     */
+    public static List<File> getDirectories(File repositoryDir) {
+        File[] dirs = new File(repositoryDir, "objects").listFiles();
+        if (dirs == null) {
+            return Collections.emptyList();
+        }
+
+        List<File> quarantine = new ArrayList<>();
+        Arrays.sort(dirs);
+        for (File dir : dirs) {
+            if (dir.getName().startsWith(PREFIX) && dir.isDirectory()) {
+                quarantine.add(dir);
+            }
+        }
+
+        return quarantine;
+    }
+
+    /**
+     * Return the {@link #getDirectories quarantine directories} of {@code repositoryDir} as a value for
+     * {@code GIT_ALTERNATE_OBJECT_DIRECTORIES}, or null if there are none.
+     */
+    @Nullable
+    public static String getAlternates(File repositoryDir) {
+        List<String> alternates = new ArrayList<>();
+        for (File dir : getDirectories(repositoryDir)) {
+            alternates.add(dir.getAbsolutePath());
+        }
+
+        return alternates.isEmpty() ? null : String.join(File.pathSeparator, alternates);
+    }
+}
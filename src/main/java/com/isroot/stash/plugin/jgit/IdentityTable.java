@@ -0,0 +1,102 @@
+package com.isroot.stash.plugin.jgit;
+
+import com.isroot.stash.plugin.YaccPerson;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * Interns committer identities while a stream of raw commits is parsed. A large push usually comes from a
+ * handful of people, so rather than parsing and allocating a name and email for every commit, the
+ * {@code Name <email>} part of the identity line is looked up by its raw bytes, and commits by the same
+ * person share one {@link YaccPerson}. Nothing is allocated for a commit by someone already in the table.
+ *
+ * Only the first {@link #MAX_IDENTITIES} distinct identities are kept, later ones are parsed as usual. Not
+ * thread safe, each reader needs its own table.
+ */
+public class IdentityTable {
+    static final int MAX_IDENTITIES = 4096;
+
+    private byte[][] keys = new byte[64][];
+    private YaccPerson[] people = new YaccPerson[64];
+    private int size;
+
+    /**
+     * Return the person whose identity line starts at {@code identStart}, or null if the line can't be parsed.
+     */
+    public YaccPerson lookup(byte[] raw, int identStart) {
+        int emailStart = RawParseUtils.nextLF(raw, identStart, '<');
+        int emailEnd = RawParseUtils.nextLF(raw, emailStart, '>');
+        if (raw[emailStart - 1] != '<' || raw[emailEnd - 1] != '>') {
+            return parse(raw, identStart);
+        }
+
+        int slot = hash(raw, identStart, emailEnd) & (keys.length - 1);
+        while (keys[slot] != null) {
+            if (matches(keys[slot], raw, identStart, emailEnd)) {
+                return people[slot];
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+
+        YaccPerson person = parse(raw, identStart);
+        if (person != null && size < MAX_IDENTITIES) {
+            byte[] key = new byte[emailEnd - identStart];
+            System.arraycopy(raw, identStart, key, 0, key.length);
+            keys[slot] = key;
+            people[slot] = person;
+
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        return person;
+    }
+
+    private static YaccPerson parse(byte[] raw, int identStart) {
+        PersonIdent ident = RawParseUtils.parsePersonIdent(raw, identStart);
+        return ident == null ? null : new YaccPerson(ident.getName(), ident.getEmailAddress());
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        YaccPerson[] oldPeople = people;
+
+        keys = new byte[oldKeys.length * 2][];
+        people = new YaccPerson[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = hash(oldKeys[i], 0, oldKeys[i].length) & (keys.length - 1);
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & (keys.length - 1);
+                }
+                keys[slot] = oldKeys[i];
+                people[slot] = oldPeople[i];
+            }
+        }
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int h = 1;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + bytes[i];
+        }
+
+        // Spread the high bits down, the table is indexed by the low ones
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(byte[] key, byte[] raw, int start, int end) {
+        if (key.length != end - start) {
+            return false;
+        }
+
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != raw[start + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,393 @@
+package com.isroot.stash.plugin.jgit;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.isroot.stash.plugin.ResumePoint;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.YaccCommitStream;
+import com.isroot.stash.plugin.jgit.JGitRepositoryPool.PooledRepository;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * {@link YaccCommitStream} backed by a pooled JGit repository. New commits are found with a
+ * {@link NewCommitWalker} and materialized one at a time as the stream is read. Each commit is returned
+ * once, however many of the pushed refs it is new to. Commit messages are only decoded when read, and
+ * commits by the same committer share one {@link IdentityTable interned} identity.
+ *
+ * Each commit object is read twice: once by the walk to find its parents, and again when the stream
+ * reaches it. The walk has to sort every new commit before returning the first, so keeping the bodies it
+ * read would hold the whole push in memory.
+ *
+ * Tags and commits are read on the calling thread until there are more than a
+ * {@link ParallelObjectReader#CHUNK_SIZE chunk} of them. The rest are taken from the push and the walk a chunk
+ * at a time, read on the executor in parallel, and returned in the same order.
+ */
+public class JGitCommitStream implements YaccCommitStream {
+    private final PooledRepository pooledRepository;
+    private final ObjectReader reader;
+    private final IdentityTable identities = new IdentityTable();
+    private final ExecutorService executor;
+    private final int parallelism;
+    private int messageWindow;
+
+    /** Tag objects still to be read, each with every tag ref pointing at it. */
+    private final Map<ObjectId, List<RefChange>> tags = new LinkedHashMap<>();
+    private Iterator<Map.Entry<ObjectId, List<RefChange>>> pendingTags;
+    private int tagsTaken;
+    private int tagsRead;
+
+    private NewCommitWalker newCommitWalker;
+    private List<RefChange> walkRefChanges;
+
+    private int objectsRead;
+    private ParallelObjectReader parallelReader;
+    /** Chunks of tags or commits being read by {@link #parallelReader}, oldest first. */
+    private final Deque<List<PendingCommit>> reading = new ArrayDeque<>();
+    /** Tags and commits that have been read but not returned yet. */
+    private final Deque<PendingCommit> ready = new ArrayDeque<>();
+
+    private PendingCommit next;
+    private List<RefChange> currentRefChanges = Collections.emptyList();
+    private BitSet lastStarts;
+    private List<RefChange> lastStartRefChanges;
+
+    public JGitCommitStream(PooledRepository pooledRepository) {
+        this(pooledRepository, null, 1);
+    }
+
+    /**
+     * @param executor pool to read large numbers of tags and commits on, or null to read everything on the
+     *                 calling thread
+     * @param parallelism number of workers in {@code executor}
+     */
+    public JGitCommitStream(PooledRepository pooledRepository, ExecutorService executor, int parallelism) {
+        this.pooledRepository = pooledRepository;
+        this.reader = pooledRepository.getRepository().newObjectReader();
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    public org.eclipse.jgit.lib.Repository getRepository() {
+        return pooledRepository.getRepository();
+    }
+
+    /**
+     * Only keep the first {@code messageWindow} bytes of each message, see {@link RawYaccCommit}. The default
+     * of 0 keeps whole messages.
+     */
+    public void setMessageWindow(int messageWindow) {
+        this.messageWindow = messageWindow;
+    }
+
+    /**
+     * Add commits reachable from any of {@code starts} that are not reachable from any of
+     * {@code existingTips}. Each start is new to the ref changes whose indexes in {@code refChanges} are in
+     * its set: the pushed tips, or the frontier of an earlier stream's {@link ResumePoint}. Merge commits are
+     * left out if {@code skipMerges} is set.
+     */
+    public void addNewCommits(List<RefChange> refChanges, Map<ObjectId, BitSet> starts,
+                              Collection<? extends AnyObjectId> existingTips, boolean skipMerges)
+            throws IOException {
+        walkRefChanges = refChanges;
+        newCommitWalker = new NewCommitWalker(pooledRepository.getRepository());
+        newCommitWalker.setSkipMerges(skipMerges);
+        newCommitWalker.markStart(starts, existingTips);
+    }
+
+    /**
+     * Add the tag objects pointed to by tag refs. Refs pointing at the same tag object share one check. The
+     * objects are read as the stream reaches them; lightweight tags point straight at an existing commit,
+     * so there is nothing new to check and they are skipped then.
+     */
+    public void addTags(List<RefChange> refChanges) {
+        for (RefChange refChange : refChanges) {
+            ObjectId tagId = ObjectId.fromString(refChange.getToHash());
+
+            List<RefChange> tagRefChanges = tags.get(tagId);
+            if (tagRefChanges == null) {
+                tagRefChanges = new ArrayList<>();
+                tags.put(tagId, tagRefChanges);
+            }
+            tagRefChanges.add(refChange);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = readNext();
+        }
+
+        return next != null;
+    }
+
+    @Override
+    public YaccCommit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        PendingCommit commit = next;
+        next = null;
+        currentRefChanges = commit.refChanges;
+        return commit.commit;
+    }
+
+    @Override
+    public Collection<RefChange> getRefChanges() {
+        return currentRefChanges;
+    }
+
+    /**
+     * Commits taken from the walk but not returned yet, whether already read or still being read, are put
+     * back. Their parents already have their starts added, but every commit behind them will be given them
+     * anyway, so the resumed walk returns the same commits with the same ref changes.
+     */
+    @Override
+    public ResumePoint getResumePoint() {
+        int firstTag = next != null && next.tagIndex >= 0 ? next.tagIndex : tagsRead;
+
+        Set<String> remainingTags = new HashSet<>();
+        int tagIndex = 0;
+        for (ObjectId tagId : tags.keySet()) {
+            if (tagIndex++ >= firstTag) {
+                remainingTags.add(tagId.name());
+            }
+        }
+
+        Map<String, Set<String>> starts = new HashMap<>();
+        if (newCommitWalker != null) {
+            Map<ObjectId, BitSet> pendingStarts = newCommitWalker.getPendingStarts();
+            List<PendingCommit> taken = new ArrayList<>(ready);
+            for (List<PendingCommit> chunk : reading) {
+                taken.addAll(chunk);
+            }
+            if (next != null) {
+                taken.add(next);
+            }
+
+            for (PendingCommit commit : taken) {
+                if (commit.tagIndex < 0) {
+                    pendingStarts.put(commit.id, commit.starts);
+                }
+            }
+
+            for (Map.Entry<ObjectId, BitSet> start : pendingStarts.entrySet()) {
+                Set<String> refIds = new HashSet<>();
+                for (RefChange refChange : getRefChanges(start.getValue())) {
+                    refIds.add(refChange.getRefId());
+                }
+                starts.put(start.getKey().name(), refIds);
+            }
+        }
+
+        return new ResumePoint(remainingTags, starts);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if (parallelReader != null) {
+            parallelReader.close();
+        }
+
+        if (newCommitWalker != null) {
+            newCommitWalker.close();
+        }
+
+        reader.release();
+        pooledRepository.close();
+    }
+
+    private PendingCommit readNext() {
+        try {
+            while (true) {
+                PendingCommit pending = ready.pollFirst();
+                if (pending == null) {
+                    if (!readMore()) {
+                        return null;
+                    }
+                    continue;
+                }
+
+                if (pending.tagIndex >= 0) {
+                    tagsRead = pending.tagIndex + 1;
+                }
+
+                // Lightweight tags have nothing to check
+                if (pending.commit != null) {
+                    return pending;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read the next tags or commits into {@link #ready}, returning false once there are none left. Most pushes
+     * are small, so the first chunk's worth is read here one at a time. After that, chunks are read on the
+     * executor, keeping a couple per worker ahead of the one being returned.
+     */
+    private boolean readMore() throws IOException {
+        if (parallelReader == null) {
+            List<PendingCommit> chunk = takeChunk(1);
+            if (chunk.isEmpty()) {
+                return false;
+            }
+
+            PendingCommit pending = chunk.get(0);
+            if (pending.tagIndex >= 0) {
+                pending.commit = ParallelObjectReader.readTag(reader, pending.id, messageWindow, identities);
+            } else {
+                // The walk doesn't keep bodies, so read this one's again. The message is only decoded if a
+                // message check needs it.
+                pending.commit = ParallelObjectReader.readCommit(newCommitWalker.getObjectReader(), pending.id,
+                        pending.parentCount, messageWindow, identities);
+            }
+            ready.addLast(pending);
+
+            if (executor != null && ++objectsRead == ParallelObjectReader.CHUNK_SIZE) {
+                parallelReader = new ParallelObjectReader(pooledRepository.getRepository(), executor, parallelism,
+                        messageWindow);
+            }
+
+            return true;
+        }
+
+        while (!parallelReader.isFull()) {
+            List<PendingCommit> chunk = takeChunk(ParallelObjectReader.CHUNK_SIZE);
+            if (chunk.isEmpty()) {
+                break;
+            }
+
+            List<ObjectId> ids = new ArrayList<>(chunk.size());
+            int[] parentCounts = new int[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                ids.add(chunk.get(i).id);
+                parentCounts[i] = chunk.get(i).parentCount;
+            }
+
+            if (chunk.get(0).tagIndex >= 0) {
+                parallelReader.addTags(ids);
+            } else {
+                parallelReader.addCommits(ids, parentCounts);
+            }
+            reading.addLast(chunk);
+        }
+
+        if (reading.isEmpty()) {
+            return false;
+        }
+
+        // Chunks come back in the order they were added, which is the order they were taken in
+        List<PendingCommit> chunk = reading.removeFirst();
+        List<RawYaccCommit> objects = parallelReader.take();
+        for (int i = 0; i < chunk.size(); i++) {
+            chunk.get(i).commit = objects.get(i);
+        }
+        ready.addAll(chunk);
+
+        return true;
+    }
+
+    /**
+     * Take up to {@code size} more tags or new commits to read: tags first, in push order, then commits in
+     * walk order. A chunk holds only one or the other.
+     */
+    private List<PendingCommit> takeChunk(int size) throws IOException {
+        if (pendingTags == null) {
+            pendingTags = tags.entrySet().iterator();
+        }
+
+        List<PendingCommit> chunk = new ArrayList<>(size);
+        while (chunk.size() < size && pendingTags.hasNext()) {
+            Map.Entry<ObjectId, List<RefChange>> tag = pendingTags.next();
+            chunk.add(new PendingCommit(tag.getKey(), tag.getValue(), tagsTaken++));
+        }
+
+        if (!chunk.isEmpty() || newCommitWalker == null) {
+            return chunk;
+        }
+
+        RevCommit commit;
+        while (chunk.size() < size && (commit = newCommitWalker.next()) != null) {
+            BitSet starts = newCommitWalker.getCurrentStarts();
+            chunk.add(new PendingCommit(commit.copy(), commit.getParentCount(), getRefChanges(starts), starts));
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Return the ref changes for a set of walk starts. Runs of commits nearly always come from the same
+     * starts, so they share one list rather than each getting their own.
+     */
+    private List<RefChange> getRefChanges(BitSet starts) {
+        if (starts.equals(lastStarts)) {
+            return lastStartRefChanges;
+        }
+
+        List<RefChange> refChanges = new ArrayList<>(starts.cardinality());
+        for (int i = starts.nextSetBit(0); i >= 0; i = starts.nextSetBit(i + 1)) {
+            refChanges.add(walkRefChanges.get(i));
+        }
+
+        lastStarts = starts;
+        lastStartRefChanges = Collections.unmodifiableList(refChanges);
+        return lastStartRefChanges;
+    }
+
+    /**
+     * A tag or new commit taken to be read. Its commit is set once it has been read, and stays null for a
+     * lightweight tag.
+     */
+    private static class PendingCommit {
+        private YaccCommit commit;
+        private final List<RefChange> refChanges;
+        private final ObjectId id;
+        /** Position of a tag in the stream's tags, or -1 for a commit. */
+        private final int tagIndex;
+        private final int parentCount;
+        private final BitSet starts;
+
+        private PendingCommit(ObjectId id, List<RefChange> refChanges, int tagIndex) {
+            this.id = id;
+            this.refChanges = refChanges;
+            this.tagIndex = tagIndex;
+            this.parentCount = -1;
+            this.starts = null;
+        }
+
+        private PendingCommit(ObjectId id, int parentCount, List<RefChange> refChanges, BitSet starts) {
+            this.id = id;
+            this.refChanges = refChanges;
+            this.tagIndex = -1;
+            this.parentCount = parentCount;
+            this.starts = starts;
+        }
+    }
+}
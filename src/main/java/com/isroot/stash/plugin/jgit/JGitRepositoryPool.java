@@ -0,0 +1,283 @@
+package com.isroot.stash.plugin.jgit;
+
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryModifiedEvent;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.atlassian.event.api.EventListener;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of opened JGit repositories keyed by Bitbucket repository id.
+ *
+ * Opening a JGit repository is cheap, but the pack indexes and file handles it loads are not. Keeping
+ * the repository open between pushes lets repeated hook runs reuse them. Entries are reference counted
+ * so a repository is never closed while a hook is still reading from it.
+ */
+public class JGitRepositoryPool {
+    private static final Logger log = LoggerFactory.getLogger(JGitRepositoryPool.class);
+
+    static final int DEFAULT_MAX_SIZE = 32;
+    static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final ApplicationPropertiesService applicationPropertiesService;
+    private final int maxSize;
+    private final long idleMillis;
+
+    /** Entries in least-recently-used order, guarded by {@code this}. */
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public JGitRepositoryPool(ApplicationPropertiesService applicationPropertiesService) {
+        this(applicationPropertiesService, DEFAULT_MAX_SIZE, DEFAULT_IDLE_MILLIS);
+    }
+
+    public JGitRepositoryPool(ApplicationPropertiesService applicationPropertiesService, int maxSize,
+                              long idleMillis) {
+        this.applicationPropertiesService = applicationPropertiesService;
+        this.maxSize = maxSize;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Get an open JGit repository for the given Bitbucket repository. The returned handle must be closed
+     * once the caller is done with it, which releases the reference but leaves the repository cached.
+     */
+    public PooledRepository acquire(Repository repository) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(repository.getId());
+            if (entry != null) {
+                entry.refCount++;
+                return new PooledRepository(entry);
+            }
+        }
+
+        // Opening reads from disk, so it is done without holding up other repositories. If another hook
+        // opened the same repository in the meantime, theirs is used and this one is closed again.
+        org.eclipse.jgit.lib.Repository opened = open(repository, Collections.<File>emptyList());
+
+        List<Entry> expired;
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(repository.getId());
+            if (entry == null) {
+                entry = new Entry(repository.getId(), opened);
+                entries.put(repository.getId(), entry);
+                opened = null;
+            }
+
+            entry.refCount++;
+
+            expired = removeExpired(System.currentTimeMillis());
+        }
+
+        if (opened != null) {
+            log.debug("repository {} was opened concurrently, closing duplicate", repository.getId());
+            opened.close();
+        }
+
+        closeAll(expired);
+
+        return new PooledRepository(entry);
+    }
+
+    /**
+     * Open a JGit repository for the given Bitbucket repository that also reads objects from {@code alternates},
+     * such as the quarantine directories of a push still being received. The repository isn't cached, closing
+     * the returned handle closes it.
+     */
+    public PooledRepository acquireWithAlternates(Repository repository, List<File> alternates)
+            throws IOException {
+        Entry entry = new Entry(repository.getId(), open(repository, alternates));
+        entry.refCount = 1;
+        entry.invalidated = true;
+
+        return new PooledRepository(entry);
+    }
+
+    /**
+     * Close and forget the cached repository for the given id. If the repository is currently in use it
+     * is closed when its last handle is released.
+     */
+    public void invalidate(int repositoryId) {
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.remove(repositoryId);
+            if (entry == null) {
+                return;
+            }
+
+            entry.invalidated = true;
+            if (entry.refCount > 0) {
+                entry = null;
+            }
+        }
+
+        if (entry != null) {
+            closeRepository(entry);
+        }
+    }
+
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        log.debug("repository {} deleted, closing cached jgit repository", event.getRepository().getId());
+
+        invalidate(event.getRepository().getId());
+    }
+
+    @EventListener
+    public void onRepositoryModified(RepositoryModifiedEvent event) {
+        log.debug("repository {} modified, closing cached jgit repository", event.getRepository().getId());
+
+        invalidate(event.getRepository().getId());
+    }
+
+    /**
+     * Close every cached repository. As with {@link #invalidate(int)}, repositories still in use are closed
+     * when their last handle is released.
+     */
+    @PreDestroy
+    public void destroy() {
+        List<Entry> idle = new ArrayList<>();
+
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                entry.invalidated = true;
+                if (entry.refCount == 0) {
+                    idle.add(entry);
+                }
+            }
+            entries.clear();
+        }
+
+        closeAll(idle);
+    }
+
+    /**
+     * Release a reference. Idle entries are evicted here as well as in {@link #acquire(Repository)}, so a
+     * pool that stops being used doesn't keep repositories open until the next push.
+     */
+    private void release(Entry entry) {
+        List<Entry> expired;
+        boolean close;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            entry.refCount--;
+            entry.lastReleased = now;
+
+            close = entry.invalidated && entry.refCount == 0;
+            expired = removeExpired(now);
+        }
+
+        if (close) {
+            closeRepository(entry);
+        }
+
+        closeAll(expired);
+    }
+
+    /**
+     * Remove idle entries that have not been used within the idle timeout, plus the least recently used
+     * idle entries if the pool has grown past its maximum size. Must hold the lock.
+     */
+    private List<Entry> removeExpired(long now) {
+        List<Entry> expired = new ArrayList<>();
+
+        int excess = entries.size() - maxSize;
+
+        Iterator<Map.Entry<Integer, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.refCount > 0) {
+                continue;
+            }
+
+            if (excess > 0 || now - entry.lastReleased > idleMillis) {
+                it.remove();
+                expired.add(entry);
+                excess--;
+            }
+        }
+
+        return expired;
+    }
+
+    private void closeAll(List<Entry> entries) {
+        for (Entry entry : entries) {
+            closeRepository(entry);
+        }
+    }
+
+    private void closeRepository(Entry entry) {
+        log.debug("closing jgit repository for repository {}", entry.repositoryId);
+
+        entry.repository.close();
+    }
+
+    private org.eclipse.jgit.lib.Repository open(Repository repository, List<File> alternates) throws IOException {
+        log.debug("opening jgit repository for repository {} with {} alternates", repository.getId(),
+                alternates.size());
+
+        FileRepositoryBuilder builder = new FileRepositoryBuilder();
+        File repoDir = applicationPropertiesService.getRepositoryDir(repository);
+        for (File alternate : alternates) {
+            builder.addAlternateObjectDirectory(alternate);
+        }
+        return builder.setGitDir(repoDir).build();
+    }
+
+    private static class Entry {
+        private final int repositoryId;
+        private final org.eclipse.jgit.lib.Repository repository;
+        private int refCount;
+        private long lastReleased = System.currentTimeMillis();
+        private boolean invalidated;
+
+        private Entry(int repositoryId, org.eclipse.jgit.lib.Repository repository) {
+            this.repositoryId = repositoryId;
+            this.repository = repository;
+        }
+    }
+
+    /**
+     * A reference to a pooled JGit repository. Closing the handle releases the reference, it does not
+     * close the underlying repository.
+     */
+    public class PooledRepository implements Closeable {
+        private final Entry entry;
+        private boolean released;
+
+        private PooledRepository(Entry entry) {
+            this.entry = entry;
+        }
+
+        public org.eclipse.jgit.lib.Repository getRepository() {
+            return entry.repository;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(entry);
+            }
+        }
+    }
+}
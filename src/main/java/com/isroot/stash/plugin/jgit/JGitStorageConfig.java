@@ -0,0 +1,85 @@
+package com.isroot.stash.plugin.jgit;
+
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.google.common.primitives.Ints;
+import com.isroot.stash.plugin.YaccUtils;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * JGit's pack storage settings, sized for a server running many hooks at once rather than JGit's desktop
+ * defaults.
+ *
+ * JGit keeps one window cache and delta base cache for the whole plugin, shared by every repository it
+ * opens, so the settings are installed once when the plugin starts. Each can be overridden in the global
+ * YACC settings; changes take effect the next time the plugin starts.
+ */
+public class JGitStorageConfig {
+    private static final Logger log = LoggerFactory.getLogger(JGitStorageConfig.class);
+
+    private static final int KB = 1024;
+    private static final int MB = 1024 * KB;
+
+    static final int DEFAULT_PACKED_GIT_WINDOW_SIZE_KB = 64;
+    static final int DEFAULT_PACKED_GIT_LIMIT_MB = 128;
+    static final int DEFAULT_PACKED_GIT_OPEN_FILES = 512;
+    static final int DEFAULT_DELTA_BASE_CACHE_LIMIT_MB = 32;
+
+    public JGitStorageConfig(PluginSettingsFactory pluginSettingsFactory) {
+        WindowCacheConfig config = toWindowCacheConfig(YaccUtils.getSettingsMap(pluginSettingsFactory));
+
+        try {
+            config.install();
+            log.info("JGit storage: {} KiB windows, {} MiB pack limit, {} open packs, {} MiB delta base cache, "
+                            + "mmap {}", config.getPackedGitWindowSize() / KB, config.getPackedGitLimit() / MB,
+                    config.getPackedGitOpenFiles(), config.getDeltaBaseCacheLimit() / MB,
+                    config.isPackedGitMMAP() ? "on" : "off");
+        } catch (IllegalArgumentException e) {
+            log.warn("invalid JGit storage settings, keeping JGit's defaults: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Build the window cache settings from the global YACC settings, using the server defaults for any that
+     * are unset or invalid.
+     */
+    public static WindowCacheConfig toWindowCacheConfig(Map<String, Object> settings) {
+        WindowCacheConfig config = new WindowCacheConfig();
+        config.setPackedGitWindowSize(toIntBytes("jgitPackedGitWindowSize", getPositiveInt(settings,
+                "jgitPackedGitWindowSize", DEFAULT_PACKED_GIT_WINDOW_SIZE_KB), KB));
+        config.setPackedGitLimit(getPositiveInt(settings, "jgitPackedGitLimit", DEFAULT_PACKED_GIT_LIMIT_MB)
+                * (long) MB);
+        config.setPackedGitOpenFiles(getPositiveInt(settings, "jgitPackedGitOpenFiles",
+                DEFAULT_PACKED_GIT_OPEN_FILES));
+        config.setDeltaBaseCacheLimit(toIntBytes("jgitDeltaBaseCacheLimit", getPositiveInt(settings,
+                "jgitDeltaBaseCacheLimit", DEFAULT_DELTA_BASE_CACHE_LIMIT_MB), MB));
+
+        Object mmap = settings.get("jgitPackedGitMMAP");
+        config.setPackedGitMMAP(mmap != null && (mmap.equals("on") || mmap.equals("true")));
+
+        return config;
+    }
+
+    /**
+     * Convert a setting to bytes for a {@link WindowCacheConfig} value that is an int, clamping values that
+     * don't fit rather than letting them overflow.
+     */
+    private static int toIntBytes(String key, int value, int unit) {
+        long bytes = (long) value * unit;
+        if (bytes > Integer.MAX_VALUE) {
+            log.warn("{} of {} is too large, using {} bytes", key, value, Integer.MAX_VALUE);
+            return Integer.MAX_VALUE;
+        }
+
+        return (int) bytes;
+    }
+
+    private static int getPositiveInt(Map<String, Object> settings, String key, int defaultValue) {
+        Object value = settings.get(key);
+        Integer i = value == null ? null : Ints.tryParse(value.toString().trim());
+        return i != null && i > 0 ? i : defaultValue;
+    }
+}
@@ -0,0 +1,293 @@
+package com.isroot.stash.plugin.jgit;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.BitmapIndex.Bitmap;
+import org.eclipse.jgit.lib.BitmapIndex.BitmapBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds commits that are reachable from one or more new ref tips but not from any existing branch.
+ *
+ * Existing branch tips are marked uninteresting on a single {@link RevWalk}, so the walk stops as soon as
+ * it reaches history that is already in the repository. Many branches usually share a handful of tips, so
+ * each tip commit is only marked once. When the repository has pack reachability bitmaps, tips that have a
+ * bitmap are not walked at all. Before the walk starts, the first commits behind the new tips that the bitmaps
+ * contain are found and marked uninteresting instead, so the walk stops there.
+ *
+ * Commits are returned in topological order, children before parents. The topological sort reads every new
+ * commit before returning the first one, so only commit headers are kept in memory while walking. A caller
+ * that needs a commit's body reads the object again, through {@link #getObjectReader()} or its own reader.
+ *
+ * When walking from several new tips at once, each commit is returned once, along with the set of tips it
+ * is reachable from. Because children are returned before their parents, that set is complete by the time
+ * a commit is returned and can be handed down to its parents.
+ */
+public class NewCommitWalker implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(NewCommitWalker.class);
+
+    private final RevWalk walk;
+    private final RevFlag tipFlag;
+    private final Map<RevCommit, BitSet> reachableFrom = new HashMap<>();
+    private BitSet currentStarts = new BitSet();
+    private boolean started;
+    private boolean skipMerges;
+
+    public NewCommitWalker(Repository repository) {
+        walk = new RevWalk(repository);
+        walk.setRetainBody(false);
+        walk.sort(RevSort.TOPO);
+
+        tipFlag = walk.newFlag("EXISTING_TIP");
+    }
+
+    /**
+     * Start walking from {@code start}, stopping at history reachable from any of {@code existingTips}.
+     */
+    public void markStart(AnyObjectId start, Collection<? extends AnyObjectId> existingTips) throws IOException {
+        markStart(Collections.singletonList(start), existingTips);
+    }
+
+    /**
+     * Start walking from every commit in {@code starts}, stopping at history reachable from any of
+     * {@code existingTips}. {@link #getCurrentStarts()} reports starts by their index in this list.
+     */
+    public void markStart(List<? extends AnyObjectId> starts, Collection<? extends AnyObjectId> existingTips)
+            throws IOException {
+        Map<AnyObjectId, BitSet> startSets = new LinkedHashMap<>();
+        for (int i = 0; i < starts.size(); i++) {
+            BitSet startSet = startSets.get(starts.get(i));
+            if (startSet == null) {
+                startSet = new BitSet();
+                startSets.put(starts.get(i), startSet);
+            }
+            startSet.set(i);
+        }
+
+        markStart(startSets, existingTips);
+    }
+
+    /**
+     * Start walking from every commit in {@code starts}, each already reachable from the starts in its set,
+     * stopping at history reachable from any of {@code existingTips}. Used to carry on from the
+     * {@link #getPendingStarts() pending starts} of an earlier walk.
+     */
+    public void markStart(Map<? extends AnyObjectId, BitSet> starts, Collection<? extends AnyObjectId> existingTips)
+            throws IOException {
+        Map<RevCommit, BitSet> startCommits = new LinkedHashMap<>();
+        for (Map.Entry<? extends AnyObjectId, BitSet> start : starts.entrySet()) {
+            startCommits.put(walk.parseCommit(start.getKey()), start.getValue());
+        }
+
+        // Tips covered by a reachability bitmap don't need their history walked, a commit is known to be
+        // reachable from them as soon as the walk reaches it
+        BitmapIndex bitmapIndex = walk.getObjectReader().getBitmapIndex();
+        BitmapBuilder existing = null;
+
+        int marked = 0;
+        int bitmapped = 0;
+        for (AnyObjectId tip : existingTips) {
+            RevCommit tipCommit = walk.lookupCommit(tip);
+            if (tipCommit.has(tipFlag)) {
+                continue;
+            }
+            tipCommit.add(tipFlag);
+
+            Bitmap bitmap = bitmapIndex != null ? bitmapIndex.getBitmap(tipCommit) : null;
+            if (bitmap != null) {
+                if (existing == null) {
+                    existing = bitmapIndex.newBitmapBuilder();
+                }
+                existing.or(bitmap);
+                bitmapped++;
+                continue;
+            }
+
+            try {
+                walk.markUninteresting(tipCommit);
+                marked++;
+            } catch (MissingObjectException | IncorrectObjectTypeException e) {
+                log.debug("ignoring branch tip {}: {}", tip.name(), e.getMessage());
+            }
+        }
+
+        log.debug("walking from {} new tips with {} distinct branch tips, {} of them bitmapped",
+                startCommits.size(), marked + bitmapped, bitmapped);
+
+        if (existing != null) {
+            markBitmapFrontier(startCommits.keySet(), existing);
+        }
+
+        for (Map.Entry<RevCommit, BitSet> start : startCommits.entrySet()) {
+            RevCommit startCommit = start.getKey();
+            if (startCommit.has(tipFlag) || startCommit.has(RevFlag.UNINTERESTING)) {
+                // The pushed commit is already on a branch, so nothing about it is new
+                log.debug("{} is already on a branch", startCommit.name());
+                continue;
+            }
+
+            getReachableFrom(startCommit).or(start.getValue());
+
+            walk.markStart(startCommit);
+            started = true;
+        }
+    }
+
+    /**
+     * Skip merge commits, for configurations that would ignore them anyway. Merges are still walked so the
+     * history behind them is found, they are just not returned.
+     */
+    public void setSkipMerges(boolean skipMerges) {
+        this.skipMerges = skipMerges;
+    }
+
+    /**
+     * Return the next new commit, or null once there are no more. Only the commit headers are parsed.
+     */
+    public RevCommit next() throws IOException {
+        if (!started) {
+            return null;
+        }
+
+        while (true) {
+            RevCommit commit = walk.next();
+            if (commit == null) {
+                currentStarts = new BitSet();
+                return null;
+            }
+
+            currentStarts = reachableFrom.remove(commit);
+            if (currentStarts == null) {
+                currentStarts = new BitSet();
+            }
+
+            // Skipped merges must still hand their starts down, or commits behind them lose track of them
+            for (RevCommit parent : commit.getParents()) {
+                if (!parent.has(RevFlag.UNINTERESTING)) {
+                    getReachableFrom(parent).or(currentStarts);
+                }
+            }
+
+            if (skipMerges && commit.getParentCount() > 1) {
+                log.debug("skipping merge commit {}", commit.name());
+                continue;
+            }
+
+            return commit;
+        }
+    }
+
+    /**
+     * Return the indexes of the starts that the commit last returned by {@link #next()} is reachable from.
+     */
+    public BitSet getCurrentStarts() {
+        return currentStarts;
+    }
+
+    /**
+     * Return the commits the rest of the walk is reachable from, each with the starts it is reachable from
+     * so far: starts not returned yet, and commits reached from commits already returned. Children come
+     * before parents, so nothing already returned is reachable from these, and a walk started from them
+     * with {@link #markStart(Map, Collection)} returns exactly the commits this walk has still to return.
+     */
+    public Map<ObjectId, BitSet> getPendingStarts() {
+        Map<ObjectId, BitSet> pendingStarts = new HashMap<>();
+
+        Iterator<Map.Entry<RevCommit, BitSet>> entries = reachableFrom.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<RevCommit, BitSet> entry = entries.next();
+
+            // Reached from a new commit before the walk found it is on an existing branch, so it won't be
+            // returned and isn't somewhere to carry on from
+            if (entry.getKey().has(RevFlag.UNINTERESTING)) {
+                entries.remove();
+                continue;
+            }
+
+            pendingStarts.put(entry.getKey().copy(), (BitSet) entry.getValue().clone());
+        }
+
+        return pendingStarts;
+    }
+
+    /**
+     * Reader the walk reads objects with, so reading a returned commit's body shares its caches.
+     */
+    public ObjectReader getObjectReader() {
+        return walk.getObjectReader();
+    }
+
+    @Override
+    public void close() {
+        walk.release();
+    }
+
+    /**
+     * Mark uninteresting the first commits behind {@code starts} that {@code existing} contains, before the
+     * walk starts. RevWalk stops at them like at any other existing commit, and carries the flag to the history
+     * behind them, none of which is read. Only commits the bitmaps don't cover are parsed to find them, and the
+     * walk needs those parsed anyway.
+     */
+    private void markBitmapFrontier(Collection<RevCommit> starts, BitmapBuilder existing) throws IOException {
+        Set<RevCommit> seen = new HashSet<>(starts);
+        Deque<RevCommit> pending = new ArrayDeque<>(seen);
+        int frontier = 0;
+
+        while (!pending.isEmpty()) {
+            RevCommit commit = pending.removeFirst();
+            if (commit.has(RevFlag.UNINTERESTING)) {
+                continue;
+            }
+
+            if (existing.contains(commit)) {
+                walk.markUninteresting(commit);
+                frontier++;
+                continue;
+            }
+
+            walk.parseHeaders(commit);
+            for (RevCommit parent : commit.getParents()) {
+                if (seen.add(parent)) {
+                    pending.addLast(parent);
+                }
+            }
+        }
+
+        log.debug("{} commits behind the new tips are covered by bitmaps", frontier);
+    }
+
+    private BitSet getReachableFrom(RevCommit commit) {
+        BitSet starts = reachableFrom.get(commit);
+        if (starts == null) {
+            starts = new BitSet();
+            reachableFrom.put(commit, starts);
+        }
+
+        return starts;
+    }
+}
@@ -0,0 +1,186 @@
+package com.isroot.stash.plugin.jgit;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads chunks of tag or commit objects on a worker pool, returning each chunk in the order it was added.
+ *
+ * Callers split their objects into chunks of {@link #CHUNK_SIZE}. Each chunk is read by one worker with its
+ * own {@link ObjectReader} and {@link IdentityTable}, since neither is thread safe. Callers should only keep
+ * {@link #isFull() a couple of chunks per worker} ahead of the one they are reading, so a push of many
+ * thousands of objects doesn't hold them all in memory at once.
+ */
+class ParallelObjectReader implements Closeable {
+    static final int CHUNK_SIZE = 64;
+
+    private final Repository repository;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final int messageWindow;
+
+    private final Deque<Future<List<RawYaccCommit>>> inFlight = new ArrayDeque<>();
+
+    /**
+     * @param parallelism number of chunks to read at once, normally the number of workers
+     * @param messageWindow bytes of each message to keep, or 0 for all of it
+     */
+    ParallelObjectReader(Repository repository, ExecutorService executor, int parallelism, int messageWindow) {
+        this.repository = repository;
+        this.executor = executor;
+        this.maxInFlight = parallelism * 2;
+        this.messageWindow = messageWindow;
+    }
+
+    /**
+     * Whether enough chunks are being read already.
+     */
+    boolean isFull() {
+        return inFlight.size() >= maxInFlight;
+    }
+
+    /**
+     * Start reading a chunk of objects that may be annotated tags, see {@link #readTag}.
+     */
+    void addTags(final List<ObjectId> ids) {
+        inFlight.addLast(executor.submit(new ReadChunk() {
+            @Override
+            RawYaccCommit read(ObjectReader reader, int index, IdentityTable identities) throws IOException {
+                return readTag(reader, ids.get(index), messageWindow, identities);
+            }
+
+            @Override
+            int size() {
+                return ids.size();
+            }
+        }));
+    }
+
+    /**
+     * Start reading a chunk of commits, each with its number of parents.
+     */
+    void addCommits(final List<ObjectId> ids, final int[] parentCounts) {
+        inFlight.addLast(executor.submit(new ReadChunk() {
+            @Override
+            RawYaccCommit read(ObjectReader reader, int index, IdentityTable identities) throws IOException {
+                return readCommit(reader, ids.get(index), parentCounts[index], messageWindow, identities);
+            }
+
+            @Override
+            int size() {
+                return ids.size();
+            }
+        }));
+    }
+
+    /**
+     * Wait for the oldest chunk still being read and return its objects, in the order they were added.
+     */
+    List<RawYaccCommit> take() throws IOException {
+        Future<List<RawYaccCommit>> future = inFlight.removeFirst();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading objects");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Future<List<RawYaccCommit>> future : inFlight) {
+            future.cancel(true);
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * Read the tag object {@code id}, or return null if it is some other type of object.
+     */
+    static RawYaccCommit readTag(ObjectReader reader, ObjectId id, int messageWindow, IdentityTable identities)
+            throws IOException {
+        ObjectLoader loader = reader.open(id);
+        if (loader.getType() != Constants.OBJ_TAG) {
+            return null;
+        }
+
+        if (messageWindow <= 0) {
+            return RawYaccCommit.parseTag(id.name(), loader.getCachedBytes(Integer.MAX_VALUE), identities);
+        }
+
+        ObjectStream in = loader.openStream();
+        try {
+            return RawYaccCommit.readTag(id.name(), new BufferedInputStream(in), loader.getSize(), messageWindow,
+                    identities);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read commit {@code id}. With a message window the object is streamed, so only the window of a long
+     * message is ever kept.
+     */
+    static RawYaccCommit readCommit(ObjectReader reader, AnyObjectId id, int parentCount, int messageWindow,
+                                    IdentityTable identities) throws IOException {
+        ObjectLoader loader = reader.open(id, Constants.OBJ_COMMIT);
+        if (messageWindow <= 0) {
+            return RawYaccCommit.parse(id.name(), parentCount, loader.getCachedBytes(Integer.MAX_VALUE),
+                    identities);
+        }
+
+        ObjectStream in = loader.openStream();
+        try {
+            return RawYaccCommit.readCommit(id.name(), parentCount, new BufferedInputStream(in), loader.getSize(),
+                    messageWindow, identities);
+        } finally {
+            in.close();
+        }
+    }
+
+    private abstract class ReadChunk implements Callable<List<RawYaccCommit>> {
+        abstract RawYaccCommit read(ObjectReader reader, int index, IdentityTable identities) throws IOException;
+
+        abstract int size();
+
+        @Override
+        public List<RawYaccCommit> call() throws IOException {
+            List<RawYaccCommit> objects = new ArrayList<>(size());
+            IdentityTable identities = new IdentityTable();
+
+            ObjectReader reader = repository.newObjectReader();
+            try {
+                for (int i = 0; i < size(); i++) {
+                    objects.add(read(reader, i, identities));
+                }
+            } finally {
+                reader.release();
+            }
+
+            return objects;
+        }
+    }
+}
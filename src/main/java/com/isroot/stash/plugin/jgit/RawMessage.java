@@ -0,0 +1,63 @@
+package com.isroot.stash.plugin.jgit;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link CharSequence} view over a range of ASCII text in a raw git object. Reading it does not decode or
+ * copy the message, only {@link #toString()} allocates.
+ *
+ * It is also used as a view over text that may not be ASCII, for scanning for ASCII tokens. Bytes outside
+ * ASCII then read as characters that are not ASCII either, so they never match an ASCII pattern.
+ */
+class RawMessage implements CharSequence {
+    private final byte[] raw;
+    private final int start;
+    private final int end;
+
+    RawMessage(byte[] raw, int start, int end) {
+        this.raw = raw;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Return true if {@code raw[start, end)} is plain 7-bit ASCII.
+     */
+    static boolean isAscii(byte[] raw, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (raw[i] < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        }
+
+        return (char) raw[start + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > length() || from > to) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + length());
+        }
+
+        return new RawMessage(raw, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        return new String(raw, start, length(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,342 @@
+package com.isroot.stash.plugin.jgit;
+
+import com.isroot.stash.plugin.IssueKeyScanner;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.YaccPerson;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+
+/**
+ * {@link YaccCommit} parsed straight from a raw commit or annotated tag object, whether it was read with JGit
+ * or by native git. Only the committer line is parsed up front, the message is decoded the first time a
+ * message check asks for it, or not at all if the check can read it through {@link #getMessageChars()}.
+ *
+ * Objects {@link #readCommit read} from a stream with a message window keep only the headers and the window
+ * of the message. The rest of the message is scanned for issue keys as it goes past, and only those keys
+ * are kept, so memory held per commit is the header plus about twice the window however long the message
+ * is. Such a commit's {@link #getMessage()} is the message window only.
+ */
+public class RawYaccCommit extends YaccCommit {
+    /** Bytes read at a time from the part of a long message past the window. */
+    private static final int OVERFLOW_CHUNK_SIZE = 64 * 1024;
+
+    private byte[] raw;
+    private final int messageStart;
+
+    /** Encoded length of the whole message if {@code raw} only holds its window, otherwise -1. */
+    private long messageLength = -1;
+    /** Issue keys found past the window, one per line. */
+    private String overflowKeys;
+
+    private RawYaccCommit(String id, YaccPerson committer, int parentCount, byte[] raw, int messageStart) {
+        super(id, committer, parentCount);
+        this.raw = raw;
+        this.messageStart = messageStart;
+    }
+
+    /**
+     * Create a commit from the raw bytes of a commit object. The committer is looked up in {@code identities},
+     * so commits by the same person share one identity.
+     *
+     * Note that we use committer, instead of author -- for most commits, these will be identical. Where
+     * this differs is if a patch *author* submits a patch (eg, consider an external contribution), and
+     * the *committer* actually applies the patch.
+     *
+     * By validating the committer here, we can allow surrogate commits on behalf of patch submitters,
+     * while still ensuring that the authenticated user is either the author *or* the committer.
+     */
+    public static RawYaccCommit parse(String id, int parentCount, byte[] raw, IdentityTable identities) {
+        int committerStart = RawParseUtils.committer(raw, 0);
+        YaccPerson committer = committerStart < 0 ? null : identities.lookup(raw, committerStart);
+        if (committer == null) {
+            throw new IllegalArgumentException("commit " + id + " has no committer");
+        }
+
+        return new RawYaccCommit(id, committer, parentCount, raw, RawParseUtils.commitMessage(raw, 0));
+    }
+
+    /**
+     * Create a commit from the raw bytes of an annotated tag object. The tagger is checked as the committer.
+     * Very old tags have no tagger, those get an empty identity.
+     */
+    public static RawYaccCommit parseTag(String id, byte[] raw, IdentityTable identities) {
+        int taggerStart = RawParseUtils.tagger(raw, 0);
+        YaccPerson tagger = taggerStart < 0 ? null : identities.lookup(raw, taggerStart);
+        if (tagger == null) {
+            tagger = new YaccPerson("", "");
+        }
+
+        return new RawYaccCommit(id, tagger, 1, raw, RawParseUtils.tagMessage(raw, 0));
+    }
+
+    /**
+     * Read a commit object of {@code size} bytes from {@code in}, which is left just after it. If
+     * {@code messageWindow} is positive, only that much of the message is kept, see the class comment.
+     */
+    public static RawYaccCommit readCommit(String id, int parentCount, InputStream in, long size,
+                                           int messageWindow, IdentityTable identities) throws IOException {
+        return read(id, parentCount, in, size, messageWindow, identities);
+    }
+
+    /**
+     * Read an annotated tag object of {@code size} bytes from {@code in}, like {@link #readCommit}.
+     */
+    public static RawYaccCommit readTag(String id, InputStream in, long size, int messageWindow,
+                                        IdentityTable identities) throws IOException {
+        return read(id, -1, in, size, messageWindow, identities);
+    }
+
+    /**
+     * @param parentCount parent count of a commit, or -1 for a tag
+     */
+    private static RawYaccCommit read(String id, int parentCount, InputStream in, long size, int messageWindow,
+                                      IdentityTable identities) throws IOException {
+        if (messageWindow <= 0) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("object " + id + " is too large to read");
+            }
+
+            byte[] raw = new byte[(int) size];
+            IO.readFully(in, raw, 0, raw.length);
+            return parseObject(id, parentCount, raw, identities);
+        }
+
+        // Headers are read whole, they end at the first blank line
+        byte[] raw = new byte[(int) Math.min(size, 1024)];
+        int headerEnd = 0;
+        while (headerEnd < size && (headerEnd < 2 || raw[headerEnd - 2] != '\n' || raw[headerEnd - 1] != '\n')) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("object " + id + " ended early");
+            }
+            if (headerEnd == raw.length) {
+                raw = Arrays.copyOf(raw, (int) Math.min(size, Math.min(Integer.MAX_VALUE - 8, raw.length * 2L)));
+            }
+            raw[headerEnd++] = (byte) b;
+        }
+
+        // One byte past the window is kept to find where the window can end
+        long messageSize = size - headerEnd;
+        boolean truncated = messageSize > messageWindow + 1;
+        int kept = truncated ? messageWindow + 1 : (int) messageSize;
+        raw = Arrays.copyOf(raw, headerEnd + kept);
+        IO.readFully(in, raw, headerEnd, kept);
+
+        RawYaccCommit commit = parseObject(id, parentCount, raw, identities);
+        if (truncated) {
+            commit.truncate(in, messageSize - kept, messageWindow);
+        }
+
+        return commit;
+    }
+
+    private static RawYaccCommit parseObject(String id, int parentCount, byte[] raw, IdentityTable identities) {
+        return parentCount < 0 ? parseTag(id, raw, identities) : parse(id, parentCount, raw, identities);
+    }
+
+    /**
+     * Cut the message back to the window, then read the {@code remaining} bytes of it from {@code in},
+     * keeping only the issue keys found in them. The stream is read in chunks cut after a character that
+     * can't be part of a key, so a key is never split between chunks.
+     */
+    private void truncate(InputStream in, long remaining, int messageWindow) throws IOException {
+        int windowEnd = getWindowEnd(messageWindow);
+        long encodedLength = raw.length - messageStart + remaining;
+
+        final StringBuilder keys = new StringBuilder();
+        final int maxKeysLength = messageWindow;
+        IssueKeyScanner.Visitor visitor = new IssueKeyScanner.Visitor() {
+            private boolean full;
+
+            @Override
+            public void issueKey(CharSequence input, int projectStart, int projectEnd, int idEnd) {
+                // Keep the first keys that fit in the window, like a message that was cut there
+                full = full || keys.length() + idEnd - projectStart >= maxKeysLength;
+                if (!full) {
+                    keys.append(input, projectStart, idEnd).append('\n');
+                }
+            }
+        };
+
+        byte[] chunk = new byte[OVERFLOW_CHUNK_SIZE + 2 * MAX_TOKEN_LENGTH];
+        int length = raw.length - windowEnd;
+        System.arraycopy(raw, windowEnd, chunk, 0, length);
+        byte last;
+
+        while (true) {
+            int n = (int) Math.min(chunk.length - length, remaining);
+            IO.readFully(in, chunk, length, n);
+            remaining -= n;
+            length += n;
+            last = chunk[length - 1];
+
+            int cut = length;
+            if (remaining > 0) {
+                while (cut > 0 && isTokenChar((char) chunk[cut - 1])) {
+                    cut--;
+                }
+                if (length - cut > MAX_TOKEN_LENGTH) {
+                    // Longer than any token worth finding
+                    cut = length;
+                }
+            }
+
+            IssueKeyScanner.scan(new RawMessage(chunk, 0, cut), null, visitor);
+            if (remaining == 0) {
+                break;
+            }
+
+            System.arraycopy(chunk, cut, chunk, 0, length - cut);
+            length -= cut;
+        }
+
+        // Same as YaccCommit, a single trailing newline is not part of the message
+        messageLength = last == '\n' ? encodedLength - 1 : encodedLength;
+        raw = Arrays.copyOf(raw, windowEnd);
+        overflowKeys = keys.toString();
+    }
+
+    /**
+     * Plain ASCII messages, which is nearly all of them, are matched straight from the raw commit without
+     * being decoded. JGit tries UTF-8 before the declared encoding, so ASCII reads the same whatever the
+     * commit declares. Anything else falls back to the decoded message.
+     */
+    @Override
+    public CharSequence getMessageChars() {
+        if (raw == null || messageStart < 0) {
+            return getMessage();
+        }
+
+        int messageEnd = getMessageEnd();
+        if (RawMessage.isAscii(raw, messageStart, messageEnd)) {
+            return new RawMessage(raw, messageStart, messageEnd);
+        }
+
+        return getMessage();
+    }
+
+    /**
+     * Compares the encoded length, so a long message is never decoded just to measure it.
+     */
+    @Override
+    public boolean isMessageLongerThan(int maxLength) {
+        if (messageLength >= 0) {
+            return messageLength > maxLength;
+        }
+
+        if (raw == null || messageStart < 0) {
+            return super.isMessageLongerThan(maxLength);
+        }
+
+        return getMessageEnd() - messageStart > maxLength;
+    }
+
+    /**
+     * Returns at most {@code maxLength} bytes of the message. Only those bytes are decoded, cut back to the
+     * start of a UTF-8 character so the window doesn't end in a broken one. The rest of the message is never
+     * decoded, however long it is.
+     */
+    @Override
+    public CharSequence getMessageChars(int maxLength) {
+        if (raw == null || messageStart < 0 || getMessageEnd() - messageStart <= maxLength) {
+            return super.getMessageChars(maxLength);
+        }
+
+        int windowEnd = getWindowEnd(maxLength);
+        if (RawMessage.isAscii(raw, messageStart, windowEnd)) {
+            return new RawMessage(raw, messageStart, windowEnd);
+        }
+
+        return RawParseUtils.decode(getEncoding(), raw, messageStart, windowEnd);
+    }
+
+    /**
+     * Past the window a commit was read with, only the issue keys are left, so those are returned for that
+     * part of the message.
+     */
+    @Override
+    public CharSequence getMessageOverflow(int maxLength) {
+        CharSequence overflow;
+        if (raw == null || messageStart < 0) {
+            overflow = super.getMessageOverflow(maxLength);
+        } else if (getMessageEnd() - messageStart <= maxLength) {
+            overflow = "";
+        } else {
+            overflow = new RawMessage(raw, getWindowEnd(maxLength), getMessageEnd());
+        }
+
+        if (messageLength < 0) {
+            return overflow;
+        }
+
+        return overflow.length() == 0 ? overflowKeys : overflow + "\n" + overflowKeys;
+    }
+
+    /**
+     * Same as YaccCommit, a single trailing newline is not part of the message. A message cut back to its
+     * window ends where it was cut.
+     */
+    private int getMessageEnd() {
+        int messageEnd = raw.length;
+        if (messageLength >= 0) {
+            return messageEnd;
+        }
+
+        if (messageEnd > messageStart && raw[messageEnd - 1] == '\n') {
+            messageEnd--;
+        }
+
+        return messageEnd;
+    }
+
+    /**
+     * End of a window of at most {@code maxLength} bytes, moved back so it doesn't split a UTF-8 character or,
+     * within {@link #MAX_TOKEN_LENGTH}, a token such as an issue key. A UTF-8 character has at most three
+     * continuation bytes, a longer run of them isn't UTF-8 and is cut where it is.
+     */
+    private int getWindowEnd(int maxLength) {
+        int windowEnd = messageStart + maxLength;
+        int characterStart = Math.max(messageStart, windowEnd - 3);
+        while (windowEnd > characterStart && (raw[windowEnd] & 0xc0) == 0x80) {
+            windowEnd--;
+        }
+
+        int tokenEnd = windowEnd;
+        while (tokenEnd > windowEnd - MAX_TOKEN_LENGTH && tokenEnd > messageStart
+                && isTokenChar((char) raw[tokenEnd - 1]) && isTokenChar((char) raw[tokenEnd])) {
+            tokenEnd--;
+        }
+
+        return tokenEnd > windowEnd - MAX_TOKEN_LENGTH && tokenEnd > messageStart ? tokenEnd : windowEnd;
+    }
+
+    @Override
+    protected String loadMessage() {
+        String message = messageStart < 0 ? "" : RawParseUtils.decode(getEncoding(), raw, messageStart, raw.length);
+
+        // The message is cached by YaccCommit, so the raw object isn't needed anymore
+        raw = null;
+
+        return message;
+    }
+
+    /**
+     * Same fallback as {@code RevCommit.getFullMessage()}, an unknown encoding header is treated as UTF-8.
+     */
+    private Charset getEncoding() {
+        try {
+            return RawParseUtils.parseEncoding(raw);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            return Constants.CHARSET;
+        }
+    }
+}
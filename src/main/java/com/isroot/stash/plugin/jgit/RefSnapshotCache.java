@@ -0,0 +1,217 @@
+package com.isroot.stash.plugin.jgit;
+
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.event.api.EventListener;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory snapshot of branch tips per repository.
+ *
+ * Reading every ref from disk on each push is expensive on repositories with many branches. The snapshot is
+ * read from the ref database once, then kept up to date from Bitbucket ref change events. It is rebuilt if
+ * it is missing or older than the maximum age, which bounds the effect of ref changes that don't raise an
+ * event.
+ */
+public class RefSnapshotCache {
+    private static final Logger log = LoggerFactory.getLogger(RefSnapshotCache.class);
+
+    static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** Most branch tips read by one call to {@link #getBranchTipsCommittedSince}. */
+    static final int MAX_TIP_READS = 500;
+
+    private final long maxAgeMillis;
+    private final ConcurrentMap<Integer, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every event for a repository, so a snapshot read from disk while an event was being
+     * applied is not cached.
+     */
+    private final ConcurrentMap<Integer, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    public RefSnapshotCache() {
+        this(DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public RefSnapshotCache(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Return the tip of every branch in the repository. The returned collection may contain duplicates.
+     */
+    public Collection<ObjectId> getBranchTips(Repository repository, org.eclipse.jgit.lib.Repository jGitRepo)
+            throws IOException {
+        return Collections.unmodifiableCollection(getSnapshot(repository, jGitRepo).branches.values());
+    }
+
+    /**
+     * Return the tip of every branch whose commit time is {@code commitTime} or later. Commit times are read
+     * once per tip and remembered, also across snapshot rebuilds, so repeated calls don't read the tips again.
+     *
+     * At most {@link #MAX_TIP_READS} tips are read per call. If more than that are still unknown, the ones
+     * read are remembered for next time and null is returned, so the first push after many branches were
+     * created doesn't pay for reading all of them.
+     *
+     * @return the tips, or null if too many tip commit times are still unknown
+     */
+    @Nullable
+    public Collection<ObjectId> getBranchTipsCommittedSince(Repository repository,
+                                                            org.eclipse.jgit.lib.Repository jGitRepo,
+                                                            int commitTime) throws IOException {
+        Snapshot snapshot = getSnapshot(repository, jGitRepo);
+        Set<ObjectId> tips = new HashSet<>();
+        int reads = 0;
+
+        RevWalk walk = null;
+        try {
+            for (ObjectId tip : snapshot.branches.values()) {
+                Integer tipTime = snapshot.commitTimes.get(tip);
+                if (tipTime == null) {
+                    if (reads++ == MAX_TIP_READS) {
+                        log.debug("more than {} branch tips to read for repository {}", MAX_TIP_READS,
+                                repository.getId());
+                        return null;
+                    }
+
+                    if (walk == null) {
+                        walk = new RevWalk(jGitRepo);
+                        walk.setRetainBody(false);
+                    }
+
+                    try {
+                        tipTime = walk.parseCommit(tip).getCommitTime();
+                    } catch (MissingObjectException | IncorrectObjectTypeException e) {
+                        // Not a commit, so nothing is reachable from it
+                        tipTime = Integer.MIN_VALUE;
+                    }
+                    snapshot.commitTimes.put(tip, tipTime);
+                }
+
+                if (tipTime >= commitTime) {
+                    tips.add(tip);
+                }
+            }
+        } finally {
+            if (walk != null) {
+                walk.release();
+            }
+        }
+
+        return tips;
+    }
+
+    private Snapshot getSnapshot(Repository repository, org.eclipse.jgit.lib.Repository jGitRepo)
+            throws IOException {
+        Snapshot snapshot = snapshots.get(repository.getId());
+        if (snapshot != null && System.currentTimeMillis() - snapshot.created <= maxAgeMillis) {
+            return snapshot;
+        }
+
+        AtomicLong generation = getGeneration(repository.getId());
+        long generationBeforeRead = generation.get();
+
+        snapshot = new Snapshot(jGitRepo.getRefDatabase().getRefs(Constants.R_HEADS), snapshot);
+
+        log.debug("read {} branches for repository {}", snapshot.branches.size(), repository.getId());
+
+        if (generation.get() == generationBeforeRead) {
+            snapshots.put(repository.getId(), snapshot);
+        }
+
+        return snapshot;
+    }
+
+    public void invalidate(int repositoryId) {
+        getGeneration(repositoryId).incrementAndGet();
+        snapshots.remove(repositoryId);
+    }
+
+    @EventListener
+    public void onRefsChanged(RepositoryRefsChangedEvent event) {
+        getGeneration(event.getRepository().getId()).incrementAndGet();
+
+        Snapshot snapshot = snapshots.get(event.getRepository().getId());
+        if (snapshot == null) {
+            return;
+        }
+
+        for (RefChange refChange : event.getRefChanges()) {
+            String refId = refChange.getRefId();
+            if (!refId.startsWith(Constants.R_HEADS)) {
+                continue;
+            }
+
+            String branch = refId.substring(Constants.R_HEADS.length());
+            if (refChange.getType() == RefChangeType.DELETE) {
+                snapshot.branches.remove(branch);
+            } else {
+                snapshot.branches.put(branch, ObjectId.fromString(refChange.getToHash()));
+            }
+        }
+    }
+
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        invalidate(event.getRepository().getId());
+    }
+
+    private AtomicLong getGeneration(int repositoryId) {
+        AtomicLong generation = generations.get(repositoryId);
+        if (generation == null) {
+            generations.putIfAbsent(repositoryId, new AtomicLong());
+            generation = generations.get(repositoryId);
+        }
+
+        return generation;
+    }
+
+    private static class Snapshot {
+        private final long created = System.currentTimeMillis();
+        private final Map<String, ObjectId> branches = new ConcurrentHashMap<>();
+
+        /** Commit time of each tip, keyed by commit so it stays valid as branches move. */
+        private final Map<ObjectId, Integer> commitTimes = new ConcurrentHashMap<>();
+
+        /**
+         * Read from {@code refs}, keeping the commit times {@code previous} knows for tips that are still
+         * there.
+         */
+        private Snapshot(Map<String, Ref> refs, @Nullable Snapshot previous) {
+            for (Map.Entry<String, Ref> ref : refs.entrySet()) {
+                ObjectId objectId = ref.getValue().getObjectId();
+                if (objectId != null) {
+                    branches.put(ref.getKey(), objectId);
+
+                    Integer commitTime = previous != null ? previous.commitTimes.get(objectId) : null;
+                    if (commitTime != null) {
+                        commitTimes.put(objectId, commitTime);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.isroot.stash.plugin.regex;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link YaccPattern} matched by {@link java.util.regex}.
+ */
+class JavaPattern extends YaccPattern {
+    private final Pattern pattern;
+
+    JavaPattern(String regex, int flags, int stepBudget) {
+        super(regex, stepBudget);
+        pattern = Pattern.compile(regex, (flags & MULTILINE) != 0 ? Pattern.MULTILINE : 0);
+    }
+
+    @Override
+    boolean matchesInput(CharSequence input) {
+        return pattern.matcher(input).matches();
+    }
+
+    @Override
+    boolean findInInput(CharSequence input) {
+        return pattern.matcher(input).find();
+    }
+
+    @Override
+    String matchGroupOfInput(CharSequence input, int group) {
+        Matcher matcher = pattern.matcher(input);
+        if (!matcher.matches() || matcher.groupCount() < group) {
+            return null;
+        }
+
+        return matcher.group(group);
+    }
+}
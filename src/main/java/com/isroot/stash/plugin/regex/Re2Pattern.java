@@ -0,0 +1,44 @@
+package com.isroot.stash.plugin.regex;
+
+import com.google.re2j.Matcher;
+import com.google.re2j.Pattern;
+
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * {@link YaccPattern} matched by RE2/J, in time linear in the length of the input.
+ */
+class Re2Pattern extends YaccPattern {
+    private final Pattern pattern;
+
+    Re2Pattern(String regex, int flags, int stepBudget) {
+        super(regex, stepBudget);
+
+        try {
+            pattern = Pattern.compile(regex, (flags & MULTILINE) != 0 ? Pattern.MULTILINE : 0);
+        } catch (com.google.re2j.PatternSyntaxException e) {
+            // Callers handle one exception whichever engine compiled the pattern
+            throw new PatternSyntaxException(e.getDescription(), regex, -1);
+        }
+    }
+
+    @Override
+    boolean matchesInput(CharSequence input) {
+        return pattern.matcher(input).matches();
+    }
+
+    @Override
+    boolean findInInput(CharSequence input) {
+        return pattern.matcher(input).find();
+    }
+
+    @Override
+    String matchGroupOfInput(CharSequence input, int group) {
+        Matcher matcher = pattern.matcher(input);
+        if (!matcher.matches() || matcher.groupCount() < group) {
+            return null;
+        }
+
+        return matcher.group(group);
+    }
+}
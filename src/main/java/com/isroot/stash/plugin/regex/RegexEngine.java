@@ -0,0 +1,44 @@
+package com.isroot.stash.plugin.regex;
+
+import com.atlassian.bitbucket.setting.Settings;
+
+import javax.annotation.Nullable;
+
+/**
+ * The regex engine the commit message, exclude and branch name regexes are matched with.
+ */
+public enum RegexEngine {
+    /**
+     * {@link java.util.regex}, which supports every Java regex feature. It backtracks, so some patterns take
+     * exponential time on input they nearly match.
+     */
+    BACKTRACKING,
+
+    /**
+     * RE2/J, which matches in time linear in the length of the input whatever the pattern. It doesn't
+     * support features that need backtracking, such as backreferences, lookahead and lookbehind, atomic
+     * groups and possessive quantifiers.
+     */
+    LINEAR;
+
+    public static RegexEngine fromSettings(Settings settings) {
+        RegexEngine engine = parse(settings.getString("regexEngine"));
+        return engine != null ? engine : BACKTRACKING;
+    }
+
+    /**
+     * Return the engine named by {@code value}, or null if it is empty or not a known engine.
+     */
+    @Nullable
+    public static RegexEngine parse(@Nullable String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return valueOf(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.isroot.stash.plugin.regex;
+
+/**
+ * Thrown when matching a {@link YaccPattern} reads more characters of its input than the pattern's step
+ * budget allows, which stops a pattern that backtracks badly from holding a push open.
+ */
+public class StepBudgetExceededException extends RuntimeException {
+    private final String pattern;
+    private final int stepBudget;
+
+    public StepBudgetExceededException(String pattern, int stepBudget) {
+        super(String.format("regex '%s' gave up after %d steps", pattern, stepBudget));
+        this.pattern = pattern;
+        this.stepBudget = stepBudget;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public int getStepBudget() {
+        return stepBudget;
+    }
+}
@@ -0,0 +1,94 @@
+package com.isroot.stash.plugin.regex;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts regex matches that ran out of steps, per regex, so the pattern responsible can be found. The counts
+ * are published over JMX as {@value #OBJECT_NAME}, and each one is logged.
+ */
+public class StepBudgetMetrics implements StepBudgetMetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(StepBudgetMetrics.class);
+
+    public static final String OBJECT_NAME = "com.isroot.stash.plugin.yacc:type=RegexStepBudget";
+
+    /** Regexes come from hook settings, but don't let a stream of distinct ones grow the map forever. */
+    private static final int MAX_PATTERNS = 1000;
+
+    private final AtomicLong exceededCount = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> exceededCountByPattern = new ConcurrentHashMap<>();
+    private final ObjectName objectName;
+
+    public StepBudgetMetrics() {
+        objectName = register();
+    }
+
+    /**
+     * Count a match that ran out of steps.
+     */
+    public void recordExceeded(StepBudgetExceededException e) {
+        long total = exceededCount.incrementAndGet();
+
+        AtomicLong count = exceededCountByPattern.get(e.getPattern());
+        if (count == null && exceededCountByPattern.size() < MAX_PATTERNS) {
+            exceededCountByPattern.putIfAbsent(e.getPattern(), new AtomicLong());
+            count = exceededCountByPattern.get(e.getPattern());
+        }
+        long patternCount = count != null ? count.incrementAndGet() : -1;
+
+        log.warn("regex '{}' gave up after {} steps, {} times for this regex and {} in total", e.getPattern(),
+                e.getStepBudget(), patternCount, total);
+    }
+
+    @Override
+    public long getExceededCount() {
+        return exceededCount.get();
+    }
+
+    @Override
+    public Map<String, Long> getExceededCountByPattern() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : exceededCountByPattern.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return counts;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.debug("unable to unregister {}", objectName, e);
+        }
+    }
+
+    private ObjectName register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, name);
+            return name;
+        } catch (JMException e) {
+            // Metrics are still logged, only the JMX view is missing
+            log.warn("unable to register {} over JMX: {}", OBJECT_NAME, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.isroot.stash.plugin.regex;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link StepBudgetMetrics}.
+ */
+public interface StepBudgetMetricsMXBean {
+    /**
+     * Number of regex matches that gave up since the plugin started.
+     */
+    long getExceededCount();
+
+    /**
+     * Number of matches that gave up for each regex.
+     */
+    Map<String, Long> getExceededCountByPattern();
+}
@@ -0,0 +1,37 @@
+package com.isroot.stash.plugin.regex;
+
+import com.atlassian.bitbucket.setting.Settings;
+
+import javax.annotation.Nullable;
+
+/**
+ * What happens to a commit or ref when a regex check runs out of steps, see
+ * {@link StepBudgetExceededException}.
+ */
+public enum StepBudgetPolicy {
+    /** The check fails, the push is rejected with a {@code REGEX_STEP_BUDGET} error. */
+    REJECT,
+    /** The check adds no error, so the commit or ref passes it. */
+    ACCEPT;
+
+    public static StepBudgetPolicy fromSettings(Settings settings) {
+        StepBudgetPolicy policy = parse(settings.getString("regexStepBudgetPolicy"));
+        return policy != null ? policy : REJECT;
+    }
+
+    /**
+     * Return the policy named by {@code value}, or null if it is empty or not a known policy.
+     */
+    @Nullable
+    public static StepBudgetPolicy parse(@Nullable String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return valueOf(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
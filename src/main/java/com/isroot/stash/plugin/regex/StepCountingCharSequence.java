@@ -0,0 +1,45 @@
+package com.isroot.stash.plugin.regex;
+
+/**
+ * Input handed to a regex engine that counts every character the engine reads, and throws
+ * {@link StepBudgetExceededException} once the budget is used up. Regex engines read their input one
+ * character at a time, so the count grows with the work a match does, however the pattern is written.
+ *
+ * Sub-sequences aren't counted, engines only take them to return what a group matched.
+ */
+class StepCountingCharSequence implements CharSequence {
+    private final CharSequence input;
+    private final String pattern;
+    private final int stepBudget;
+    private int steps;
+
+    StepCountingCharSequence(CharSequence input, String pattern, int stepBudget) {
+        this.input = input;
+        this.pattern = pattern;
+        this.stepBudget = stepBudget;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (++steps > stepBudget) {
+            throw new StepBudgetExceededException(pattern, stepBudget);
+        }
+
+        return input.charAt(index);
+    }
+
+    @Override
+    public int length() {
+        return input.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return input.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return input.toString();
+    }
+}
@@ -0,0 +1,99 @@
+package com.isroot.stash.plugin.regex;
+
+import javax.annotation.Nullable;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A regex compiled by one of the {@link RegexEngine}s. Only the operations the checks need are offered, so
+ * every engine can support all of them.
+ *
+ * A pattern can be given a step budget, the number of input characters one match may read. Matches that
+ * need more throw {@link StepBudgetExceededException} instead of running on.
+ *
+ * Patterns are immutable and can be shared between threads.
+ */
+public abstract class YaccPattern {
+    /** {@code ^} and {@code $} match at line breaks as well as at the start and end of the input. */
+    public static final int MULTILINE = 1;
+
+    private final String regex;
+    private final int stepBudget;
+
+    YaccPattern(String regex, int stepBudget) {
+        this.regex = regex;
+        this.stepBudget = stepBudget;
+    }
+
+    /**
+     * Compile {@code regex} with {@code engine}. Throws {@link PatternSyntaxException} if it is invalid, or
+     * uses a feature the engine doesn't support.
+     */
+    public static YaccPattern compile(String regex, RegexEngine engine) {
+        return compile(regex, 0, engine);
+    }
+
+    /**
+     * Compile {@code regex} with {@code engine}, using {@code flags}, a combination of {@link #MULTILINE}.
+     * Throws {@link PatternSyntaxException} if it is invalid, or uses a feature the engine doesn't support.
+     */
+    public static YaccPattern compile(String regex, int flags, RegexEngine engine) {
+        return compile(regex, flags, engine, 0);
+    }
+
+    /**
+     * Compile {@code regex} with {@code engine}, using {@code flags}, a combination of {@link #MULTILINE}.
+     * Each match may read at most {@code stepBudget} characters of input, or any number if it is 0. Throws
+     * {@link PatternSyntaxException} if it is invalid, or uses a feature the engine doesn't support.
+     */
+    public static YaccPattern compile(String regex, int flags, RegexEngine engine, int stepBudget) {
+        switch (engine) {
+            case LINEAR:
+                return new Re2Pattern(regex, flags, stepBudget);
+            default:
+                return new JavaPattern(regex, flags, stepBudget);
+        }
+    }
+
+    public String pattern() {
+        return regex;
+    }
+
+    /**
+     * Return true if the whole of {@code input} matches.
+     */
+    public boolean matches(CharSequence input) {
+        return matchesInput(budgeted(input));
+    }
+
+    /**
+     * Return true if any part of {@code input} matches.
+     */
+    public boolean find(CharSequence input) {
+        return findInInput(budgeted(input));
+    }
+
+    /**
+     * If the whole of {@code input} matches, return the text matched by capturing group {@code group}.
+     * Return null if it doesn't match, the pattern has no such group or the group matched nothing.
+     */
+    @Nullable
+    public String matchGroup(CharSequence input, int group) {
+        return matchGroupOfInput(budgeted(input), group);
+    }
+
+    abstract boolean matchesInput(CharSequence input);
+
+    abstract boolean findInInput(CharSequence input);
+
+    @Nullable
+    abstract String matchGroupOfInput(CharSequence input, int group);
+
+    private CharSequence budgeted(CharSequence input) {
+        return stepBudget > 0 ? new StepCountingCharSequence(input, regex, stepBudget) : input;
+    }
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+}
@@ -0,0 +1,510 @@
+package ut.com.isroot.stash.plugin;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.isroot.stash.plugin.CommitsServiceImpl;
+import com.isroot.stash.plugin.IssueKey;
+import com.isroot.stash.plugin.ResumePoint;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.YaccCommitStream;
+import com.isroot.stash.plugin.jgit.JGitRepositoryPool;
+import com.isroot.stash.plugin.jgit.RefSnapshotCache;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import ut.com.isroot.stash.plugin.mock.MockRefChange;
+import ut.com.isroot.stash.plugin.mock.TestGitRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CommitsServiceImplTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock private ApplicationPropertiesService applicationPropertiesService;
+    @Mock private Repository repository;
+    @Mock private GitCommandBuilderFactory gitCommandBuilderFactory;
+
+    private TestGitRepository git;
+    private JGitRepositoryPool jGitRepositoryPool;
+    private CommitsServiceImpl commitsService;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        File repoDir = temporaryFolder.newFolder("repo.git");
+        git = new TestGitRepository(repoDir);
+
+        when(repository.getId()).thenReturn(1);
+        when(applicationPropertiesService.getRepositoryDir(repository)).thenReturn(repoDir);
+
+        jGitRepositoryPool = new JGitRepositoryPool(applicationPropertiesService);
+        commitsService = new CommitsServiceImpl(jGitRepositoryPool, new RefSnapshotCache(), gitCommandBuilderFactory,
+                applicationPropertiesService);
+    }
+
+    @After
+    public void tearDown() {
+        commitsService.destroy();
+        jGitRepositoryPool.destroy();
+        git.close();
+    }
+
+    @Test
+    public void testStreamNewCommits_commitsAreReturnedChildrenFirst() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        ObjectId first = git.commit("first", base);
+        ObjectId second = git.commit("second", first);
+        ObjectId third = git.commit("third\n", second);
+
+        List<YaccCommit> commits = stream(branchUpdate("refs/heads/master", base, third));
+
+        assertThat(commits).extracting("id").containsExactly(third.name(), second.name(), first.name());
+        assertThat(commits.get(0).getMessage()).isEqualTo("third");
+        assertThat(commits.get(0).getCommitter().getName()).isEqualTo("John Smith");
+        assertThat(commits.get(0).getParentCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testStreamNewCommits_commitsOnOtherBranchesAreSkipped() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId other = git.commit("other", base);
+        git.branch("master", base);
+        git.branch("other", other);
+
+        ObjectId merge = git.commit("merge", base, other);
+
+        List<YaccCommit> commits = stream(branchUpdate("refs/heads/master", base, merge));
+
+        assertThat(commits).extracting("id").containsExactly(merge.name());
+        assertThat(commits.get(0).getParentCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testStreamNewCommits_fastForwardExcludesCommitsOnBranchesAhead() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId first = git.commit("first", base);
+        ObjectId second = git.commit("second", first);
+        ObjectId third = git.commit("third", second);
+        git.branch("master", base);
+        git.branch("feature", third);
+
+        assertThat(stream(branchUpdate("refs/heads/master", base, second))).isEmpty();
+    }
+
+    @Test
+    public void testStreamNewCommits_fastForwardExcludesBranchTipsInRange() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId first = git.commit("first", base);
+        ObjectId second = git.commit("second", first);
+        git.branch("master", base);
+        git.branch("feature", first);
+
+        List<YaccCommit> commits = stream(branchUpdate("refs/heads/master", base, second));
+
+        assertThat(commits).extracting("id").containsExactly(second.name());
+    }
+
+    @Test
+    public void testStreamNewCommits_forcedUpdateIsCheckedAgainstEveryBranch() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId release1 = git.commit("release 1", base);
+
+        // The release branch moved on with a clock two days behind, so its tip looks older than release 1
+        git.rewindClock(TimeUnit.DAYS.toMillis(2));
+        ObjectId release2 = git.commit("release 2", release1);
+        ObjectId master1 = git.commit("master 1", base);
+        git.branch("release", release2);
+        git.branch("master", master1);
+
+        // Resetting master onto the release branch brings in nothing new
+        assertThat(stream(branchUpdate("refs/heads/master", master1, release1))).isEmpty();
+    }
+
+    @Test
+    public void testGetMessageChars_matchesDecodedMessage() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        ObjectId ascii = git.commit("ABC-123 plain message\n", base);
+        ObjectId unicode = git.commit("ABC-124 caf\u00e9\n", ascii);
+
+        List<YaccCommit> commits = stream(branchUpdate("refs/heads/master", base, unicode));
+
+        assertThat(commits.get(0).getMessageChars().toString()).isEqualTo("ABC-124 caf\u00e9");
+        assertThat(commits.get(1).getMessageChars().toString()).isEqualTo("ABC-123 plain message");
+        assertThat(commits.get(1).getMessageChars().subSequence(0, 7).toString()).isEqualTo("ABC-123");
+        assertThat(commits.get(1).getMessage()).isEqualTo("ABC-123 plain message");
+    }
+
+    @Test
+    public void testGetMessageChars_windowIsCutAtCharacterAndTokenBoundaries() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        ObjectId unicode = git.commit("caf\u00e9 ABC-123 rest\n", base);
+
+        YaccCommit commit = stream(branchUpdate("refs/heads/master", base, unicode)).get(0);
+
+        // 4 bytes would end in the middle of the two byte \u00e9
+        assertThat(commit.isMessageLongerThan(4)).isTrue();
+        assertThat(commit.getMessageChars(4).toString()).isEqualTo("caf");
+
+        // 8 bytes would end in the middle of the issue key
+        assertThat(commit.getMessageChars(8).toString()).isEqualTo("caf\u00e9 ");
+        assertThat(commit.getMessageOverflow(8).toString()).isEqualTo("ABC-123 rest");
+
+        assertThat(commit.isMessageLongerThan(100)).isFalse();
+        assertThat(commit.getMessageChars(100).toString()).isEqualTo("caf\u00e9 ABC-123 rest");
+        assertThat(commit.getMessageOverflow(100).toString()).isEmpty();
+    }
+
+    @Test
+    public void testStreamNewCommits_commitsBySameCommitterShareIdentity() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        ObjectId first = git.commit("first", base);
+        ObjectId second = git.commit("second", first);
+        ObjectId other = git.commit(new PersonIdent("Jane Doe", "jdoe@example.com"), "other", second);
+
+        List<YaccCommit> commits = stream(branchUpdate("refs/heads/master", base, other));
+
+        assertThat(commits.get(0).getCommitter().getName()).isEqualTo("Jane Doe");
+        assertThat(commits.get(1).getCommitter()).isSameAs(commits.get(2).getCommitter());
+        assertThat(commits.get(1).getCommitter().getName()).isEqualTo("John Smith");
+        assertThat(commits.get(1).getCommitter().getEmailAddress()).isEqualTo("jsmith@example.com");
+    }
+
+    @Test
+    public void testStreamNewCommits_lightweightTagHasNothingToCheck() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        MockRefChange refChange = new MockRefChange("refs/tags/v1");
+        refChange.setType(RefChangeType.ADD);
+        refChange.setFromHash(ObjectId.zeroId().name());
+        refChange.setToHash(base.name());
+
+        assertThat(stream(refChange)).isEmpty();
+    }
+
+    @Test
+    public void testStreamNewCommits_tagRefsSharingTagObjectAreCheckedOnce() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        ObjectId tag = git.tag("v1", base, "ABC-123 release\n");
+        MockRefChange v1 = tagAdd("refs/tags/v1", tag);
+        MockRefChange release = tagAdd("refs/tags/release", tag);
+
+        try (YaccCommitStream stream = commitsService.streamNewCommits(repository, Arrays.asList(v1, release),
+                false, 0)) {
+            assertThat(stream.hasNext()).isTrue();
+
+            YaccCommit commit = stream.next();
+            assertThat(commit.getId()).isEqualTo(tag.name());
+            assertThat(commit.getCommitter().getEmailAddress()).isEqualTo("jsmith@example.com");
+            assertThat(commit.getMessage()).isEqualTo("ABC-123 release");
+            assertThat(stream.getRefChanges()).containsExactly(v1, release);
+
+            assertThat(stream.hasNext()).isFalse();
+        }
+    }
+
+    @Test
+    public void testStreamNewCommits_manyTagsAreReturnedInPushOrder() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        List<RefChange> refChanges = new ArrayList<>();
+        List<String> expectedIds = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 == 0) {
+                // Lightweight tags are skipped wherever they are in the push
+                refChanges.add(tagAdd("refs/tags/light" + i, base));
+                continue;
+            }
+
+            ObjectId tag = git.tag("v" + i, base, "release " + i + "\n");
+            refChanges.add(tagAdd("refs/tags/v" + i, tag));
+            expectedIds.add(tag.name());
+        }
+
+        List<String> ids = new ArrayList<>();
+        try (YaccCommitStream stream = commitsService.streamNewCommits(repository, refChanges, false, 0, null)) {
+            while (stream.hasNext()) {
+                YaccCommit commit = stream.next();
+                ids.add(commit.getId());
+                assertThat(stream.getRefChanges()).hasSize(1);
+            }
+        }
+
+        assertThat(ids).isEqualTo(expectedIds);
+    }
+
+    @Test
+    public void testStreamNewCommits_manyCommitsAreReturnedChildrenFirstAndResumeExactly() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        List<String> expectedIds = new ArrayList<>();
+        ObjectId tip = base;
+        for (int i = 0; i < 500; i++) {
+            tip = git.commit("commit " + i + "\n", tip);
+            expectedIds.add(0, tip.name());
+        }
+        List<RefChange> refChanges = Arrays.<RefChange>asList(branchUpdate("refs/heads/master", base, tip));
+
+        // Far enough in that later commits are being read on the pool
+        List<String> ids = new ArrayList<>();
+        ResumePoint resumePoint;
+        try (YaccCommitStream stream = commitsService.streamNewCommits(repository, refChanges, false, 0, null)) {
+            for (int i = 0; i < 200; i++) {
+                YaccCommit commit = stream.next();
+                assertThat(commit.getMessage()).isEqualTo("commit " + (499 - i));
+                ids.add(commit.getId());
+            }
+            resumePoint = stream.getResumePoint();
+        }
+
+        try (YaccCommitStream stream = commitsService.streamNewCommits(repository, refChanges, false, 0,
+                resumePoint)) {
+            while (stream.hasNext()) {
+                ids.add(stream.next().getId());
+            }
+        }
+
+        assertThat(ids).isEqualTo(expectedIds);
+    }
+
+    @Test
+    public void testStreamNewCommits_longMessagesAreCutToTheMessageWindow() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        StringBuilder message = new StringBuilder("ABC-1 start");
+        for (int i = 0; i < 20000; i++) {
+            message.append(i == 10000 ? " DEF-2" : " filler");
+        }
+        message.append(" GHI-3");
+        ObjectId first = git.commit(message + "\n", base);
+
+        try (YaccCommitStream stream = commitsService.streamNewCommits(repository,
+                Arrays.<RefChange>asList(branchUpdate("refs/heads/master", base, first)), false, 64, null)) {
+            YaccCommit commit = stream.next();
+
+            assertThat(commit.getId()).isEqualTo(first.name());
+            assertThat(commit.getMessageChars(64).toString()).startsWith("ABC-1 start filler");
+            assertThat(commit.getMessage().length()).isLessThanOrEqualTo(64);
+            assertThat(commit.isMessageLongerThan(message.length() - 1)).isTrue();
+            assertThat(commit.isMessageLongerThan(message.length())).isFalse();
+            assertThat(IssueKey.parseIssueKeys(commit.getMessageOverflow(64)))
+                    .extracting("fullyQualifiedIssueKey").containsExactly("DEF-2", "GHI-3");
+        }
+    }
+
+    @Test
+    public void testStreamNewCommits_resumedStreamReturnsOnlyTheRemainingCommits() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+        git.branch("feature", base);
+
+        ObjectId shared = git.commit("shared", base);
+        ObjectId master1 = git.commit("master 1", shared);
+        ObjectId master2 = git.commit("master 2", master1);
+        ObjectId feature1 = git.commit("feature 1", shared);
+        ObjectId tag = git.tag("v1", master2, "release\n");
+
+        MockRefChange master = branchUpdate("refs/heads/master", base, master2);
+        MockRefChange feature = branchUpdate("refs/heads/feature", base, feature1);
+        List<RefChange> refChanges = Arrays.<RefChange>asList(tagAdd("refs/tags/v1", tag), master, feature);
+
+        List<String> ids = new ArrayList<>();
+        ResumePoint resumePoint;
+        try (YaccCommitStream stream = commitsService.streamNewCommits(repository, refChanges, false, 0, null)) {
+            ids.add(stream.next().getId());
+            ids.add(stream.next().getId());
+            resumePoint = stream.getResumePoint();
+        }
+
+        try (YaccCommitStream stream = commitsService.streamNewCommits(repository, refChanges, false, 0,
+                resumePoint)) {
+            while (stream.hasNext()) {
+                YaccCommit commit = stream.next();
+                ids.add(commit.getId());
+
+                if (commit.getId().equals(shared.name())) {
+                    assertThat(stream.getRefChanges()).containsOnly(master, feature);
+                }
+            }
+        }
+
+        assertThat(ids).containsOnlyOnce(tag.name(), master2.name(), master1.name(), feature1.name(), shared.name());
+        assertThat(ids).hasSize(5);
+        assertThat(ids.indexOf(shared.name())).isEqualTo(4);
+    }
+
+    @Test
+    public void testStreamNewCommits_nativeEngineFallsBackToJGit() throws Exception {
+        when(applicationPropertiesService.getPluginProperty(CommitsServiceImpl.ENGINE_PROPERTY)).thenReturn("native");
+        when(gitCommandBuilderFactory.builder(repository)).thenThrow(new IllegalStateException("no git"));
+        commitsService.destroy();
+        commitsService = new CommitsServiceImpl(jGitRepositoryPool, new RefSnapshotCache(), gitCommandBuilderFactory,
+                applicationPropertiesService);
+
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        ObjectId first = git.commit("first", base);
+
+        List<YaccCommit> commits = stream(branchUpdate("refs/heads/master", base, first));
+
+        assertThat(commits).extracting("id").containsExactly(first.name());
+        verify(gitCommandBuilderFactory).builder(repository);
+    }
+
+    @Test
+    public void testStreamNewCommits_nativeEngineCarriesOnWithJGitWhenReadingFails() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        ObjectId first = git.commit("first", base);
+        ObjectId second = git.commit("second", first);
+
+        // rev-list lists the new commits, then cat-file fails before any of them are read
+        String revList = second.name() + " " + first.name() + "\n" + first.name() + " " + base.name() + "\n";
+        GitScmCommandBuilder builder = mockGitCommands(revList);
+        when(gitCommandBuilderFactory.builder(repository)).thenReturn(builder);
+        when(applicationPropertiesService.getPluginProperty(CommitsServiceImpl.ENGINE_PROPERTY)).thenReturn("native");
+        commitsService.destroy();
+        commitsService = new CommitsServiceImpl(jGitRepositoryPool, new RefSnapshotCache(), gitCommandBuilderFactory,
+                applicationPropertiesService);
+
+        List<YaccCommit> commits = stream(branchUpdate("refs/heads/master", base, second));
+
+        assertThat(commits).extracting("id").containsExactly(second.name(), first.name());
+        verify(builder).command("cat-file");
+    }
+
+    @Test
+    public void testStreamNewCommits_nativeEngineFallbackSeesQuarantinedObjects() throws Exception {
+        ObjectId base = git.commit("base");
+        git.branch("master", base);
+
+        ObjectId first = git.commit("first", base);
+
+        // As receive-pack leaves a push while pre-receive hooks run, with its objects still in quarantine
+        File objects = new File(git.getRepository().getDirectory(), "objects");
+        String path = first.name().substring(0, 2) + "/" + first.name().substring(2);
+        File quarantined = new File(objects, "tmp_objdir-incoming-a1b2c3/" + path);
+        assertThat(quarantined.getParentFile().mkdirs()).isTrue();
+        Files.move(new File(objects, path).toPath(), quarantined.toPath());
+
+        when(applicationPropertiesService.getPluginProperty(CommitsServiceImpl.ENGINE_PROPERTY)).thenReturn("native");
+        when(gitCommandBuilderFactory.builder(repository)).thenThrow(new IllegalStateException("no git"));
+        commitsService.destroy();
+        commitsService = new CommitsServiceImpl(jGitRepositoryPool, new RefSnapshotCache(), gitCommandBuilderFactory,
+                applicationPropertiesService);
+
+        List<YaccCommit> commits = stream(branchUpdate("refs/heads/master", base, first));
+
+        assertThat(commits).extracting("id").containsExactly(first.name());
+    }
+
+    /**
+     * Mock git commands: rev-list prints {@code revList}, anything else fails.
+     */
+    @SuppressWarnings("unchecked")
+    private GitScmCommandBuilder mockGitCommands(final String revList) {
+        final String[] command = new String[1];
+
+        return mock(GitScmCommandBuilder.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Method method = invocation.getMethod();
+                if (method.getName().equals("command")) {
+                    command[0] = (String) invocation.getArguments()[0];
+                }
+
+                if (!method.getName().equals("build")) {
+                    return method.getReturnType().isInstance(invocation.getMock()) ? invocation.getMock() : null;
+                }
+
+                final CommandOutputHandler<Object> handler = (CommandOutputHandler<Object>) invocation.getArguments()[0];
+                final boolean revListCommand = "rev-list".equals(command[0]);
+                return mock(method.getReturnType(), new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock call) throws Throwable {
+                        if (!call.getMethod().getName().equals("call")) {
+                            return null;
+                        }
+                        if (!revListCommand) {
+                            throw new IllegalStateException("cat-file failed");
+                        }
+
+                        handler.process(new ByteArrayInputStream(revList.getBytes(StandardCharsets.US_ASCII)));
+                        handler.complete();
+                        return handler.getOutput();
+                    }
+                });
+            }
+        });
+    }
+
+    private List<YaccCommit> stream(MockRefChange refChange) {
+        List<YaccCommit> commits = new ArrayList<>();
+
+        try (YaccCommitStream stream = commitsService.streamNewCommits(repository, refChange)) {
+            while (stream.hasNext()) {
+                commits.add(stream.next());
+            }
+        }
+
+        return commits;
+    }
+
+    private MockRefChange branchUpdate(String refId, ObjectId from, ObjectId to) {
+        MockRefChange refChange = new MockRefChange(refId);
+        refChange.setType(RefChangeType.UPDATE);
+        refChange.setFromHash(from.name());
+        refChange.setToHash(to.name());
+        return refChange;
+    }
+
+    private MockRefChange tagAdd(String refId, ObjectId to) {
+        MockRefChange refChange = new MockRefChange(refId);
+        refChange.setType(RefChangeType.ADD);
+        refChange.setFromHash(ObjectId.zeroId().name());
+        refChange.setToHash(to.name());
+        return refChange;
+    }
+}
@@ -141,6 +141,82 @@ public class ConfigValidatorTest {
                 ")");
     }
 
+    @Test
+    public void testValidate_linearRegexEngine_supportedRegexAllowed() {
+        when(settings.getString("regexEngine")).thenReturn("LINEAR");
+        when(settings.getString("commitMessageRegex")).thenReturn("[A-Z]+-[0-9]+: .*");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verifyZeroInteractions(settingsValidationErrors);
+    }
+
+    @Test
+    public void testValidate_linearRegexEngine_backtrackingOnlyFeaturesRejected() {
+        when(settings.getString("regexEngine")).thenReturn("LINEAR");
+        when(settings.getString("excludeByRegex")).thenReturn("^(?=Revert)");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verify(settingsValidationErrors).addFieldError(eq("excludeByRegex"),
+                startsWith("Not supported by the linear time regex engine, only by the backtracking engine: "));
+    }
+
+    @Test
+    public void testValidate_backtrackingRegexEngine_allowsEveryJavaFeature() {
+        when(settings.getString("regexEngine")).thenReturn("BACKTRACKING");
+        when(settings.getString("excludeByRegex")).thenReturn("^(?=Revert)");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verifyZeroInteractions(settingsValidationErrors);
+    }
+
+    @Test
+    public void testValidate_unknownRegexEngine() {
+        when(settings.getString("regexEngine")).thenReturn("DFA");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verify(settingsValidationErrors).addFieldError("regexEngine", "Unknown regex engine: DFA");
+    }
+
+    @Test
+    public void testValidate_issueProjectKeys_valid() {
+        when(settings.getString("issueProjectKeys")).thenReturn("ABC, DEF_2\nGHI");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verifyZeroInteractions(settingsValidationErrors);
+    }
+
+    @Test
+    public void testValidate_issueProjectKeys_invalidKey() {
+        when(settings.getString("issueProjectKeys")).thenReturn("ABC,abc");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verify(settingsValidationErrors).addFieldError("issueProjectKeys", "Invalid JIRA project key: abc");
+    }
+
+    @Test
+    public void testValidate_regexStepBudget_mustBePositive() {
+        when(settings.getString("regexStepBudget")).thenReturn("0");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verify(settingsValidationErrors).addFieldError("regexStepBudget", "Must be a positive whole number.");
+    }
+
+    @Test
+    public void testValidate_unknownRegexStepBudgetPolicy() {
+        when(settings.getString("regexStepBudgetPolicy")).thenReturn("IGNORE");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verify(settingsValidationErrors).addFieldError("regexStepBudgetPolicy", "Unknown step budget policy: IGNORE");
+    }
+
     @Test
     public void testValidate_branchNameRegex_goodRegex() {
         when(settings.getString("branchNameRegex")).thenReturn("feature/[A-Z]+-\\d+-[A-Z-]*");
@@ -161,4 +237,23 @@ public class ConfigValidatorTest {
         verify(settingsValidationErrors).addFieldError("branchNameRegex", "Invalid Regex: Unmatched closing ')'\n" +
                 ")");
     }
+
+    @Test
+    public void testValidate_jgitPackedGitWindowSize_mustBePowerOf2() {
+        when(settings.getString("jgitPackedGitWindowSize")).thenReturn("48");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verify(settingsValidationErrors).addFieldError("jgitPackedGitWindowSize",
+                "Must be a power of 2 between 4 and 1048576.");
+    }
+
+    @Test
+    public void testValidate_jgitPackedGitWindowSize_powerOf2IsValid() {
+        when(settings.getString("jgitPackedGitWindowSize")).thenReturn("64");
+
+        configValidator.validate(settings, settingsValidationErrors, repository);
+
+        verifyZeroInteractions(settingsValidationErrors);
+    }
 }
@@ -0,0 +1,110 @@
+package ut.com.isroot.stash.plugin;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.IssueKey;
+import com.isroot.stash.plugin.IssueKeyScanner;
+import com.isroot.stash.plugin.ProjectKeyTrie;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IssueKeyScannerTest {
+    /** The regex issue keys used to be found with, which the scanner must agree with. */
+    private static final Pattern ISSUE_PATTERN = Pattern.compile("([A-Z][A-Z_0-9]+)-([0-9]+)");
+
+    @Test
+    public void testScan_findsSameKeysAsRegex() {
+        String[] inputs = {
+                "",
+                "no keys here",
+                "ABC-123",
+                "Issue: ABC-123, CBA-321, UNDER_SCORE-123;",
+                "xABC-123y",
+                "abcDEF-12",
+                "_ABC-1 9ABC-2 A_1-3",
+                "A-1 AB-1",
+                "AB-CD-1",
+                "ABC-1234DEF-5",
+                "ABC-12a ABC- ABC-x -1 ABC--1",
+                "UTF-8 SHA-256 ISO-8859-1",
+                "ABC-123\nDEF-456\r\n",
+                "\u00c4BC-1 AB\u00c7-2 ABC-\uff13",
+        };
+
+        for (String input : inputs) {
+            assertThat(IssueKey.parseIssueKeys(input)).as(input).isEqualTo(parseWithRegex(input));
+        }
+    }
+
+    @Test
+    public void testScan_reportsSpans() {
+        final List<String> spans = Lists.newArrayList();
+        IssueKeyScanner.scan("see ABC-123.", null, new IssueKeyScanner.Visitor() {
+            @Override
+            public void issueKey(CharSequence input, int projectStart, int projectEnd, int idEnd) {
+                spans.add(projectStart + ":" + projectEnd + ":" + idEnd);
+            }
+        });
+
+        assertThat(spans).containsExactly("4:7:11");
+    }
+
+    @Test
+    public void testScan_knownProjectKeys() {
+        ProjectKeyTrie projectKeys = new ProjectKeyTrie(ImmutableList.of("ABC", "AB", "XYZ_2"));
+
+        assertThat(IssueKey.parseIssueKeys("ABC-1 AB-2 A-3 ABCD-4 XYZ_2-5 UTF-8 SHA-256", projectKeys))
+                .containsExactly(new IssueKey("ABC", "1"), new IssueKey("AB", "2"), new IssueKey("XYZ_2", "5"));
+    }
+
+    @Test
+    public void testScan_unknownProjectKeyStillEndsAtIssueId() {
+        ProjectKeyTrie projectKeys = new ProjectKeyTrie(ImmutableList.of("ABC"));
+
+        // As with the regex, the rejected UTF-8 ends at its digits so ABC starts a new key
+        assertThat(IssueKey.parseIssueKeys("UTF-8ABC-1 XABC-2", projectKeys))
+                .containsExactly(new IssueKey("ABC", "1"));
+    }
+
+    @Test
+    public void testProjectKeyTrie_contains() {
+        ProjectKeyTrie projectKeys = new ProjectKeyTrie(ImmutableList.of("ABC", "ABC", "ABD"));
+
+        assertThat(projectKeys.size()).isEqualTo(2);
+        assertThat(projectKeys.contains("ABC")).isTrue();
+        assertThat(projectKeys.contains("ABD")).isTrue();
+        assertThat(projectKeys.contains("AB")).isFalse();
+        assertThat(projectKeys.contains("ABCD")).isFalse();
+        assertThat(projectKeys.contains("abc")).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProjectKeyTrie_invalidKey() {
+        new ProjectKeyTrie(ImmutableList.of("A"));
+    }
+
+    @Test
+    public void testIsProjectKey() {
+        assertThat(IssueKeyScanner.isProjectKey("AB")).isTrue();
+        assertThat(IssueKeyScanner.isProjectKey("A_1")).isTrue();
+        assertThat(IssueKeyScanner.isProjectKey("A")).isFalse();
+        assertThat(IssueKeyScanner.isProjectKey("1AB")).isFalse();
+        assertThat(IssueKeyScanner.isProjectKey("Ab")).isFalse();
+        assertThat(IssueKeyScanner.isProjectKey("A-B")).isFalse();
+    }
+
+    private static List<IssueKey> parseWithRegex(String input) {
+        List<IssueKey> issueKeys = Lists.newArrayList();
+        Matcher matcher = ISSUE_PATTERN.matcher(input);
+        while (matcher.find()) {
+            issueKeys.add(new IssueKey(matcher.group(1), matcher.group(2)));
+        }
+
+        return issueKeys;
+    }
+}
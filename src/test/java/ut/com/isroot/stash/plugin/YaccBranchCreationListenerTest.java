@@ -18,6 +18,8 @@ import com.atlassian.bitbucket.util.UncheckedOperation;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import com.isroot.stash.plugin.YaccBranchCreationListener;
+import com.isroot.stash.plugin.cache.RulePlanCache;
+import com.isroot.stash.plugin.regex.StepBudgetMetrics;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -52,6 +54,7 @@ public class YaccBranchCreationListenerTest {
     @Mock private I18nService i18nService;
     @Mock private BranchCreationRequestedEvent event;
     @Mock private KeyedMessage message;
+    @Mock private StepBudgetMetrics stepBudgetMetrics;
     private Map<String, Object> settingsMap = new HashMap<String, Object>();
 
     private YaccBranchCreationListener yaccBranchCreationListener;
@@ -62,7 +65,8 @@ public class YaccBranchCreationListenerTest {
         MockitoAnnotations.initMocks(this);
 
         yaccBranchCreationListener = new YaccBranchCreationListener(
-                pluginSettingsFactory, securityService, repositoryHookService, i18nService);
+                pluginSettingsFactory, securityService, repositoryHookService, i18nService, new RulePlanCache(),
+                stepBudgetMetrics);
 
         //mock hook retrieval
         when(securityService.withPermission(Permission.REPO_ADMIN, "Get plugin configuration"))
@@ -20,4 +20,47 @@ public class YaccCommitTest {
         assertThat(yaccCommit.getMessage()).isEqualTo("contains trailing newline");
 
     }
+
+    @Test
+    public void testGetMessage_lazyMessageIsLoadedOnce() {
+        LazyCommit yaccCommit = new LazyCommit();
+
+        assertThat(yaccCommit.loads).isEqualTo(0);
+        assertThat(yaccCommit.getMessage()).isEqualTo("lazy message");
+        assertThat(yaccCommit.getMessage()).isEqualTo("lazy message");
+        assertThat(yaccCommit.loads).isEqualTo(1);
+    }
+
+    @Test
+    public void testGetMessageChars_shortMessageIsReturnedWhole() {
+        YaccCommit yaccCommit = new YaccCommit("id", new YaccPerson("Name", "email@address.com"), "short", 0);
+
+        assertThat(yaccCommit.isMessageLongerThan(10)).isFalse();
+        assertThat(yaccCommit.getMessageChars(10).toString()).isEqualTo("short");
+        assertThat(yaccCommit.getMessageOverflow(10).toString()).isEmpty();
+    }
+
+    @Test
+    public void testGetMessageChars_windowDoesNotSplitIssueKey() {
+        YaccCommit yaccCommit = new YaccCommit("id", new YaccPerson("Name", "email@address.com"),
+                "fix for ABC-123", 0);
+
+        assertThat(yaccCommit.isMessageLongerThan(10)).isTrue();
+        assertThat(yaccCommit.getMessageChars(10).toString()).isEqualTo("fix for ");
+        assertThat(yaccCommit.getMessageOverflow(10).toString()).isEqualTo("ABC-123");
+    }
+
+    private static class LazyCommit extends YaccCommit {
+        private int loads;
+
+        private LazyCommit() {
+            super("id", new YaccPerson("Name", "email@address.com"), 1);
+        }
+
+        @Override
+        protected String loadMessage() {
+            loads++;
+            return "lazy message\n";
+        }
+    }
 }
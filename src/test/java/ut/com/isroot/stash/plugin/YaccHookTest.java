@@ -75,8 +75,9 @@ public class YaccHookTest {
 
     @Test
     public void testOnReceive_pushRejectedIfThereAreErrors() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error with commit")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error with commit")));
 
         boolean allowed = yaccHook.onReceive(repositoryHookContext, Lists.newArrayList(new MockRefChange()),
                 hookResponse);
@@ -85,8 +86,10 @@ public class YaccHookTest {
 
     @Test
     public void testOnReceive_errorsArePrintedToHookStdErr() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1"), new YaccError("error2")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1"),
+                        new YaccError("refs/heads/master: error2")));
 
         yaccHook.onReceive(repositoryHookContext, getMockRefChanges(), hookResponse);
 
@@ -101,8 +104,9 @@ public class YaccHookTest {
 
     @Test
     public void testOnReceive_defaultHeaderDisplayedIfErrorMessageHeaderIsEmpty() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1")));
 
         when(settings.getString("errorMessageHeader")).thenReturn("");
 
@@ -113,8 +117,9 @@ public class YaccHookTest {
 
     @Test
     public void testOnReceive_nonEmptyErrorMessageHeaderReplacesDefaultHeader() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1")));
 
         when(settings.getString("errorMessageHeader")).thenReturn("Custom Header");
 
@@ -127,8 +132,9 @@ public class YaccHookTest {
 
     @Test
     public void testOnReceive_errorMessageFooterAddedToEndOfOutput() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1")));
 
         when(settings.getString("errorMessageFooter")).thenReturn("Custom Footer");
 
@@ -139,8 +145,9 @@ public class YaccHookTest {
 
     @Test
     public void testOnReceive_gitNotesAreIgnored() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1")));
 
         List<RefChange> refChanges = Lists.newArrayList(new MockRefChange("refs/notes/commits"));
         boolean isAllowed = yaccHook.onReceive(repositoryHookContext, refChanges, hookResponse);
@@ -148,6 +155,16 @@ public class YaccHookTest {
         assertThat(isAllowed).isTrue();
     }
 
+    @Test
+    public void testOnReceive_allRefChangesAreCheckedTogether() {
+        List<RefChange> refChanges = Lists.<RefChange>newArrayList(new MockRefChange("refs/heads/master"),
+                new MockRefChange("refs/heads/feature"));
+
+        yaccHook.onReceive(repositoryHookContext, refChanges, hookResponse);
+
+        verify(yaccService).checkRefChanges(any(Repository.class), any(Settings.class), eq(refChanges));
+    }
+
     private List<RefChange> getMockRefChanges() {
         List<RefChange> refChanges = new ArrayList<>();
         refChanges.add(new MockRefChange());
@@ -130,8 +130,9 @@ public class YaccPreReceiveHookTest {
     @Test
     public void testOnReceive_pushRejectedIfThereAreErrors() {
         globalSettingsMap.put("someSetting", "true");
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error with commit")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error with commit")));
 
         boolean allowed = yaccPreReceiveHook.onReceive(repository, Lists.newArrayList(new MockRefChange()),
                 hookResponse);
@@ -141,8 +142,10 @@ public class YaccPreReceiveHookTest {
     @Test
     public void testOnReceive_errorsArePrintedToHookStdErr() {
         globalSettingsMap.put("someSetting", "true");
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1"), new YaccError("error2")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1"),
+                        new YaccError("refs/heads/master: error2")));
 
         yaccPreReceiveHook.onReceive(repository, getMockRefChanges(), hookResponse);
 
@@ -157,8 +160,9 @@ public class YaccPreReceiveHookTest {
 
     @Test
     public void testOnReceive_defaultHeaderDisplayedIfErrorMessageHeaderIsEmpty() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1")));
 
         globalSettingsMap.put("someSetting", "true");
         globalSettingsMap.put("errorMessageHeader", "");
@@ -170,8 +174,9 @@ public class YaccPreReceiveHookTest {
 
     @Test
     public void testOnReceive_nonEmptyErrorMessageHeaderReplacesDefaultHeader() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1")));
 
         globalSettingsMap.put("someSetting", "true");
         globalSettingsMap.put("errorMessageHeader", "Custom Header");
@@ -185,8 +190,9 @@ public class YaccPreReceiveHookTest {
 
     @Test
     public void testOnReceive_errorMessageFooterAddedToEndOfOutput() {
-        when(yaccService.checkRefChange(any(Repository.class), any(Settings.class), any(RefChange.class)))
-                .thenReturn(Lists.newArrayList(new YaccError("error1")));
+        when(yaccService.checkRefChanges(any(Repository.class), any(Settings.class),
+                anyCollectionOf(RefChange.class)))
+                .thenReturn(Lists.newArrayList(new YaccError("refs/heads/master: error1")));
 
         globalSettingsMap.put("someSetting", "true");
         globalSettingsMap.put("errorMessageFooter", "Custom Footer");
@@ -212,7 +218,8 @@ public class YaccPreReceiveHookTest {
 
         yaccPreReceiveHook.onReceive(repository, getMockRefChanges(), hookResponse);
 
-        verify(yaccService).checkRefChange(eq(repository), settingsCapture.capture(), any(RefChange.class));
+        verify(yaccService).checkRefChanges(eq(repository), settingsCapture.capture(),
+                anyCollectionOf(RefChange.class));
 
         Settings hookSettings = settingsCapture.getValue();
 
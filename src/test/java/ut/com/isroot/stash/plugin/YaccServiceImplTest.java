@@ -8,21 +8,38 @@ import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.user.ApplicationUser;
 import com.atlassian.bitbucket.user.UserType;
+import com.atlassian.plugin.PluginAccessor;
 import com.atlassian.sal.api.net.ResponseException;
-import com.google.common.collect.Sets;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.isroot.stash.plugin.*;
+import com.isroot.stash.plugin.cache.PushCheckpointCache;
+import com.isroot.stash.plugin.cache.RulePlanCache;
+import com.isroot.stash.plugin.cache.VerifiedCommitCache;
+import com.isroot.stash.plugin.checks.CheckCost;
+import com.isroot.stash.plugin.checks.CommitCheck;
+import com.isroot.stash.plugin.checks.RefCheck;
 import com.isroot.stash.plugin.errors.YaccError;
+import com.isroot.stash.plugin.regex.StepBudgetExceededException;
+import com.isroot.stash.plugin.regex.StepBudgetMetrics;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import ut.com.isroot.stash.plugin.mock.MockYaccCommitStream;
 
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.*;
 
 /**
@@ -30,6 +47,8 @@ import static org.mockito.Mockito.*;
  * @since 2013-10-26
  */
 public class YaccServiceImplTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Mock private AuthenticationContext stashAuthenticationContext;
     @Mock private CommitsService commitsService;
     @Mock private JiraService jiraService;
@@ -37,6 +56,11 @@ public class YaccServiceImplTest {
     @Mock private CredentialsRequiredException credRequired;
     @Mock private Settings settings;
     @Mock private ApplicationUser stashUser;
+    @Mock private VerifiedCommitCache verifiedCommitCache;
+    @Mock private Repository repository;
+    @Mock private RulePlanCache rulePlanCache;
+    @Mock private PluginAccessor pluginAccessor;
+    @Mock private StepBudgetMetrics stepBudgetMetrics;
 
     private YaccService yaccService;
 
@@ -46,9 +70,20 @@ public class YaccServiceImplTest {
 
         MockitoAnnotations.initMocks(this);
 
-        yaccService = new YaccServiceImpl(stashAuthenticationContext, commitsService, jiraService);
+        yaccService = new YaccServiceImpl(stashAuthenticationContext, commitsService, jiraService,
+                verifiedCommitCache, new PushCheckpointCache(), rulePlanCache, pluginAccessor,
+                stepBudgetMetrics);
+
+        // Tests change settings between calls, so compile a new plan each time
+        when(rulePlanCache.get(any(Settings.class))).thenAnswer(invocation ->
+                RulePlan.compile((Settings) invocation.getArguments()[0]));
 
         when(stashAuthenticationContext.getCurrentUser()).thenReturn(stashUser);
+
+        mockNewCommits();
+        when(commitsService.streamNewCommits(any(Repository.class), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new MockYaccCommitStream());
     }
 
     @Test
@@ -59,7 +94,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getName()).thenReturn("Incorrect Name");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).containsOnly(new YaccError(YaccError.Type.COMMITTER_NAME,
@@ -74,7 +109,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getName()).thenReturn("John Smith");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -88,7 +123,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getName()).thenReturn("John Smith");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -102,8 +137,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getName()).thenReturn("John Smith");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class)))
-                .thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -117,7 +151,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getEmailAddress()).thenReturn("wrong@email.com");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).containsOnly(new YaccError(YaccError.Type.COMMITTER_EMAIL,
@@ -132,7 +166,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getEmailAddress()).thenReturn("correct@email.com");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -146,7 +180,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getEmailAddress()).thenReturn("CoRrect@EMAIL.com");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -160,7 +194,7 @@ public class YaccServiceImplTest {
         
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getEmailAddress()).thenReturn("CoRrect@EMAIL.com");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -173,8 +207,7 @@ public class YaccServiceImplTest {
         when(settings.getBoolean("requireJiraIssue", false)).thenReturn(true);
         when(jiraService.doesJiraApplicationLinkExist()).thenReturn(false);
 
-        Set<YaccCommit> commit = Sets.newHashSet(mockCommit());
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(commit);
+        mockNewCommits(mockCommit());
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).containsOnly(new YaccError("deadbeef: Unable to verify JIRA issue because JIRA Application Link does not exist"));
@@ -187,7 +220,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("this commit message has no jira issues. abc-123 is not a valid issue because it is lowercase.");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).containsOnly(new YaccError("deadbeef: No JIRA Issue found in commit message."));
@@ -205,7 +238,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("ABC-123: this commit has valid issue id and an invalid issue id of UTF-8");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
@@ -223,7 +256,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("this commit message has no jira issues. UTF-8 is not a valid issue because it has an invalid project key.");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).containsOnly(new YaccError("deadbeef: No JIRA Issue found in commit message."));
@@ -237,7 +270,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("ABC-123: this commit has valid issue id");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -252,7 +285,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("these issue ids should be extracted: ABC-123, ABC_D-123, ABC2-123");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         yaccService.checkRefChange(null, settings, mockRefChange());
         verify(jiraService).doesIssueExist(new IssueKey("ABC-123"));
@@ -260,6 +293,24 @@ public class YaccServiceImplTest {
         verify(jiraService).doesIssueExist(new IssueKey("ABC2-123"));
     }
 
+    @Test
+    public void testCheckRefChange_requireJiraIssue_onlyKnownProjectKeysAreExtracted() throws Exception {
+        when(settings.getBoolean("requireJiraIssue", false)).thenReturn(true);
+        when(settings.getString("issueProjectKeys")).thenReturn("ABC");
+        when(jiraService.doesJiraApplicationLinkExist()).thenReturn(true);
+        when(jiraService.doesIssueExist(any(IssueKey.class))).thenReturn(true);
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn("ABC-123: decode as UTF-8, hash with SHA-256");
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+        assertThat(errors).isEmpty();
+        verify(jiraService).doesIssueExist(new IssueKey("ABC-123"));
+        verify(jiraService, never()).doesIssueExist(new IssueKey("UTF-8"));
+        verify(jiraService, never()).doesIssueExist(new IssueKey("SHA-256"));
+    }
+
     @Test
     public void testCheckRefChange_requireJiraIssue_errorReturnedIfNoJiraAuth() throws Exception {
         when(settings.getBoolean("requireJiraIssue", false)).thenReturn(true);
@@ -269,7 +320,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("ABC-123: this commit has valid issue id");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
@@ -288,7 +339,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("ABC-123: this commit has valid issue id");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
@@ -304,7 +355,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("matches regex");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -317,13 +368,101 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("123 does not match regex because it contains numbers");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).containsOnly(new YaccError(YaccError.Type.COMMIT_REGEX,
                 "deadbeef: commit message doesn't match regex: [a-z ]+"));
     }
 
+    @Test
+    public void testCheckRefChange_commitMessageRegex_linearRegexEngine() throws Exception {
+        when(settings.getString("regexEngine")).thenReturn("LINEAR");
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+
+        YaccCommit valid = mockCommit();
+        when(valid.getMessage()).thenReturn("valid message");
+        YaccCommit invalid = mockCommit();
+        when(invalid.getMessage()).thenReturn("123 does not match regex because it contains numbers");
+        mockNewCommits(valid, invalid);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+        assertThat(errors).containsOnly(new YaccError(YaccError.Type.COMMIT_REGEX,
+                "deadbeef: commit message doesn't match regex: [a-z ]+"));
+    }
+
+    @Test
+    public void testCheckRefChange_commitMessageRegex_rejectIfRegexRunsOutOfSteps() throws Exception {
+        when(settings.getString("commitMessageRegex")).thenReturn("(.*a){10}b");
+        when(settings.getString("regexStepBudget")).thenReturn("1000");
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn(Strings.repeat("a", 64));
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+        assertThat(errors).containsOnly(new YaccError(YaccError.Type.REGEX_STEP_BUDGET,
+                "deadbeef: regex '(.*a){10}b' took too long to match, gave up after 1000 steps"));
+        verify(stepBudgetMetrics).recordExceeded(any(StepBudgetExceededException.class));
+    }
+
+    @Test
+    public void testCheckRefChange_commitMessageRegex_acceptIfRegexRunsOutOfStepsAndPolicyAccepts() throws Exception {
+        when(settings.getString("commitMessageRegex")).thenReturn("(.*a){10}b");
+        when(settings.getString("regexStepBudget")).thenReturn("1000");
+        when(settings.getString("regexStepBudgetPolicy")).thenReturn("ACCEPT");
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn(Strings.repeat("a", 64));
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+        assertThat(errors).isEmpty();
+        verify(stepBudgetMetrics).recordExceeded(any(StepBudgetExceededException.class));
+    }
+
+    @Test
+    public void testCheckRefChange_commitMessageWindow_onlyWindowIsMatchedAgainstRegex() throws Exception {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+        when(settings.getString("commitMessageWindow")).thenReturn("1");
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn(Strings.repeat("a", 1024) + " 123 not checked");
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+        assertThat(errors).isEmpty();
+    }
+
+    @Test
+    public void testCheckRefChange_commitMessageWindow_issuesPastWindowAreFound() throws Exception {
+        when(settings.getBoolean("requireJiraIssue", false)).thenReturn(true);
+        when(settings.getString("commitMessageWindow")).thenReturn("1");
+        when(jiraService.doesJiraApplicationLinkExist()).thenReturn(true);
+        when(jiraService.doesIssueExist(new IssueKey("ABC-123"))).thenReturn(true);
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn(Strings.repeat("a", 1024) + " ABC-123");
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+        assertThat(errors).isEmpty();
+        verify(jiraService).doesIssueExist(new IssueKey("ABC-123"));
+    }
+
+    @Test
+    public void testCheckRefChange_rejectOversizedMessages() throws Exception {
+        when(settings.getString("commitMessageWindow")).thenReturn("1");
+        when(settings.getBoolean("rejectOversizedMessages", false)).thenReturn(true);
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn(Strings.repeat("a", 1025));
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+        assertThat(errors).containsOnly(new YaccError("deadbeef: commit message is longer than 1 KiB"));
+    }
+
     @Test
     public void testCheckRefChange_excludeByRegex_commitAllowedIfRegexMatches() {
         when(settings.getString("commitMessageRegex")).thenReturn("foo");
@@ -331,7 +470,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("this commit will be allowed #skipcheck");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -346,7 +485,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("this commit will be rejected");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isNotEmpty();
@@ -360,7 +499,7 @@ public class YaccServiceImplTest {
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("This is a merge commit");
         when(commit.getParentCount()).thenReturn(2);
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -379,7 +518,7 @@ public class YaccServiceImplTest {
         YaccCommit commit = mockCommit();
         when(commit.getCommitter().getName()).thenReturn("Incorrect Name");
         when(commit.getCommitter().getEmailAddress()).thenReturn("wrong@email.com");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockTagChange());
         assertThat(errors).containsOnly(new YaccError(YaccError.Type.COMMITTER_NAME,
@@ -395,7 +534,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("a message");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockTagChange());
         assertThat(errors).isEmpty();
@@ -410,7 +549,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("this commit message has no jira issues. UTF-8 is not a valid issue because it has an invalid project key.");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockTagChange());
         assertThat(errors).isEmpty();
@@ -427,7 +566,7 @@ public class YaccServiceImplTest {
 
         YaccCommit commit = mockCommit();
         when(commit.getMessage()).thenReturn("123 does not match regex because it contains numbers");
-        when(commitsService.getNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(Sets.newHashSet(commit));
+        mockNewCommits(commit);
 
         List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
         assertThat(errors).isEmpty();
@@ -448,12 +587,378 @@ public class YaccServiceImplTest {
 
     }
 
+    @Test
+    public void testCheckRefChange_commitStreamIsClosed() {
+        MockYaccCommitStream commits = new MockYaccCommitStream(mockCommit());
+        when(commitsService.streamNewCommits(any(Repository.class), any(RefChange.class))).thenReturn(commits);
+
+        yaccService.checkRefChange(null, settings, mockRefChange());
+
+        assertThat(commits.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testCheckRefChanges_sharedCommitIsCheckedOnceAndReportedForEachRef() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+
+        RefChange master = mockRefChange();
+        RefChange feature = mockRefChange();
+        when(feature.getRefId()).thenReturn("refs/heads/feature");
+        List<RefChange> refChanges = Arrays.asList(master, feature);
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn("123 does not match regex because it contains numbers");
+        when(commitsService.streamNewCommits(any(Repository.class), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new MockYaccCommitStream(refChanges, commit));
+
+        List<YaccError> errors = yaccService.checkRefChanges(null, settings, refChanges);
+
+        assertThat(errors).containsExactly(
+                new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "refs/heads/master: deadbeef: commit message doesn't match regex: [a-z ]+"),
+                new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "refs/heads/feature: deadbeef: commit message doesn't match regex: [a-z ]+"));
+        verify(commit, times(1)).getParentCount();
+    }
+
+    @Test
+    public void testCheckRefChanges_commitOnlyNewToTagSkipsMessageChecks() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+
+        RefChange tag = mockTagChange();
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn("123 does not match regex because it contains numbers");
+        when(commitsService.streamNewCommits(any(Repository.class), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new MockYaccCommitStream(Collections.singletonList(tag), commit));
+
+        List<YaccError> errors = yaccService.checkRefChanges(null, settings, Collections.singletonList(tag));
+
+        assertThat(errors).isEmpty();
+    }
+
+    @Test
+    public void testCheckRefChange_messageIsNotReadWithoutMessageChecks() {
+        when(settings.getBoolean("requireMatchingAuthorEmail", false)).thenReturn(true);
+        when(stashUser.getType()).thenReturn(UserType.NORMAL);
+        when(stashUser.getEmailAddress()).thenReturn("jsmith@example.com");
+
+        YaccCommit commit = mockCommit();
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+
+        assertThat(errors).isEmpty();
+        verify(commit, never()).getMessage();
+    }
+
+    @Test
+    public void testCheckRefChanges_ignoredMergeCommitsAreNotRead() {
+        when(settings.getBoolean("excludeMergeCommits", false)).thenReturn(true);
+        when(stashUser.getType()).thenReturn(UserType.NORMAL);
+
+        List<RefChange> refChanges = Collections.singletonList(mockRefChange());
+        yaccService.checkRefChanges(null, settings, refChanges);
+
+        verify(commitsService).streamNewCommits((Repository) isNull(), eq(refChanges), eq(true), eq(0),
+                (ResumePoint) isNull());
+    }
+
+    @Test
+    public void testCheckRefChanges_mergeCommitsAreReadForCommitterChecks() {
+        when(settings.getBoolean("excludeMergeCommits", false)).thenReturn(true);
+        when(settings.getBoolean("requireMatchingAuthorEmail", false)).thenReturn(true);
+        when(stashUser.getType()).thenReturn(UserType.NORMAL);
+
+        List<RefChange> refChanges = Collections.singletonList(mockRefChange());
+        yaccService.checkRefChanges(null, settings, refChanges);
+
+        verify(commitsService).streamNewCommits((Repository) isNull(), eq(refChanges), eq(false), eq(0),
+                (ResumePoint) isNull());
+    }
+
+    @Test
+    public void testCheckRefChange_verifiedCommitsAreSkipped() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+        when(verifiedCommitCache.isVerified(eq("deadbeef"), anyString(), eq(true))).thenReturn(true);
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn("123 does not match regex because it contains numbers");
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+
+        assertThat(errors).isEmpty();
+        verify(commit, never()).getMessage();
+    }
+
+    @Test
+    public void testCheckRefChange_onlyPassingCommitsAreMarkedVerified() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+
+        YaccCommit valid = mockCommit();
+        when(valid.getId()).thenReturn("c0ffee");
+        when(valid.getMessage()).thenReturn("valid message");
+        YaccCommit invalid = mockCommit();
+        when(invalid.getMessage()).thenReturn("123 does not match regex because it contains numbers");
+        mockNewCommits(valid, invalid);
+
+        yaccService.checkRefChange(null, settings, mockRefChange());
+
+        verify(verifiedCommitCache).markVerified(eq("c0ffee"), anyString(), eq(true));
+        verify(verifiedCommitCache, never()).markVerified(eq("deadbeef"), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testCheckRefChange_pluginCommitChecksAreRun() {
+        CommitCheck check = mockCommitCheck(CheckCost.LOCAL_IO, new YaccError("plugin check failed"));
+        when(pluginAccessor.getEnabledModulesByClass(CommitCheck.class)).thenReturn(Collections.singletonList(check));
+
+        YaccCommit commit = mockCommit();
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+
+        assertThat(errors).containsOnly(new YaccError("deadbeef: plugin check failed"));
+        verify(check).check(any(RulePlan.class), eq(commit), eq(stashUser));
+    }
+
+    @Test
+    public void testCheckRefChange_remoteChecksAreSkippedOnceACheaperCheckRejects() throws Exception {
+        when(settings.getBoolean("requireJiraIssue", false)).thenReturn(true);
+        when(jiraService.doesJiraApplicationLinkExist()).thenReturn(true);
+        CommitCheck check = mockCommitCheck(CheckCost.LOCAL_IO, new YaccError("plugin check failed"));
+        when(pluginAccessor.getEnabledModulesByClass(CommitCheck.class)).thenReturn(Collections.singletonList(check));
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn("ABC-123: this commit has valid issue id");
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+
+        assertThat(errors).containsOnly(new YaccError("deadbeef: plugin check failed"));
+        verify(jiraService, never()).doesIssueExist(any(IssueKey.class));
+    }
+
+    @Test
+    public void testCheckRefChange_remotePluginChecksRunAfterLocalChecks() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+        CommitCheck check = mockCommitCheck(CheckCost.REMOTE);
+        when(pluginAccessor.getEnabledModulesByClass(CommitCheck.class)).thenReturn(Collections.singletonList(check));
+
+        YaccCommit commit = mockCommit();
+        when(commit.getMessage()).thenReturn("123 does not match regex because it contains numbers");
+        mockNewCommits(commit);
+
+        List<YaccError> errors = yaccService.checkRefChange(null, settings, mockRefChange());
+
+        assertThat(errors).containsOnly(new YaccError(YaccError.Type.COMMIT_REGEX,
+                "deadbeef: commit message doesn't match regex: [a-z ]+"));
+        verify(check, never()).check(any(RulePlan.class), any(YaccCommit.class), any(ApplicationUser.class));
+    }
+
+    @Test
+    public void testCheckRefChanges_pluginRefChecksAreRun() {
+        RefCheck check = mock(RefCheck.class);
+        when(check.getCost()).thenReturn(CheckCost.LOCAL_CPU);
+        when(check.check(any(RulePlan.class), eq("refs/heads/master")))
+                .thenReturn(Collections.singletonList(new YaccError("plugin ref check failed")));
+        when(pluginAccessor.getEnabledModulesByClass(RefCheck.class)).thenReturn(Collections.singletonList(check));
+
+        List<YaccError> errors = yaccService.checkRefChanges(repository, settings,
+                Collections.singletonList(mockRefChange()));
+
+        assertThat(errors).containsOnly(new YaccError("refs/heads/master: plugin ref check failed"));
+    }
+
+    private CommitCheck mockCommitCheck(CheckCost cost, YaccError... errors) {
+        CommitCheck check = mock(CommitCheck.class);
+        when(check.getCost()).thenReturn(cost);
+        when(check.check(any(RulePlan.class), any(YaccCommit.class), any(ApplicationUser.class)))
+                .thenReturn(Arrays.asList(errors));
+        return check;
+    }
+
+    private void mockNewCommits(YaccCommit... commits) {
+        when(commitsService.streamNewCommits(any(Repository.class), any(RefChange.class)))
+                .thenReturn(new MockYaccCommitStream(commits));
+    }
+
+    @Test
+    public void testCheckRefChanges_largePushStopsAtFirstViolation() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+        when(settings.getString("largePushCommitLimit")).thenReturn("2");
+        when(settings.getString("largePushMode")).thenReturn("FIRST_VIOLATION");
+
+        List<RefChange> refChanges = Collections.singletonList(mockRefChange());
+        when(commitsService.streamNewCommits(any(Repository.class), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new MockYaccCommitStream(refChanges, mockCommits("ok", "ok", "bad 1", "ok", "bad 2")));
+
+        List<YaccError> errors = yaccService.checkRefChanges(repository, settings, refChanges);
+
+        assertThat(errors).containsExactly(
+                new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "refs/heads/master: c2: commit message doesn't match regex: [a-z ]+"),
+                new YaccError("large push: checking stopped at the first rejected commit, "
+                        + "later commits were not checked"));
+    }
+
+    @Test
+    public void testCheckRefChanges_largePushSamplesRemainingCommits() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+        when(settings.getString("largePushCommitLimit")).thenReturn("1");
+        when(settings.getString("largePushMode")).thenReturn("SAMPLE");
+        when(settings.getString("largePushSampleInterval")).thenReturn("2");
+
+        List<RefChange> refChanges = Collections.singletonList(mockRefChange());
+        when(commitsService.streamNewCommits(any(Repository.class), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new MockYaccCommitStream(refChanges, mockCommits("ok", "bad 1", "bad 2", "bad 3")));
+
+        List<YaccError> errors = yaccService.checkRefChanges(repository, settings, refChanges);
+
+        assertThat(errors).containsExactly(
+                new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "refs/heads/master: c1: commit message doesn't match regex: [a-z ]+"),
+                new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "refs/heads/master: c3: commit message doesn't match regex: [a-z ]+"),
+                new YaccError("large push: only 3 of 4 new commits were checked"));
+    }
+
+    @Test
+    public void testCheckRefChanges_largePushChecksFirstAndLastCommits() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+        when(settings.getString("largePushCommitLimit")).thenReturn("1");
+        when(settings.getString("largePushMode")).thenReturn("FIRST_LAST");
+        when(settings.getString("largePushEdgeCount")).thenReturn("1");
+
+        List<RefChange> refChanges = Collections.singletonList(mockRefChange());
+        when(commitsService.streamNewCommits(any(Repository.class), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new MockYaccCommitStream(refChanges, mockCommits("ok", "bad 1", "bad 2")));
+
+        List<YaccError> errors = yaccService.checkRefChanges(repository, settings, refChanges);
+
+        assertThat(errors).containsExactly(
+                new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "refs/heads/master: c2: commit message doesn't match regex: [a-z ]+"),
+                new YaccError("large push: only 2 of 3 new commits were checked"));
+    }
+
+    @Test
+    public void testCheckRefChanges_largePushTimeLimitAppliesToCleanPushes() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+        when(settings.getString("largePushTimeLimit")).thenReturn("1");
+        when(settings.getString("largePushMode")).thenReturn("FIRST_VIOLATION");
+
+        List<RefChange> refChanges = Collections.singletonList(mockRefChange());
+        when(commitsService.streamNewCommits(any(Repository.class), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new SlowCommitStream(refChanges, mockCommits("ok", "ok", "ok")));
+
+        List<YaccError> errors = yaccService.checkRefChanges(repository, settings, refChanges);
+
+        assertThat(errors).containsExactly(new YaccError("large push: checking stopped after 1 seconds, "
+                + "push again to check the remaining commits"));
+    }
+
+    @Test
+    public void testCheckRefChanges_retriedLargePushResumesFromCheckpoint() {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+        when(settings.getString("largePushTimeLimit")).thenReturn("1");
+        when(settings.getString("largePushMode")).thenReturn("FIRST_VIOLATION");
+
+        ResumePoint resumePoint = new ResumePoint(Collections.<String>emptySet(),
+                Collections.singletonMap("c1", Collections.singleton("refs/heads/master")));
+        SlowCommitStream firstAttempt = new SlowCommitStream(Collections.<RefChange>emptyList(),
+                mockCommits("ok", "ok"));
+        firstAttempt.setResumePoint(resumePoint);
+
+        List<RefChange> refChanges = Collections.singletonList(mockRefChange());
+        when(commitsService.streamNewCommits(any(Repository.class), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(firstAttempt, new MockYaccCommitStream(refChanges, mockCommits("ok", "bad 1")));
+
+        yaccService.checkRefChanges(repository, settings, refChanges);
+        List<YaccError> errors = yaccService.checkRefChanges(repository, settings, refChanges);
+
+        // The second attempt carries on from where the first stopped rather than starting again
+        verify(commitsService).streamNewCommits(eq(repository), eq(refChanges), anyBoolean(), anyInt(),
+                eq(resumePoint));
+        assertThat(errors).containsExactly(
+                new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "refs/heads/master: c1: commit message doesn't match regex: [a-z ]+"));
+    }
+
+    @Test
+    public void testCheckRefChanges_historyOnlyPresentInOneForkIsCheckedInAnother() throws Exception {
+        when(settings.getString("commitMessageRegex")).thenReturn("[a-z ]+");
+
+        Repository forkA = mock(Repository.class);
+        Repository forkB = mock(Repository.class);
+        when(forkA.getHierarchyId()).thenReturn("network");
+        when(forkB.getHierarchyId()).thenReturn("network");
+
+        yaccService = new YaccServiceImpl(stashAuthenticationContext, commitsService, jiraService,
+                new VerifiedCommitCache(temporaryFolder.newFile("verified-commits.bin"), 16),
+                new PushCheckpointCache(), rulePlanCache, pluginAccessor, stepBudgetMetrics);
+
+        List<RefChange> refChanges = Collections.singletonList(mockRefChange());
+        YaccCommit[] commits = mockCommits("tip", "bad 1");
+
+        // Fork A already has the rejected commit, from before the hook was enabled, so only the tip is new
+        when(commitsService.streamNewCommits(eq(forkA), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new MockYaccCommitStream(refChanges, commits[0]));
+        when(commitsService.streamNewCommits(eq(forkB), anyCollectionOf(RefChange.class), anyBoolean(), anyInt(),
+                any(ResumePoint.class)))
+                .thenReturn(new MockYaccCommitStream(refChanges, commits));
+
+        assertThat(yaccService.checkRefChanges(forkA, settings, refChanges)).isEmpty();
+        assertThat(yaccService.checkRefChanges(forkB, settings, refChanges)).containsExactly(
+                new YaccError(YaccError.Type.COMMIT_REGEX,
+                        "refs/heads/master: c1: commit message doesn't match regex: [a-z ]+"));
+    }
+
+    /**
+     * Takes longer than a second for each commit, to run into the large push time limit.
+     */
+    private static class SlowCommitStream extends MockYaccCommitStream {
+        private SlowCommitStream(Collection<RefChange> refChanges, YaccCommit... commits) {
+            super(refChanges, commits);
+        }
+
+        @Override
+        public YaccCommit next() {
+            Uninterruptibles.sleepUninterruptibly(1100, TimeUnit.MILLISECONDS);
+            return super.next();
+        }
+    }
+
+    private YaccCommit[] mockCommits(String... messages) {
+        YaccCommit[] commits = new YaccCommit[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            commits[i] = mockCommit();
+            when(commits[i].getId()).thenReturn("c" + i);
+            when(commits[i].getMessage()).thenReturn(messages[i]);
+        }
+
+        return commits;
+    }
+
     private YaccCommit mockCommit() {
         YaccCommit commit = mock(YaccCommit.class, RETURNS_DEEP_STUBS);
         when(commit.getCommitter().getName()).thenReturn("John Smith");
         when(commit.getCommitter().getEmailAddress()).thenReturn("jsmith@example.com");
         when(commit.getId()).thenReturn("deadbeef");
         when(commit.getParentCount()).thenReturn(1);
+        when(commit.getMessageChars()).thenCallRealMethod();
+        when(commit.getMessageChars(anyInt())).thenCallRealMethod();
+        when(commit.getMessageOverflow(anyInt())).thenCallRealMethod();
+        when(commit.isMessageLongerThan(anyInt())).thenCallRealMethod();
         return commit;
     }
 
@@ -0,0 +1,71 @@
+package ut.com.isroot.stash.plugin.cache;
+
+import com.atlassian.bitbucket.setting.Settings;
+import com.google.common.collect.ImmutableMap;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.cache.RulePlanCache;
+import org.junit.Test;
+import ut.com.isroot.stash.plugin.mock.MockSettings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RulePlanCacheTest {
+    private final RulePlanCache rulePlanCache = new RulePlanCache();
+
+    @Test
+    public void testGet_sameSettingsShareOnePlan() {
+        RulePlan plan = rulePlanCache.get(new MockSettings(ImmutableMap.<String, Object>of(
+                "commitMessageRegex", "[A-Z]+-[0-9]+ .*", "requireJiraIssue", true)));
+        RulePlan samePlan = rulePlanCache.get(new MockSettings(ImmutableMap.<String, Object>of(
+                "requireJiraIssue", true, "commitMessageRegex", "[A-Z]+-[0-9]+ .*")));
+
+        assertThat(samePlan).isSameAs(plan);
+        assertThat(plan.isRequireJiraIssue()).isTrue();
+        assertThat(plan.getCommitMessagePattern().pattern()).isEqualTo("[A-Z]+-[0-9]+ .*");
+    }
+
+    @Test
+    public void testGet_changedSettingsGetNewPlan() {
+        RulePlan plan = rulePlanCache.get(new MockSettings(ImmutableMap.<String, Object>of(
+                "branchNameRegex", "feature/.*")));
+        RulePlan changedPlan = rulePlanCache.get(new MockSettings(ImmutableMap.<String, Object>of(
+                "branchNameRegex", "bugfix/.*")));
+
+        assertThat(changedPlan).isNotSameAs(plan);
+        assertThat(changedPlan.getBranchNamePattern().pattern()).isEqualTo("bugfix/.*");
+    }
+
+    @Test
+    public void testGet_regexStepBudgetIsOnlySetWhenConfigured() {
+        RulePlan plan = rulePlanCache.get(new MockSettings(ImmutableMap.<String, Object>of(
+                "commitMessageRegex", "[A-Z]+-[0-9]+ .*")));
+        RulePlan budgetedPlan = rulePlanCache.get(new MockSettings(ImmutableMap.<String, Object>of(
+                "commitMessageRegex", "[A-Z]+-[0-9]+ .*", "regexStepBudget", "1000")));
+
+        assertThat(plan.getRegexStepBudget()).isEqualTo(0);
+        assertThat(budgetedPlan.getRegexStepBudget()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testGet_planKeepsACopyOfItsSettings() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("commitMessageRegex", "[a-z ]+");
+        values.put("requireJiraIssue", "true");
+        values.put("pluginLimit", "12");
+        Settings settings = mock(Settings.class);
+        when(settings.asMap()).thenReturn(values);
+
+        RulePlan plan = rulePlanCache.get(settings);
+        values.put("commitMessageRegex", "changed");
+
+        assertThat(plan.getSettings()).isNotSameAs(settings);
+        assertThat(plan.getSettings().getString("commitMessageRegex")).isEqualTo("[a-z ]+");
+        assertThat(plan.getSettings().getBoolean("requireJiraIssue", false)).isTrue();
+        assertThat(plan.getSettings().getInt("pluginLimit", 0)).isEqualTo(12);
+    }
+}
@@ -0,0 +1,160 @@
+package ut.com.isroot.stash.plugin.cache;
+
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.atlassian.bitbucket.user.UserType;
+import com.google.common.collect.ImmutableMap;
+import com.isroot.stash.plugin.cache.VerifiedCommitCache;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import ut.com.isroot.stash.plugin.mock.MockSettings;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class VerifiedCommitCacheTest {
+    private static final String COMMIT = "35d938b060bb361503e021f228e43351f1a71551";
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock private ApplicationUser user;
+
+    private File file;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        when(user.getType()).thenReturn(UserType.NORMAL);
+        when(user.getName()).thenReturn("jsmith");
+        when(user.getEmailAddress()).thenReturn("jsmith@example.com");
+        when(user.getDisplayName()).thenReturn("John Smith");
+
+        file = new File(temporaryFolder.getRoot(), "cache/verified-commits.bin");
+    }
+
+    @Test
+    public void testIsVerified_unknownCommitIsNotVerified() {
+        VerifiedCommitCache cache = new VerifiedCommitCache(file, 16);
+
+        assertThat(cache.isVerified(COMMIT, fingerprint("foo"), true)).isFalse();
+    }
+
+    @Test
+    public void testMarkVerified_verdictIsKeptAcrossRestarts() {
+        new VerifiedCommitCache(file, 16).markVerified(COMMIT, fingerprint("foo"), true);
+
+        VerifiedCommitCache cache = new VerifiedCommitCache(file, 16);
+
+        assertThat(cache.isVerified(COMMIT, fingerprint("foo"), true)).isTrue();
+    }
+
+    @Test
+    public void testIsVerified_changedSettingsInvalidateVerdict() {
+        VerifiedCommitCache cache = new VerifiedCommitCache(file, 16);
+        cache.markVerified(COMMIT, fingerprint("foo"), true);
+
+        assertThat(cache.isVerified(COMMIT, fingerprint("bar"), true)).isFalse();
+    }
+
+    @Test
+    public void testIsVerified_verdictWithoutMessageChecksDoesNotCoverMessageChecks() {
+        VerifiedCommitCache cache = new VerifiedCommitCache(file, 16);
+        cache.markVerified(COMMIT, fingerprint("foo"), false);
+
+        assertThat(cache.isVerified(COMMIT, fingerprint("foo"), true)).isFalse();
+    }
+
+    @Test
+    public void testFingerprint_differsByUserWithCommitterChecks() {
+        String before = fingerprint(ImmutableMap.<String, Object>of("requireMatchingAuthorEmail", "true"));
+
+        when(user.getEmailAddress()).thenReturn("someone@example.com");
+
+        assertThat(fingerprint(ImmutableMap.<String, Object>of("requireMatchingAuthorEmail", "true")))
+                .isNotEqualTo(before);
+    }
+
+    @Test
+    public void testFingerprint_sameForAllUsersWithoutCommitterChecks() {
+        String before = fingerprint("foo");
+
+        when(user.getEmailAddress()).thenReturn("someone@example.com");
+
+        assertThat(fingerprint("foo")).isEqualTo(before);
+    }
+
+    @Test
+    public void testFingerprint_disabledSettingsAreIgnored() {
+        assertThat(fingerprint(ImmutableMap.<String, Object>of("commitMessageRegex", "foo",
+                "requireJiraIssue", "false", "excludeByRegex", "", "errorMessageHeader", "Oops")))
+                .isEqualTo(fingerprint("foo"));
+    }
+
+    @Test
+    public void testMarkVerified_fullCacheIsCleared() {
+        VerifiedCommitCache cache = new VerifiedCommitCache(file, 16);
+
+        for (int i = 0; i < 13; i++) {
+            cache.markVerified("commit" + i, fingerprint("foo"), true);
+        }
+
+        assertThat(cache.isVerified("commit0", fingerprint("foo"), true)).isFalse();
+        assertThat(cache.isVerified("commit12", fingerprint("foo"), true)).isTrue();
+    }
+
+    @Test
+    public void testMarkVerified_concurrentHooksSeeEachOthersVerdicts() throws Exception {
+        final VerifiedCommitCache cache = new VerifiedCommitCache(file, 1 << 12);
+        final String fingerprint = fingerprint("foo");
+
+        List<Callable<Boolean>> hooks = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int hook = t;
+            hooks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    boolean seen = true;
+                    for (int i = 0; i < 200; i++) {
+                        String commit = "commit" + hook + "-" + i;
+                        cache.markVerified(commit, fingerprint, true);
+                        seen &= cache.isVerified(commit, fingerprint, true);
+                        cache.isVerified("unknown" + hook + "-" + i, fingerprint, true);
+                    }
+                    return seen;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(hooks.size());
+        try {
+            for (Future<Boolean> result : executor.invokeAll(hooks)) {
+                assertThat(result.get()).isTrue();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(cache.isVerified("commit7-199", fingerprint, true)).isTrue();
+    }
+
+    private String fingerprint(String commitMessageRegex) {
+        return fingerprint(ImmutableMap.<String, Object>of("commitMessageRegex", commitMessageRegex));
+    }
+
+    private String fingerprint(Map<String, Object> values) {
+        return VerifiedCommitCache.fingerprint(new MockSettings(values), user);
+    }
+}
@@ -1,7 +1,9 @@
 package ut.com.isroot.stash.plugin.checks;
 
 import com.atlassian.bitbucket.setting.Settings;
+import com.isroot.stash.plugin.RulePlan;
 import com.isroot.stash.plugin.checks.BranchNameCheck;
+import com.isroot.stash.plugin.checks.CheckCost;
 import com.isroot.stash.plugin.errors.YaccError;
 import org.junit.Test;
 
@@ -18,21 +20,21 @@ import static org.mockito.Mockito.when;
 public class BranchNameCheckTest {
     @Test
     public void testCheck_noErrorIfSettingIsNull() {
-        List<YaccError> errors = new BranchNameCheck(getSettings(null), "ref/heads/foo").check();
+        List<YaccError> errors = new BranchNameCheck().check(getPlan(null), "ref/heads/foo");
 
         assertThat(errors).isEmpty();
     }
 
     @Test
     public void testCheck_noErrorIfSettingIsEmpty() {
-        List<YaccError> errors = new BranchNameCheck(getSettings(""), "ref/heads/foo").check();
+        List<YaccError> errors = new BranchNameCheck().check(getPlan(""), "ref/heads/foo");
 
         assertThat(errors).isEmpty();
     }
 
     @Test
     public void testCheck_errorIfBranchNameDoesNotMatchRegex() {
-        List<YaccError> errors = new BranchNameCheck(getSettings("foo"), "refs/heads/bar").check();
+        List<YaccError> errors = new BranchNameCheck().check(getPlan("foo"), "refs/heads/bar");
 
         assertThat(errors)
                 .containsOnly(new YaccError(YaccError.Type.BRANCH_NAME,
@@ -41,23 +43,28 @@ public class BranchNameCheckTest {
 
     @Test
     public void testCheck_noErrorIfBranchNameMatchesRegex() {
-        List<YaccError> errors = new BranchNameCheck(getSettings(".*"), "refs/heads/foo").check();
+        List<YaccError> errors = new BranchNameCheck().check(getPlan(".*"), "refs/heads/foo");
 
         assertThat(errors).isEmpty();
     }
 
     @Test
     public void testCheck_nonBranchRefIdsAreIgnored() {
-        List<YaccError> errors = new BranchNameCheck(getSettings("foo"), "refs/tags/bar").check();
+        List<YaccError> errors = new BranchNameCheck().check(getPlan("foo"), "refs/tags/bar");
 
         assertThat(errors).isEmpty();
     }
 
-    private Settings getSettings(String branchNameRegex) {
+    @Test
+    public void testGetCost_isLocalCpu() {
+        assertThat(new BranchNameCheck().getCost()).isEqualTo(CheckCost.LOCAL_CPU);
+    }
+
+    private RulePlan getPlan(String branchNameRegex) {
         Settings settings = mock(Settings.class);
 
         when(settings.getString("branchNameRegex")).thenReturn(branchNameRegex);
 
-        return settings;
+        return RulePlan.compile(settings);
     }
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package ut.com.isroot.stash.plugin.checks;
+
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.isroot.stash.plugin.RulePlan;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.checks.CheckCost;
+import com.isroot.stash.plugin.checks.CheckEvaluator;
+import com.isroot.stash.plugin.checks.CommitCheck;
+import com.isroot.stash.plugin.checks.RefCheck;
+import com.isroot.stash.plugin.errors.YaccError;
+import com.isroot.stash.plugin.regex.StepBudgetExceededException;
+import com.isroot.stash.plugin.regex.StepBudgetMetrics;
+import com.isroot.stash.plugin.regex.StepBudgetPolicy;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CheckEvaluatorTest {
+    private final RulePlan plan = mock(RulePlan.class);
+    private final YaccCommit commit = mock(YaccCommit.class);
+    private final StepBudgetMetrics stepBudgetMetrics = mock(StepBudgetMetrics.class);
+
+    @Test
+    public void testCheckCommit_checksRunCheapestFirst() {
+        CommitCheck remote = mockCommitCheck(CheckCost.REMOTE, false);
+        CommitCheck io = mockCommitCheck(CheckCost.LOCAL_IO, false);
+        CommitCheck cpu1 = mockCommitCheck(CheckCost.LOCAL_CPU, false);
+        CommitCheck cpu2 = mockCommitCheck(CheckCost.LOCAL_CPU, false);
+
+        new CheckEvaluator(Arrays.asList(remote, io, cpu1, cpu2), Collections.<RefCheck>emptyList(),
+                stepBudgetMetrics).checkCommit(plan, commit, null, true);
+
+        InOrder inOrder = inOrder(cpu1, cpu2, io, remote);
+        inOrder.verify(cpu1).check(plan, commit, null);
+        inOrder.verify(cpu2).check(plan, commit, null);
+        inOrder.verify(io).check(plan, commit, null);
+        inOrder.verify(remote).check(plan, commit, null);
+    }
+
+    @Test
+    public void testCheckCommit_remoteChecksAreSkippedAfterAnError() {
+        CommitCheck remote = mockCommitCheck(CheckCost.REMOTE, false);
+        CommitCheck local = mockCommitCheck(CheckCost.LOCAL_CPU, false, new YaccError("local error"));
+
+        List<YaccError> errors = new CheckEvaluator(Arrays.asList(remote, local), Collections.<RefCheck>emptyList(),
+                stepBudgetMetrics).checkCommit(plan, commit, null, true);
+
+        assertThat(errors).containsOnly(new YaccError("local error"));
+        verify(remote, never()).check(any(RulePlan.class), any(YaccCommit.class), any(ApplicationUser.class));
+    }
+
+    @Test
+    public void testCheckCommit_localChecksStillRunAfterAnError() {
+        CommitCheck first = mockCommitCheck(CheckCost.LOCAL_CPU, false, new YaccError("first error"));
+        CommitCheck second = mockCommitCheck(CheckCost.LOCAL_IO, false, new YaccError("second error"));
+
+        List<YaccError> errors = new CheckEvaluator(Arrays.asList(first, second), Collections.<RefCheck>emptyList(),
+                stepBudgetMetrics).checkCommit(plan, commit, null, true);
+
+        assertThat(errors).containsExactly(new YaccError("first error"), new YaccError("second error"));
+    }
+
+    @Test
+    public void testCheckCommit_messageChecksAreSkippedIfMessagesAreNotChecked() {
+        CommitCheck message = mockCommitCheck(CheckCost.LOCAL_CPU, true, new YaccError("message error"));
+        CommitCheck committer = mockCommitCheck(CheckCost.LOCAL_CPU, false);
+
+        List<YaccError> errors = new CheckEvaluator(Arrays.asList(message, committer),
+                Collections.<RefCheck>emptyList(), stepBudgetMetrics).checkCommit(plan, commit, null, false);
+
+        assertThat(errors).isEmpty();
+        verify(message, never()).check(any(RulePlan.class), any(YaccCommit.class), any(ApplicationUser.class));
+        verify(committer).check(plan, commit, null);
+    }
+
+    @Test
+    public void testCheckRef_remoteChecksAreSkippedAfterAnError() {
+        RefCheck remote = mock(RefCheck.class);
+        when(remote.getCost()).thenReturn(CheckCost.REMOTE);
+        RefCheck local = mock(RefCheck.class);
+        when(local.getCost()).thenReturn(CheckCost.LOCAL_CPU);
+        when(local.check(plan, "refs/heads/foo")).thenReturn(Collections.singletonList(new YaccError("bad ref")));
+
+        List<YaccError> errors = new CheckEvaluator(Collections.<CommitCheck>emptyList(), Arrays.asList(remote, local),
+                stepBudgetMetrics).checkRef(plan, "refs/heads/foo");
+
+        assertThat(errors).containsOnly(new YaccError("bad ref"));
+        verify(remote, never()).check(any(RulePlan.class), any(String.class));
+    }
+
+    @Test
+    public void testCheckCommit_regexThatGivesUpIsRejectedAndCounted() {
+        when(plan.getStepBudgetPolicy()).thenReturn(StepBudgetPolicy.REJECT);
+        StepBudgetExceededException exceeded = new StepBudgetExceededException("(a|aa)*b", 100);
+        CommitCheck check = mockCommitCheck(CheckCost.LOCAL_CPU, true);
+        when(check.check(plan, commit, null)).thenThrow(exceeded);
+
+        List<YaccError> errors = new CheckEvaluator(Collections.singletonList(check),
+                Collections.<RefCheck>emptyList(), stepBudgetMetrics).checkCommit(plan, commit, null, true);
+
+        assertThat(errors).containsOnly(new YaccError(YaccError.Type.REGEX_STEP_BUDGET,
+                "regex '(a|aa)*b' took too long to match, gave up after 100 steps"));
+        verify(stepBudgetMetrics).recordExceeded(exceeded);
+    }
+
+    @Test
+    public void testCheckCommit_regexThatGivesUpCanBeAccepted() {
+        when(plan.getStepBudgetPolicy()).thenReturn(StepBudgetPolicy.ACCEPT);
+        StepBudgetExceededException exceeded = new StepBudgetExceededException("(a|aa)*b", 100);
+        CommitCheck check = mockCommitCheck(CheckCost.LOCAL_CPU, true);
+        when(check.check(plan, commit, null)).thenThrow(exceeded);
+        CommitCheck next = mockCommitCheck(CheckCost.REMOTE, true);
+
+        List<YaccError> errors = new CheckEvaluator(Arrays.asList(check, next),
+                Collections.<RefCheck>emptyList(), stepBudgetMetrics).checkCommit(plan, commit, null, true);
+
+        assertThat(errors).isEmpty();
+        verify(stepBudgetMetrics).recordExceeded(exceeded);
+        verify(next).check(plan, commit, null);
+    }
+
+    private CommitCheck mockCommitCheck(CheckCost cost, boolean messageCheck, YaccError... errors) {
+        CommitCheck check = mock(CommitCheck.class);
+        when(check.getCost()).thenReturn(cost);
+        when(check.isMessageCheck()).thenReturn(messageCheck);
+        when(check.check(any(RulePlan.class), any(YaccCommit.class), any(ApplicationUser.class)))
+                .thenReturn(Arrays.asList(errors));
+        return check;
+    }
+}
@@ -0,0 +1,35 @@
+package ut.com.isroot.stash.plugin.git;
+
+import com.isroot.stash.plugin.git.QuarantineDirectories;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QuarantineDirectoriesTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testGetAlternates_noQuarantine() throws Exception {
+        File repoDir = temporaryFolder.newFolder("repo.git");
+        assertThat(new File(repoDir, "objects/pack").mkdirs()).isTrue();
+
+        assertThat(QuarantineDirectories.getAlternates(repoDir)).isNull();
+    }
+
+    @Test
+    public void testGetAlternates_quarantinedPushesAreListed() throws Exception {
+        File repoDir = temporaryFolder.newFolder("repo.git");
+        File first = new File(repoDir, "objects/tmp_objdir-incoming-a1b2c3");
+        File second = new File(repoDir, "objects/tmp_objdir-incoming-d4e5f6");
+        assertThat(first.mkdirs()).isTrue();
+        assertThat(second.mkdirs()).isTrue();
+        assertThat(new File(repoDir, "objects/pack").mkdirs()).isTrue();
+
+        assertThat(QuarantineDirectories.getAlternates(repoDir))
+                .isEqualTo(first.getAbsolutePath() + File.pathSeparator + second.getAbsolutePath());
+    }
+}
@@ -0,0 +1,142 @@
+package ut.com.isroot.stash.plugin.jgit;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
+import com.isroot.stash.plugin.jgit.JGitRepositoryPool;
+import com.isroot.stash.plugin.jgit.JGitRepositoryPool.PooledRepository;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class JGitRepositoryPoolTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock private ApplicationPropertiesService applicationPropertiesService;
+    @Mock private Repository repository;
+    @Mock private Repository otherRepository;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        File repoDir = temporaryFolder.newFolder("repo.git");
+        File otherRepoDir = temporaryFolder.newFolder("other.git");
+
+        when(repository.getId()).thenReturn(1);
+        when(otherRepository.getId()).thenReturn(2);
+        when(applicationPropertiesService.getRepositoryDir(repository)).thenReturn(repoDir);
+        when(applicationPropertiesService.getRepositoryDir(otherRepository)).thenReturn(otherRepoDir);
+    }
+
+    @Test
+    public void testAcquire_repositoryIsReusedAfterRelease() throws Exception {
+        JGitRepositoryPool pool = new JGitRepositoryPool(applicationPropertiesService);
+
+        org.eclipse.jgit.lib.Repository first;
+        try (PooledRepository pooled = pool.acquire(repository)) {
+            first = pooled.getRepository();
+        }
+
+        try (PooledRepository pooled = pool.acquire(repository)) {
+            assertThat(pooled.getRepository()).isSameAs(first);
+        }
+    }
+
+    @Test
+    public void testAcquireWithAlternates_repositoryIsNotCached() throws Exception {
+        JGitRepositoryPool pool = new JGitRepositoryPool(applicationPropertiesService);
+        File alternate = temporaryFolder.newFolder("repo.git", "objects", "tmp_objdir-incoming-a1b2c3");
+
+        org.eclipse.jgit.lib.Repository quarantined;
+        try (PooledRepository pooled = pool.acquireWithAlternates(repository, Collections.singletonList(alternate))) {
+            quarantined = pooled.getRepository();
+        }
+
+        try (PooledRepository pooled = pool.acquire(repository)) {
+            assertThat(pooled.getRepository()).isNotSameAs(quarantined);
+        }
+    }
+
+    @Test
+    public void testInvalidate_repositoryIsReopened() throws Exception {
+        JGitRepositoryPool pool = new JGitRepositoryPool(applicationPropertiesService);
+
+        org.eclipse.jgit.lib.Repository first;
+        try (PooledRepository pooled = pool.acquire(repository)) {
+            first = pooled.getRepository();
+        }
+
+        pool.invalidate(1);
+
+        try (PooledRepository pooled = pool.acquire(repository)) {
+            assertThat(pooled.getRepository()).isNotSameAs(first);
+        }
+    }
+
+    @Test
+    public void testInvalidate_inUseRepositoryIsNotReturnedAgain() throws Exception {
+        JGitRepositoryPool pool = new JGitRepositoryPool(applicationPropertiesService);
+
+        try (PooledRepository inUse = pool.acquire(repository)) {
+            pool.invalidate(1);
+
+            try (PooledRepository pooled = pool.acquire(repository)) {
+                assertThat(pooled.getRepository()).isNotSameAs(inUse.getRepository());
+            }
+        }
+    }
+
+    @Test
+    public void testAcquire_idleRepositoriesAreEvictedWhenPoolIsFull() throws Exception {
+        JGitRepositoryPool pool = new JGitRepositoryPool(applicationPropertiesService, 1, Long.MAX_VALUE);
+
+        org.eclipse.jgit.lib.Repository first;
+        try (PooledRepository pooled = pool.acquire(repository)) {
+            first = pooled.getRepository();
+        }
+
+        pool.acquire(otherRepository).close();
+
+        try (PooledRepository pooled = pool.acquire(repository)) {
+            assertThat(pooled.getRepository()).isNotSameAs(first);
+        }
+    }
+
+    @Test
+    public void testRelease_idleRepositoriesAreEvictedWhenPoolIsFull() throws Exception {
+        JGitRepositoryPool pool = new JGitRepositoryPool(applicationPropertiesService, 1, Long.MAX_VALUE);
+
+        org.eclipse.jgit.lib.Repository first;
+        try (PooledRepository other = pool.acquire(otherRepository)) {
+            try (PooledRepository pooled = pool.acquire(repository)) {
+                first = pooled.getRepository();
+            }
+        }
+
+        try (PooledRepository pooled = pool.acquire(repository)) {
+            assertThat(pooled.getRepository()).isNotSameAs(first);
+        }
+    }
+
+    @Test
+    public void testDestroy_inUseRepositoryIsNotReturnedAgain() throws Exception {
+        JGitRepositoryPool pool = new JGitRepositoryPool(applicationPropertiesService);
+
+        try (PooledRepository inUse = pool.acquire(repository)) {
+            pool.destroy();
+
+            try (PooledRepository pooled = pool.acquire(repository)) {
+                assertThat(pooled.getRepository()).isNotSameAs(inUse.getRepository());
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ut.com.isroot.stash.plugin.jgit;
+
+import com.google.common.collect.ImmutableMap;
+import com.isroot.stash.plugin.jgit.JGitStorageConfig;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JGitStorageConfigTest {
+    @Test
+    public void testToWindowCacheConfig_serverDefaults() {
+        WindowCacheConfig config = JGitStorageConfig.toWindowCacheConfig(Collections.<String, Object>emptyMap());
+
+        assertThat(config.getPackedGitWindowSize()).isEqualTo(64 * 1024);
+        assertThat(config.getPackedGitLimit()).isEqualTo(128L * 1024 * 1024);
+        assertThat(config.getPackedGitOpenFiles()).isEqualTo(512);
+        assertThat(config.getDeltaBaseCacheLimit()).isEqualTo(32 * 1024 * 1024);
+        assertThat(config.isPackedGitMMAP()).isFalse();
+    }
+
+    @Test
+    public void testToWindowCacheConfig_settingsOverrideDefaults() {
+        WindowCacheConfig config = JGitStorageConfig.toWindowCacheConfig(ImmutableMap.<String, Object>builder()
+                .put("jgitPackedGitWindowSize", "8")
+                .put("jgitPackedGitLimit", "256")
+                .put("jgitPackedGitOpenFiles", "1024")
+                .put("jgitDeltaBaseCacheLimit", "not a number")
+                .put("jgitPackedGitMMAP", "on")
+                .build());
+
+        assertThat(config.getPackedGitWindowSize()).isEqualTo(8 * 1024);
+        assertThat(config.getPackedGitLimit()).isEqualTo(256L * 1024 * 1024);
+        assertThat(config.getPackedGitOpenFiles()).isEqualTo(1024);
+        assertThat(config.getDeltaBaseCacheLimit()).isEqualTo(32 * 1024 * 1024);
+        assertThat(config.isPackedGitMMAP()).isTrue();
+    }
+
+    @Test
+    public void testToWindowCacheConfig_largeValuesAreClamped() {
+        WindowCacheConfig config = JGitStorageConfig.toWindowCacheConfig(ImmutableMap.<String, Object>builder()
+                .put("jgitPackedGitLimit", "4096")
+                .put("jgitDeltaBaseCacheLimit", "4096")
+                .build());
+
+        assertThat(config.getPackedGitLimit()).isEqualTo(4096L * 1024 * 1024);
+        assertThat(config.getDeltaBaseCacheLimit()).isEqualTo(Integer.MAX_VALUE);
+    }
+}
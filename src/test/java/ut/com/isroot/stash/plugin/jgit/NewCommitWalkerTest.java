@@ -0,0 +1,182 @@
+package ut.com.isroot.stash.plugin.jgit;
+
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.jgit.NewCommitWalker;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ut.com.isroot.stash.plugin.mock.TestGitRepository;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NewCommitWalkerTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private TestGitRepository git;
+
+    @Before
+    public void setup() throws Exception {
+        git = new TestGitRepository(temporaryFolder.newFolder("repo.git"));
+    }
+
+    @After
+    public void tearDown() {
+        git.close();
+    }
+
+    @Test
+    public void testFindNewCommits_onlyCommitsNotOnExistingBranchesAreReturned() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId master = git.commit("master", base);
+        ObjectId feature1 = git.commit("feature 1", base);
+        ObjectId feature2 = git.commit("feature 2", feature1);
+
+        List<ObjectId> newCommits = findNewCommits(feature2, Lists.newArrayList(master));
+
+        assertThat(newCommits).containsOnly(feature1, feature2);
+    }
+
+    @Test
+    public void testFindNewCommits_commitsReachableFromAnyBranchAreExcluded() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId master = git.commit("master", base);
+        ObjectId other = git.commit("other", base);
+        ObjectId merge = git.commit("merge", master, other);
+
+        List<ObjectId> newCommits = findNewCommits(merge, Lists.newArrayList(master, other, master));
+
+        assertThat(newCommits).containsOnly(merge);
+    }
+
+    @Test
+    public void testFindNewCommits_nothingIsNewIfStartIsAnExistingTip() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId master = git.commit("master", base);
+
+        List<ObjectId> newCommits = findNewCommits(master, Lists.newArrayList(base, master));
+
+        assertThat(newCommits).isEmpty();
+    }
+
+    @Test
+    public void testFindNewCommits_allCommitsAreNewInEmptyRepository() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId master = git.commit("master", base);
+
+        List<ObjectId> newCommits = findNewCommits(master, Lists.<ObjectId>newArrayList());
+
+        assertThat(newCommits).containsOnly(base, master);
+    }
+
+    @Test
+    public void testNext_childrenAreReturnedBeforeParents() throws Exception {
+        ObjectId first = git.commit("first");
+        ObjectId second = git.commit("second", first);
+        ObjectId third = git.commit("third", second);
+
+        assertThat(findNewCommits(third, Lists.<ObjectId>newArrayList())).containsExactly(third, second, first);
+    }
+
+    @Test
+    public void testGetCurrentStarts_sharedCommitsAreReturnedOnceForEveryStart() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId shared = git.commit("shared", base);
+        ObjectId feature1 = git.commit("feature 1", shared);
+        ObjectId feature2 = git.commit("feature 2", shared);
+
+        Map<ObjectId, BitSet> starts = new HashMap<>();
+
+        try (NewCommitWalker walker = new NewCommitWalker(git.getRepository())) {
+            walker.markStart(Lists.newArrayList(feature1, feature2), Lists.newArrayList(base));
+
+            RevCommit commit;
+            while ((commit = walker.next()) != null) {
+                assertThat(starts).doesNotContainKey(commit);
+                starts.put(commit.copy(), (BitSet) walker.getCurrentStarts().clone());
+            }
+        }
+
+        assertThat(starts).containsOnlyKeys(shared, feature1, feature2);
+        assertThat(starts.get(feature1)).isEqualTo(BitSet.valueOf(new long[] {1}));
+        assertThat(starts.get(feature2)).isEqualTo(BitSet.valueOf(new long[] {2}));
+        assertThat(starts.get(shared)).isEqualTo(BitSet.valueOf(new long[] {3}));
+    }
+
+    @Test
+    public void testSetSkipMerges_historyBehindMergeIsStillReturned() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId feature = git.commit("feature", base);
+        ObjectId fix = git.commit("fix", base);
+        ObjectId merge = git.commit("merge", feature, fix);
+
+        List<ObjectId> newCommits = new ArrayList<>();
+
+        try (NewCommitWalker walker = new NewCommitWalker(git.getRepository())) {
+            walker.setSkipMerges(true);
+            walker.markStart(Lists.newArrayList(merge), Lists.newArrayList(base));
+
+            RevCommit commit;
+            while ((commit = walker.next()) != null) {
+                newCommits.add(commit.copy());
+                assertThat(walker.getCurrentStarts().get(0)).isTrue();
+            }
+        }
+
+        assertThat(newCommits).containsOnly(feature, fix);
+    }
+
+    @Test
+    public void testGetPendingStarts_commitsFoundOnExistingBranchesAreDropped() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId master = git.commit("master", base);
+        ObjectId feature = git.commit("feature", master);
+
+        try (NewCommitWalker walker = new NewCommitWalker(git.getRepository())) {
+            walker.markStart(Lists.newArrayList(feature, base), Lists.newArrayList(master));
+
+            assertThat((ObjectId) walker.next()).isEqualTo(feature);
+            assertThat(walker.getPendingStarts()).isEmpty();
+        }
+    }
+
+    @Test
+    public void testNext_commitBodiesAreNotKept() throws Exception {
+        ObjectId base = git.commit("base");
+        ObjectId first = git.commit("first", base);
+        ObjectId second = git.commit("second", first);
+
+        try (NewCommitWalker walker = new NewCommitWalker(git.getRepository())) {
+            walker.markStart(second, Lists.newArrayList(base));
+
+            RevCommit commit;
+            while ((commit = walker.next()) != null) {
+                assertThat(commit.getRawBuffer()).isNull();
+            }
+        }
+    }
+
+    private List<ObjectId> findNewCommits(ObjectId start, List<ObjectId> existingTips) throws Exception {
+        List<ObjectId> newCommits = new ArrayList<>();
+
+        try (NewCommitWalker walker = new NewCommitWalker(git.getRepository())) {
+            walker.markStart(start, existingTips);
+
+            RevCommit commit;
+            while ((commit = walker.next()) != null) {
+                newCommits.add(commit.copy());
+            }
+        }
+
+        return newCommits;
+    }
+}
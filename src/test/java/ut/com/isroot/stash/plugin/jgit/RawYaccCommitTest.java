@@ -0,0 +1,40 @@
+package ut.com.isroot.stash.plugin.jgit;
+
+import com.isroot.stash.plugin.jgit.IdentityTable;
+import com.isroot.stash.plugin.jgit.RawYaccCommit;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RawYaccCommitTest {
+    private static final String HEADERS = "tree 4b825dc642cb6eb9a060e54bf8d69288fbee4904\n"
+            + "author John Smith <jsmith@example.com> 1400000000 +0000\n"
+            + "committer John Smith <jsmith@example.com> 1400000000 +0000\n"
+            + "\n";
+
+    @Test
+    public void testReadCommit_messageOfContinuationBytesIsCutAtTheWindow() throws Exception {
+        byte[] message = new byte[200 * 1024];
+        Arrays.fill(message, (byte) 0x80);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(HEADERS.getBytes(StandardCharsets.US_ASCII));
+        out.write(message);
+        byte[] raw = out.toByteArray();
+
+        // Bigger than the chunks the rest of the message is scanned in
+        int messageWindow = 100 * 1024;
+        RawYaccCommit commit = RawYaccCommit.readCommit("1234", 1, new ByteArrayInputStream(raw), raw.length,
+                messageWindow, new IdentityTable());
+
+        assertThat(commit.getCommitter().getEmailAddress()).isEqualTo("jsmith@example.com");
+        assertThat(commit.isMessageLongerThan(message.length - 1)).isTrue();
+        assertThat(commit.isMessageLongerThan(message.length)).isFalse();
+        assertThat(commit.getMessageOverflow(messageWindow).toString()).isEmpty();
+    }
+}
@@ -0,0 +1,145 @@
+package ut.com.isroot.stash.plugin.jgit;
+
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.jgit.RefSnapshotCache;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import ut.com.isroot.stash.plugin.mock.MockRefChange;
+import ut.com.isroot.stash.plugin.mock.TestGitRepository;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class RefSnapshotCacheTest {
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock private Repository repository;
+    @Mock private RepositoryRefsChangedEvent event;
+
+    private TestGitRepository git;
+    private RefSnapshotCache refSnapshotCache;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        git = new TestGitRepository(temporaryFolder.newFolder("repo.git"));
+        refSnapshotCache = new RefSnapshotCache();
+
+        when(repository.getId()).thenReturn(1);
+        when(event.getRepository()).thenReturn(repository);
+    }
+
+    @After
+    public void tearDown() {
+        git.close();
+    }
+
+    @Test
+    public void testGetBranchTips_readFromRefDatabase() throws Exception {
+        ObjectId master = git.commit("master");
+        git.branch("master", master);
+
+        assertThat(refSnapshotCache.getBranchTips(repository, git.getRepository())).containsOnly(master);
+    }
+
+    @Test
+    public void testGetBranchTips_snapshotIsNotReadAgain() throws Exception {
+        ObjectId master = git.commit("master");
+        git.branch("master", master);
+
+        refSnapshotCache.getBranchTips(repository, git.getRepository());
+
+        git.branch("other", git.commit("other"));
+
+        assertThat(refSnapshotCache.getBranchTips(repository, git.getRepository())).containsOnly(master);
+    }
+
+    @Test
+    public void testOnRefsChanged_snapshotIsUpdated() throws Exception {
+        ObjectId master = git.commit("master");
+        ObjectId other = git.commit("other");
+        git.branch("master", master);
+        git.branch("other", other);
+
+        refSnapshotCache.getBranchTips(repository, git.getRepository());
+
+        ObjectId feature = git.commit("feature");
+        setRefChanges(refChange("refs/heads/feature", RefChangeType.ADD, feature),
+                refChange("refs/heads/other", RefChangeType.DELETE, ObjectId.zeroId()),
+                refChange("refs/tags/tag", RefChangeType.ADD, feature));
+
+        refSnapshotCache.onRefsChanged(event);
+
+        assertThat(refSnapshotCache.getBranchTips(repository, git.getRepository())).containsOnly(master, feature);
+    }
+
+    @Test
+    public void testGetBranchTipsCommittedSince_olderTipsAreLeftOut() throws Exception {
+        ObjectId master = git.commit("master");
+        ObjectId other = git.commit("other");
+        git.branch("master", master);
+        git.branch("other", other);
+
+        int otherTime;
+        RevWalk walk = new RevWalk(git.getRepository());
+        try {
+            otherTime = walk.parseCommit(other).getCommitTime();
+        } finally {
+            walk.release();
+        }
+
+        assertThat(refSnapshotCache.getBranchTipsCommittedSince(repository, git.getRepository(), otherTime))
+                .containsOnly(other);
+    }
+
+    @Test
+    public void testGetBranchTipsCommittedSince_manyUnknownTipsAreReadOverSeveralCalls() throws Exception {
+        ObjectId base = git.commit("base");
+        for (int i = 0; i < 600; i++) {
+            git.branch("branch" + i, git.commit("branch " + i, base));
+        }
+
+        assertThat(refSnapshotCache.getBranchTipsCommittedSince(repository, git.getRepository(), 0)).isNull();
+        assertThat(refSnapshotCache.getBranchTipsCommittedSince(repository, git.getRepository(), 0)).hasSize(600);
+    }
+
+    @Test
+    public void testInvalidate_snapshotIsReadAgain() throws Exception {
+        ObjectId master = git.commit("master");
+        git.branch("master", master);
+
+        refSnapshotCache.getBranchTips(repository, git.getRepository());
+
+        ObjectId other = git.commit("other");
+        git.branch("other", other);
+        refSnapshotCache.invalidate(1);
+
+        assertThat(refSnapshotCache.getBranchTips(repository, git.getRepository())).containsOnly(master, other);
+    }
+
+    private void setRefChanges(RefChange... refChanges) {
+        List<RefChange> list = Lists.newArrayList(refChanges);
+        when(event.getRefChanges()).thenReturn(list);
+    }
+
+    private RefChange refChange(String refId, RefChangeType type, ObjectId toHash) {
+        MockRefChange refChange = new MockRefChange(refId);
+        refChange.setType(type);
+        refChange.setToHash(toHash.name());
+        return refChange;
+    }
+}
@@ -41,13 +41,14 @@ public class MockSettings implements Settings {
 
     @Nullable
     @Override
-    public Boolean getBoolean(String s) {
-        return null;
+    public Boolean getBoolean(String key) {
+        Object value = get(key);
+        return value == null ? null : Boolean.valueOf(value.toString());
     }
 
     @Override
-    public boolean getBoolean(String s, boolean b) {
-        return false;
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return Objects.firstNonNull(getBoolean(key), defaultValue);
     }
 
     @Nullable
@@ -0,0 +1,68 @@
+package ut.com.isroot.stash.plugin.mock;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.google.common.collect.Lists;
+import com.isroot.stash.plugin.ResumePoint;
+import com.isroot.stash.plugin.YaccCommit;
+import com.isroot.stash.plugin.YaccCommitStream;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+
+public class MockYaccCommitStream implements YaccCommitStream {
+    private final Collection<RefChange> refChanges;
+    private final Iterator<YaccCommit> commits;
+    private ResumePoint resumePoint;
+    private boolean closed;
+
+    public MockYaccCommitStream(YaccCommit... commits) {
+        this(Collections.<RefChange>emptyList(), commits);
+    }
+
+    /**
+     * Every commit is reported as new to all of {@code refChanges}.
+     */
+    public MockYaccCommitStream(Collection<RefChange> refChanges, YaccCommit... commits) {
+        this.refChanges = refChanges;
+        this.commits = Lists.newArrayList(commits).iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return commits.hasNext();
+    }
+
+    @Override
+    public YaccCommit next() {
+        return commits.next();
+    }
+
+    @Override
+    public Collection<RefChange> getRefChanges() {
+        return refChanges;
+    }
+
+    @Override
+    public ResumePoint getResumePoint() {
+        return resumePoint;
+    }
+
+    public void setResumePoint(ResumePoint resumePoint) {
+        this.resumePoint = resumePoint;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,98 @@
+package ut.com.isroot.stash.plugin.mock;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Small helper for building bare git repositories with JGit in unit tests.
+ */
+public class TestGitRepository {
+    private final Repository repository;
+    private long time = 1400000000000L;
+
+    public TestGitRepository(File gitDir) throws IOException {
+        repository = FileRepositoryBuilder.create(gitDir);
+        repository.create(true);
+    }
+
+    public Repository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Move the clock later commits and tags are made at back by {@code millis}, like a committer whose clock
+     * is wrong.
+     */
+    public void rewindClock(long millis) {
+        time -= millis;
+    }
+
+    public ObjectId commit(String message, ObjectId... parents) throws IOException {
+        return commit(new PersonIdent("John Smith", "jsmith@example.com"), message, parents);
+    }
+
+    public ObjectId commit(PersonIdent committer, String message, ObjectId... parents) throws IOException {
+        ObjectInserter inserter = repository.newObjectInserter();
+        try {
+            PersonIdent ident = new PersonIdent(committer.getName(), committer.getEmailAddress(),
+                    new Date(time += 1000), TimeZone.getTimeZone("UTC"));
+
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(inserter.insert(new TreeFormatter()));
+            commitBuilder.setParentIds(parents);
+            commitBuilder.setAuthor(ident);
+            commitBuilder.setCommitter(ident);
+            commitBuilder.setMessage(message);
+
+            ObjectId id = inserter.insert(commitBuilder);
+            inserter.flush();
+            return id;
+        } finally {
+            inserter.release();
+        }
+    }
+
+    /**
+     * Create an annotated tag object for {@code target}. The tag ref itself is not created.
+     */
+    public ObjectId tag(String name, ObjectId target, String message) throws IOException {
+        ObjectInserter inserter = repository.newObjectInserter();
+        try {
+            TagBuilder tagBuilder = new TagBuilder();
+            tagBuilder.setObjectId(target, Constants.OBJ_COMMIT);
+            tagBuilder.setTag(name);
+            tagBuilder.setTagger(new PersonIdent("John Smith", "jsmith@example.com",
+                    new Date(time += 1000), TimeZone.getTimeZone("UTC")));
+            tagBuilder.setMessage(message);
+
+            ObjectId id = inserter.insert(tagBuilder);
+            inserter.flush();
+            return id;
+        } finally {
+            inserter.release();
+        }
+    }
+
+    public void branch(String name, ObjectId id) throws IOException {
+        RefUpdate refUpdate = repository.updateRef(Constants.R_HEADS + name);
+        refUpdate.setNewObjectId(id);
+        refUpdate.forceUpdate();
+    }
+
+    public void close() {
+        repository.close();
+    }
+}
@@ -0,0 +1,93 @@
+package ut.com.isroot.stash.plugin.regex;
+
+import com.google.common.base.Strings;
+import com.isroot.stash.plugin.regex.RegexEngine;
+import com.isroot.stash.plugin.regex.StepBudgetExceededException;
+import com.isroot.stash.plugin.regex.YaccPattern;
+import org.junit.Test;
+
+import java.util.regex.PatternSyntaxException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class YaccPatternTest {
+    @Test
+    public void testMatches_enginesAgree() {
+        for (RegexEngine engine : RegexEngine.values()) {
+            YaccPattern pattern = YaccPattern.compile("[A-Z]+-[0-9]+: .*", engine);
+
+            assertThat(pattern.matches("ABC-123: fix the thing")).as(engine.name()).isTrue();
+            assertThat(pattern.matches("fix ABC-123: the thing")).as(engine.name()).isFalse();
+            assertThat(pattern.find("fix ABC-123: the thing")).as(engine.name()).isTrue();
+        }
+    }
+
+    @Test
+    public void testMatches_multiline() {
+        for (RegexEngine engine : RegexEngine.values()) {
+            YaccPattern pattern = YaccPattern.compile("^summary$\\s+^body$", YaccPattern.MULTILINE, engine);
+
+            assertThat(pattern.matches("summary\n\nbody")).as(engine.name()).isTrue();
+        }
+    }
+
+    @Test
+    public void testMatchGroup() {
+        for (RegexEngine engine : RegexEngine.values()) {
+            YaccPattern pattern = YaccPattern.compile("\\[(.*)\\] .*", engine);
+
+            assertThat(pattern.matchGroup("[ABC-1, ABC-2] message", 1)).as(engine.name()).isEqualTo("ABC-1, ABC-2");
+            assertThat(pattern.matchGroup("no issues", 1)).as(engine.name()).isNull();
+            assertThat(pattern.matchGroup("[ABC-1] message", 2)).as(engine.name()).isNull();
+        }
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void testCompile_linearEngineRejectsBackreferences() {
+        YaccPattern.compile("(a)\\1", RegexEngine.LINEAR);
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void testCompile_linearEngineRejectsLookahead() {
+        YaccPattern.compile("(?!WIP).*", RegexEngine.LINEAR);
+    }
+
+    @Test(timeout = 5000)
+    public void testMatches_linearEngineDoesNotBacktrack() {
+        // Tries every way of splitting the input into ten parts with a backtracking engine
+        YaccPattern pattern = YaccPattern.compile("(.*a){10}b", RegexEngine.LINEAR);
+
+        assertThat(pattern.matches(Strings.repeat("a", 10000))).isFalse();
+    }
+
+    @Test
+    public void testMatches_stepBudgetStopsBacktracking() {
+        YaccPattern pattern = YaccPattern.compile("(.*a){10}b", 0, RegexEngine.BACKTRACKING, 10000);
+
+        try {
+            pattern.matches(Strings.repeat("a", 64));
+            fail("expected the match to give up");
+        } catch (StepBudgetExceededException e) {
+            assertThat(e.getPattern()).isEqualTo("(.*a){10}b");
+            assertThat(e.getStepBudget()).isEqualTo(10000);
+        }
+    }
+
+    @Test
+    public void testMatches_stepBudgetAllowsOrdinaryMatches() {
+        for (RegexEngine engine : RegexEngine.values()) {
+            YaccPattern pattern = YaccPattern.compile("[A-Z]+-[0-9]+: .*", 0, engine, 10000);
+
+            assertThat(pattern.matches("ABC-123: " + Strings.repeat("a", 1000))).as(engine.name()).isTrue();
+            assertThat(pattern.matchGroup("ABC-123: message", 0)).as(engine.name()).isEqualTo("ABC-123: message");
+        }
+    }
+
+    @Test
+    public void testParse() {
+        assertThat(RegexEngine.parse("LINEAR")).isEqualTo(RegexEngine.LINEAR);
+        assertThat(RegexEngine.parse("")).isNull();
+        assertThat(RegexEngine.parse("DFA")).isNull();
+    }
+}